@@ -0,0 +1,55 @@
+/**
+ * This file Copyright (c) 2019 Magnolia International
+ * Ltd.  (http://www.magnolia-cms.com). All rights reserved.
+ *
+ *
+ * This program and the accompanying materials are made
+ * available under the terms of the Magnolia Network Agreement
+ * which accompanies this distribution, and is available at
+ * http://www.magnolia-cms.com/mna.html
+ *
+ * Any modifications to this file must keep this entire header
+ * intact.
+ *
+ */
+package info.magnolia.forge.periscope.rank.ml;
+
+import org.apache.commons.lang3.StringUtils;
+
+/**
+ * Default {@link QueryEncoder}: each of the first {@value #INPUT_DIGITS} characters is encoded by its ascii code,
+ * after stripping accents. Other characters are folded into the ascii range by modulo, so non-Latin queries collide.
+ */
+public class AsciiQueryEncoder implements QueryEncoder {
+
+    static final String ID = "ascii";
+    static final int ASCII_CHARS = 128;
+    static final int INPUT_DIGITS = 20;
+
+    @Override
+    public String getId() {
+        return ID;
+    }
+
+    @Override
+    public int getAlphabetSize() {
+        return ASCII_CHARS;
+    }
+
+    @Override
+    public int getLength() {
+        return INPUT_DIGITS;
+    }
+
+    @Override
+    public int[] encode(String query) {
+        String asciiQuery = StringUtils.stripAccents(query);
+        int digits = Math.min(asciiQuery.length(), INPUT_DIGITS);
+
+        int[] codes = new int[digits];
+        for (int i = 0; i < digits; i++) {
+            codes[i] = asciiQuery.charAt(i) % ASCII_CHARS;
+        }
+        return codes;
+    }
+}
@@ -16,29 +16,46 @@ package info.magnolia.forge.periscope.rank.ml;
 
 import static java.util.concurrent.TimeUnit.*;
 
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.Executor;
-import java.util.concurrent.Semaphore;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 
 import lombok.extern.slf4j.Slf4j;
 
 /**
  * Helper for debouncing operations and eventually running them on an executor.
+ * <p>
+ * Operations are coalesced per key: the first request for a key is executed right away, subsequent requests within
+ * the debouncing interval replace each other and only the latest one gets executed once the interval has passed.
+ * Operations for the same key never run concurrently, while operations for different keys are independent.
+ * <p>
+ * Delays are handled by a single shared scheduler thread, so no thread is started per request.
  */
 @Slf4j
 public class Debouncer {
 
+    private static final Object DEFAULT_KEY = new Object();
+
+    private static final ScheduledExecutorService SCHEDULER = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder()
+            .setNameFormat("periscope-ranker-debouncer")
+            .setDaemon(true)
+            .build());
+
     private final Executor executor;
     /** Debounding interval [ns]. */
     private final long interval;
 
-    private final Semaphore semaphore = new Semaphore(1);
-    private Semaphore scheduleSemaphore = new Semaphore(1);
-
-    private Runnable operation;
-    private CompletableFuture<Boolean> promise;
-    private long lastExecution = 0;
-    private boolean executionScheduled = false;
+    private final Map<Object, KeyState> states = new ConcurrentHashMap<>();
+    /** Once flushed, operations are no longer delayed. */
+    private volatile boolean flushing = false;
 
     /**
      * @param interval debouncing interval [ms]
@@ -49,74 +66,173 @@ public class Debouncer {
     }
 
     public CompletableFuture<Boolean> debounce(Runnable runnable) {
-        try {
-            scheduleSemaphore.acquire();
-        } catch (InterruptedException e) {
-            throw new RuntimeException("Error trying to acquire semaphore for debounce request scheduling");
-        }
-
-        final CompletableFuture<Boolean> newPromise = new CompletableFuture<>();
-
-        // put into a different thread because we don't want to block while another operation is running
-        new Thread(() -> request(runnable, newPromise)).start();
-        return newPromise;
+        return debounce(DEFAULT_KEY, runnable);
     }
 
-    private void request(Runnable runnable, CompletableFuture<Boolean> newPromise) {
-        try {
-            semaphore.acquire();
-            scheduleSemaphore.release();
-        } catch (InterruptedException e) {
-            log.error("Error trying to acquire semaphore for NN storage debouncing", e);
+    /**
+     * Request execution of an operation, superseding the one pending for the same key, if any.
+     *
+     * @return CompletableFuture serving {@code true} once the operation was executed, or {@code false} if it was
+     * superseded by a more recent one; completed exceptionally if the operation failed.
+     */
+    public CompletableFuture<Boolean> debounce(Object key, Runnable runnable) {
+        final CompletableFuture<Boolean> promise = new CompletableFuture<>();
+        while (true) {
+            final KeyState state = states.computeIfAbsent(key, KeyState::new);
+            synchronized (state) {
+                if (state.removed) {
+                    // removed for being idle in the meantime, retry with a new state
+                    continue;
+                }
+                if (state.promise != null) {
+                    // previous pending one will be dropped, hence we notify listeners with false
+                    state.promise.complete(false);
+                }
+                state.operation = runnable;
+                state.promise = promise;
+
+                // an idle state scheduled for removal runs operations right away once flushing
+                if (!state.running && (!state.scheduled || flushing)) {
+                    scheduleOrExecute(state);
+                }
+            }
+            return promise;
         }
+    }
 
-        if (executionScheduled) {
-            // previous schedule one will be dropped, hence we notify listeners with false
-            promise.complete(false);
+    /**
+     * Hand all pending operations over to the executor right away, e.g. on shutdown. Operations of keys which are
+     * running at the moment follow as soon as these are done, and any operation requested from now on is executed
+     * without delay.
+     *
+     * @return futures of the pending and running operations, serving {@code true} once they were executed, completed
+     * exceptionally if they failed.
+     */
+    public List<CompletableFuture<Boolean>> flush() {
+        flushing = true;
+        List<CompletableFuture<Boolean>> promises = new ArrayList<>();
+        for (KeyState state : states.values()) {
+            synchronized (state) {
+                if (state.runningPromise != null) {
+                    promises.add(state.runningPromise);
+                }
+                if (state.promise != null) {
+                    promises.add(state.promise);
+                    if (!state.running) {
+                        execute(state);
+                    }
+                }
+            }
         }
+        return promises;
+    }
 
-        this.promise = newPromise;
-        this.operation = runnable;
-
-        if (!executionScheduled) {
-            long millisToWait = MILLISECONDS.convert(interval - (System.nanoTime() - lastExecution), NANOSECONDS);
-            if (millisToWait <= 0) {
-                execute();
-            } else {
-                scheduleExecution(millisToWait);
-                executionScheduled = true;
-                semaphore.release();
-            }
+    /**
+     * Must be called while holding the lock on the given state.
+     */
+    private void scheduleOrExecute(KeyState state) {
+        long nanosToWait = interval - (System.nanoTime() - state.lastExecution);
+        if (nanosToWait <= 0 || flushing) {
+            execute(state);
         } else {
-            semaphore.release();
+            state.scheduled = true;
+            SCHEDULER.schedule(() -> {
+                synchronized (state) {
+                    state.scheduled = false;
+                    // the operation may have been flushed meanwhile
+                    if (state.promise != null && !state.running) {
+                        execute(state);
+                    }
+                }
+            }, nanosToWait, NANOSECONDS);
         }
     }
 
-    private void scheduleExecution(long millis) {
-        new Thread(() -> {
-            try {
-                Thread.sleep(millis);
+    /**
+     * Hand the pending operation over to the executor. Must be called while holding the lock on the given state.
+     */
+    private void execute(KeyState state) {
+        final Runnable operation = state.operation;
+        final CompletableFuture<Boolean> promise = state.promise;
+        state.operation = null;
+        state.promise = null;
+        state.running = true;
+        state.runningPromise = promise;
 
-                semaphore.acquire();
-                execute();
-            } catch (InterruptedException e) {
-                log.error("Error while sleeping for debouncing", e);
-            }
-        }).start();
+        try {
+            executor.execute(() -> {
+                try {
+                    operation.run();
+                    promise.complete(true);
+                } catch (RuntimeException e) {
+                    log.error("Debounced operation failed", e);
+                    promise.completeExceptionally(e);
+                } finally {
+                    // errors are left to the executor, the promise must not be left pending though
+                    promise.complete(false);
+                    synchronized (state) {
+                        state.lastExecution = System.nanoTime();
+                        state.running = false;
+                        state.runningPromise = null;
+                        if (state.promise != null) {
+                            scheduleOrExecute(state);
+                        } else {
+                            scheduleRemoval(state);
+                        }
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            log.error("Failed to execute debounced operation, executor rejected it", e);
+            state.running = false;
+            state.runningPromise = null;
+            promise.complete(false);
+        }
     }
 
     /**
-     * Execute operation on executor, reset lock when done.
+     * Forget the state of a key once its debouncing interval has passed without any new request, so that states don't
+     * pile up for every key ever seen. Must be called while holding the lock on the given state.
      */
-    private void execute() {
-        executor.execute(() -> {
-            operation.run();
-            promise.complete(true);
+    private void scheduleRemoval(KeyState state) {
+        state.scheduled = true;
+        SCHEDULER.schedule(() -> {
+            synchronized (state) {
+                state.scheduled = false;
+                if (state.promise == null && !state.running) {
+                    state.removed = true;
+                    states.remove(state.key, state);
+                } else if (state.promise != null && !state.running) {
+                    scheduleOrExecute(state);
+                }
+            }
+        }, interval, NANOSECONDS);
+    }
 
-            lastExecution = System.nanoTime();
-            executionScheduled = false;
+    /**
+     * Number of keys with a pending, running or recently executed operation.
+     */
+    int size() {
+        return states.size();
+    }
 
-            semaphore.release();
-        });
+    /**
+     * Debouncing state for one key.
+     */
+    private static class KeyState {
+        private final Object key;
+        private Runnable operation;
+        private CompletableFuture<Boolean> promise;
+        /** Promise of the operation being executed, if any. */
+        private CompletableFuture<Boolean> runningPromise;
+        private long lastExecution = System.nanoTime() - Long.MAX_VALUE / 2;
+        private boolean scheduled = false;
+        private boolean running = false;
+        /** Once removed from the states, a state must not be used anymore. */
+        private boolean removed = false;
+
+        private KeyState(Object key) {
+            this.key = key;
+        }
     }
 }
@@ -0,0 +1,73 @@
+/**
+ * This file Copyright (c) 2019 Magnolia International
+ * Ltd.  (http://www.magnolia-cms.com). All rights reserved.
+ *
+ *
+ * This program and the accompanying materials are made
+ * available under the terms of the Magnolia Network Agreement
+ * which accompanies this distribution, and is available at
+ * http://www.magnolia-cms.com/mna.html
+ *
+ * Any modifications to this file must keep this entire header
+ * intact.
+ *
+ */
+package info.magnolia.forge.periscope.rank.ml;
+
+import java.nio.charset.StandardCharsets;
+import java.text.Normalizer;
+import java.util.Locale;
+
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+
+import lombok.Getter;
+import lombok.Setter;
+
+/**
+ * Unicode-aware {@link QueryEncoder}: position {@code i} holds the character n-gram starting at the {@code i}-th
+ * code point of the query, hashed into a fixed number of buckets.
+ * <p>
+ * Queries are normalized (NFKC) and lowercased first. Since whole code points are hashed, Cyrillic, CJK and other
+ * non-Latin queries are encoded as densely as Latin ones, and n-grams carry more context per position than single
+ * characters.
+ */
+@Getter
+@Setter
+public class HashedNgramQueryEncoder implements QueryEncoder {
+
+    static final int DEFAULT_NGRAM_SIZE = 3;
+    static final int DEFAULT_BUCKETS = 256;
+    static final int DEFAULT_LENGTH = 20;
+
+    private static final HashFunction HASH_FUNCTION = Hashing.murmur3_32(0);
+
+    private int ngramSize = DEFAULT_NGRAM_SIZE;
+    private int buckets = DEFAULT_BUCKETS;
+    private int length = DEFAULT_LENGTH;
+
+    @Override
+    public String getId() {
+        return "ngram-" + ngramSize + "-" + buckets + "x" + length;
+    }
+
+    @Override
+    public int getAlphabetSize() {
+        return buckets;
+    }
+
+    @Override
+    public int[] encode(String query) {
+        String normalized = Normalizer.normalize(query.trim(), Normalizer.Form.NFKC).toLowerCase(Locale.ROOT);
+        int[] codePoints = normalized.codePoints().toArray();
+        int positions = Math.min(codePoints.length, length);
+
+        int[] codes = new int[positions];
+        for (int i = 0; i < positions; i++) {
+            int end = Math.min(i + ngramSize, codePoints.length);
+            String ngram = new String(codePoints, i, end - i);
+            codes[i] = Math.floorMod(HASH_FUNCTION.hashString(ngram, StandardCharsets.UTF_8).asInt(), buckets);
+        }
+        return codes;
+    }
+}
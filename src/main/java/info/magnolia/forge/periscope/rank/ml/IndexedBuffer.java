@@ -18,37 +18,131 @@ package info.magnolia.forge.periscope.rank.ml;
 import static java.util.Collections.emptyList;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Optional;
-
-import org.apache.commons.collections4.map.LRUMap;
-
-import com.google.common.collect.Lists;
+import java.util.UUID;
+import java.util.concurrent.locks.StampedLock;
+import java.util.stream.IntStream;
 
 /**
  * Circular/ring buffer with stable indices and LRU policy. That is, new items will be injected at the position of the
  * previously least recently used one, so all others stay in the same position.
  * <p>
  * Indices start at 0 and go up to limit - 1, incrementally until the buffer is full, then by LRU policy.
+ * <p>
+ * Items are looked up through an open-addressed hash table of indices (linear probing), while the LRU order is kept as
+ * a doubly-linked list over indices, so no objects are allocated per item or lookup. Lookups are lock-free as long as
+ * the buffer isn't being modified concurrently; modifications, including {@link #touch(Object)}, are serialized.
+ * <p>
+ * Changes are tracked by a logical clock, which ticks on every modification: each index records when it was last
+ * used and last changed, so that storage can write only what changed since the {@link #getVersion() version} it
+ * stored last, as long as it's the same buffer (see {@link #getId()}), or since the version it was restored from, as
+ * long as nothing else was stored since (see {@link #getOriginId()}).
  * @param <T> type of items stored in this circular buffer
  */
 public class IndexedBuffer<T> {
 
+    private static final int NONE = -1;
+
     private final int limit;
-    private final LRUMap<T, Integer> map;
+    /** Item per index. */
+    private final Object[] items;
+    /** Index + 1 of the item hashed to each bucket, 0 for empty buckets. */
+    private final int[] table;
+    private final int mask;
+    /** LRU order, from {@link #head} (least recently used) to {@link #tail} (most recently used). */
+    private final int[] previous;
+    private final int[] next;
+    private int head = NONE;
+    private int tail = NONE;
+    private volatile int size;
+
+    private final String id;
+    /** Identifier and version of the stored buffer this one was restored from, if any. */
+    private final String originId;
+    private final long originVersion;
+    /** Clock time of the last use, i.e. addition or touch, per index. */
+    private final long[] lastUse;
+    /** Clock time of the last change, i.e. last use or replacement, per index. */
+    private final long[] lastChange;
+    private long clock;
+
+    private final StampedLock lock = new StampedLock();
 
     public IndexedBuffer(int limit) {
         this(limit, emptyList(), emptyList());
     }
 
     public IndexedBuffer(int limit, List<T> labels, List<T> evictionOrder) {
-        this.limit = limit;
-        this.map = new LRUMap<>(limit);
-        for (int i = 0; i < labels.size(); i++) {
-            map.put(labels.get(i), i);
-        }
+        this(limit, null, -1);
+        labels.forEach(this::add);
         // touch all in eviction order to line them up correctly
-        evictionOrder.forEach(map::get);
+        evictionOrder.forEach(this::touch);
+    }
+
+    /**
+     * Restore a buffer along with its change tracking state. The restored buffer gets an identifier of its own, as
+     * several buffers may be restored from the same stored one and change independently.
+     *
+     * @param id identifier of the stored buffer.
+     * @param lastUse clock time of the last use of each label, defining the LRU order.
+     * @param version clock time the buffer was at.
+     */
+    public IndexedBuffer(String id, int limit, List<T> labels, long[] lastUse, long version) {
+        this(limit, id, version);
+        Integer[] byLastUse = IntStream.range(0, labels.size()).boxed().toArray(Integer[]::new);
+        Arrays.sort(byLastUse, Comparator.comparingLong(index -> lastUse[index]));
+        for (int index = 0; index < labels.size(); index++) {
+            items[index] = labels.get(index);
+            hash(index, labels.get(index));
+            this.lastUse[index] = lastUse[index];
+            this.lastChange[index] = lastUse[index];
+        }
+        for (int index : byLastUse) {
+            linkAtTail(index);
+        }
+        this.size = labels.size();
+        this.clock = Math.max(version, Arrays.stream(lastUse).max().orElse(0));
+    }
+
+    private IndexedBuffer(int limit, String originId, long originVersion) {
+        this.id = UUID.randomUUID().toString();
+        this.originId = originId;
+        this.originVersion = originVersion;
+        this.limit = limit;
+        this.items = new Object[limit];
+        // keep the table at most half full, for short probe sequences
+        this.table = new int[Math.max(2, Integer.highestOneBit(Math.max(1, limit) * 2 - 1) << 1)];
+        this.mask = table.length - 1;
+        this.previous = new int[limit];
+        this.next = new int[limit];
+        this.lastUse = new long[limit];
+        this.lastChange = new long[limit];
+    }
+
+    /**
+     * Exact copy of a buffer, identifier and change tracking state included.
+     */
+    private IndexedBuffer(IndexedBuffer<T> source) {
+        this.id = source.id;
+        this.originId = source.originId;
+        this.originVersion = source.originVersion;
+        this.limit = source.limit;
+        this.items = source.items.clone();
+        this.table = source.table.clone();
+        this.mask = source.mask;
+        this.previous = source.previous.clone();
+        this.next = source.next.clone();
+        this.head = source.head;
+        this.tail = source.tail;
+        this.size = source.size;
+        this.lastUse = source.lastUse.clone();
+        this.lastChange = source.lastChange.clone();
+        this.clock = source.clock;
     }
 
     /**
@@ -56,15 +150,49 @@ public class IndexedBuffer<T> {
      *
      * @return evicted index, if limit was already reached.
      */
-    synchronized Optional<Integer> add(T item) {
-        if (map.size() < limit) {
-            map.put(item, map.size());
-            return Optional.empty();
-        } else {
-            Object key = map.firstKey();
-            int evictIndex = map.remove(key);
-            map.put(item, evictIndex);
-            return Optional.of(evictIndex);
+    Optional<Integer> add(T item) {
+        long stamp = lock.writeLock();
+        try {
+            int index = find(item);
+            if (index != NONE) {
+                use(index);
+                return Optional.empty();
+            }
+            if (size < limit) {
+                index = size;
+                insert(index, item);
+                size = index + 1;
+                return Optional.empty();
+            }
+            index = head;
+            unlink(index);
+            remove(items[index]);
+            insert(index, item);
+            return Optional.of(index);
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * Replace an item by another one, which takes over its index and LRU position.
+     *
+     * @return whether the item was replaced, that is it was present while the replacement wasn't.
+     */
+    boolean replace(T item, T replacement) {
+        long stamp = lock.writeLock();
+        try {
+            int index = find(item);
+            if (index == NONE || find(replacement) != NONE) {
+                return false;
+            }
+            remove(item);
+            items[index] = replacement;
+            hash(index, replacement);
+            lastChange[index] = ++clock;
+            return true;
+        } finally {
+            lock.unlockWrite(stamp);
         }
     }
 
@@ -75,34 +203,348 @@ public class IndexedBuffer<T> {
     }
 
     boolean contains(T item) {
-        return map.containsKey(item);
+        return indexOf(item) != NONE;
     }
 
     /**
      * Signal an item has been used (for LRU policy).
      */
     void touch(T item) {
-        map.get(item, true);
+        long stamp = lock.writeLock();
+        try {
+            int index = find(item);
+            if (index != NONE) {
+                use(index);
+            }
+        } finally {
+            lock.unlockWrite(stamp);
+        }
     }
 
-    public synchronized int indexOf(T item) {
-        return Optional.ofNullable(map.get(item, false))
-                .orElse(-1);
+    public int indexOf(T item) {
+        long stamp = lock.tryOptimisticRead();
+        int index = find(item);
+        if (!lock.validate(stamp)) {
+            stamp = lock.readLock();
+            try {
+                index = find(item);
+            } finally {
+                lock.unlockRead(stamp);
+            }
+        }
+        return index;
     }
 
     public int size() {
-        return map.size();
+        return size;
     }
 
-    public synchronized List<T> asList() {
-        return new ArrayList<>(map.keySet());
+    /**
+     * Item at a given index, {@code null} if none was assigned to it yet. Constant time, without locking unless the
+     * buffer is being modified concurrently.
+     *
+     * @throws IndexOutOfBoundsException if the index isn't within the limit of this buffer.
+     */
+    @SuppressWarnings("unchecked")
+    public T labelAt(int index) {
+        if (index < 0 || index >= limit) {
+            throw new IndexOutOfBoundsException("Index " + index + " is out of buffer limit " + limit);
+        }
+        long stamp = lock.tryOptimisticRead();
+        Object item = items[index];
+        if (!lock.validate(stamp)) {
+            stamp = lock.readLock();
+            try {
+                item = items[index];
+            } finally {
+                lock.unlockRead(stamp);
+            }
+        }
+        return (T) item;
+    }
+
+    /**
+     * Iterate over all (index, item) pairs by index, without copying. The buffer is read-locked meanwhile, so the
+     * consumer must not modify it.
+     */
+    @SuppressWarnings("unchecked")
+    public void forEach(IndexedConsumer<? super T> consumer) {
+        long stamp = lock.readLock();
+        try {
+            for (int index = 0; index < size; index++) {
+                consumer.accept(index, (T) items[index]);
+            }
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    /**
+     * All items, by index.
+     */
+    public List<T> asList() {
+        long stamp = lock.readLock();
+        try {
+            return itemsByIndex();
+        } finally {
+            lock.unlockRead(stamp);
+        }
     }
 
     public int getLimit() {
         return this.limit;
     }
 
+    /**
+     * Identifier of this buffer, unique to each instance: neither restored nor {@link #resize(int) resized} buffers
+     * keep the identifier of the buffer they stem from.
+     */
+    public String getId() {
+        return id;
+    }
+
+    /**
+     * Identifier of the stored buffer this one was restored from, {@code null} if it was created anew.
+     */
+    public String getOriginId() {
+        return originId;
+    }
+
+    /**
+     * Clock time of the stored buffer this one was restored from, {@code -1} if it was created anew.
+     */
+    public long getOriginVersion() {
+        return originVersion;
+    }
+
+    /**
+     * Current clock time: all changes so far happened at or before it, later ones will happen after it.
+     */
+    public long getVersion() {
+        long stamp = lock.readLock();
+        try {
+            return clock;
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    /**
+     * Clock time of the last use of the item at a given index.
+     */
+    public long lastUseAt(int index) {
+        return readAt(lastUse, index);
+    }
+
+    /**
+     * Clock time of the last change of the item at a given index, 0 if none was assigned to it yet.
+     */
+    public long lastChangeAt(int index) {
+        return readAt(lastChange, index);
+    }
+
+    private long readAt(long[] stamps, int index) {
+        long stamp = lock.tryOptimisticRead();
+        long value = stamps[index];
+        if (!lock.validate(stamp)) {
+            stamp = lock.readLock();
+            try {
+                value = stamps[index];
+            } finally {
+                lock.unlockRead(stamp);
+            }
+        }
+        return value;
+    }
+
+    /**
+     * All items, from least to most recently used.
+     */
     public List<T> evictionOrder() {
-        return Lists.newArrayList(map.mapIterator());
+        long stamp = lock.readLock();
+        try {
+            return itemsByUse();
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    /**
+     * Copy of this buffer as it is now, keeping its identifier: meant to be stored in place of this buffer while it
+     * goes on changing, so it must not be changed itself. See {@link #copy()} for a buffer to be changed.
+     */
+    public IndexedBuffer<T> snapshot() {
+        long stamp = lock.readLock();
+        try {
+            return new IndexedBuffer<>(this);
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    /**
+     * Independent copy of this buffer, as if restored from it after it was stored at its current version.
+     */
+    public IndexedBuffer<T> copy() {
+        long stamp = lock.readLock();
+        try {
+            return new IndexedBuffer<>(id, limit, itemsByIndex(), Arrays.copyOf(lastUse, size), clock);
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    /**
+     * Copy of this buffer with another limit. When shrinking, only the most recently used items are kept. Items keep
+     * their index if it is still within the new size, others are moved to the remaining free indices.
+     */
+    IndexedBuffer<T> resize(int newLimit) {
+        long stamp = lock.readLock();
+        try {
+            List<T> evictionOrder = itemsByUse();
+            List<T> kept = evictionOrder.subList(Math.max(0, evictionOrder.size() - newLimit), evictionOrder.size());
+
+            List<T> labels = new ArrayList<>(Collections.nCopies(kept.size(), null));
+            List<T> moved = new ArrayList<>();
+            for (T item : kept) {
+                int index = find(item);
+                if (index < kept.size()) {
+                    labels.set(index, item);
+                } else {
+                    moved.add(item);
+                }
+            }
+            Iterator<T> movedItems = moved.iterator();
+            for (int i = 0; i < labels.size() && movedItems.hasNext(); i++) {
+                if (labels.get(i) == null) {
+                    labels.set(i, movedItems.next());
+                }
+            }
+            return new IndexedBuffer<>(newLimit, labels, kept);
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    /**
+     * Consumer of an item along with its index.
+     *
+     * @param <T> type of items
+     */
+    @FunctionalInterface
+    public interface IndexedConsumer<T> {
+        void accept(int index, T item);
+    }
+
+    @SuppressWarnings("unchecked")
+    private List<T> itemsByIndex() {
+        return (List<T>) new ArrayList<>(Arrays.asList(items).subList(0, size));
+    }
+
+    @SuppressWarnings("unchecked")
+    private List<T> itemsByUse() {
+        List<T> order = new ArrayList<>(size);
+        for (int index = head; index != NONE; index = next[index]) {
+            order.add((T) items[index]);
+        }
+        return order;
+    }
+
+    private int bucketOf(Object item) {
+        int hash = item.hashCode() * 0x9E3779B9;
+        return (hash ^ (hash >>> 16)) & mask;
+    }
+
+    /**
+     * Index of an item, or {@link #NONE}. Safe to call without lock, as long as the result is validated afterwards:
+     * probing is bounded and only ever reads valid indices.
+     */
+    private int find(Object item) {
+        int bucket = bucketOf(item);
+        for (int probes = 0; probes < table.length; probes++) {
+            int entry = table[bucket];
+            if (entry == 0) {
+                return NONE;
+            }
+            if (item.equals(items[entry - 1])) {
+                return entry - 1;
+            }
+            bucket = (bucket + 1) & mask;
+        }
+        return NONE;
+    }
+
+    private void insert(int index, T item) {
+        items[index] = item;
+        hash(index, item);
+        linkAtTail(index);
+        lastUse[index] = ++clock;
+        lastChange[index] = clock;
+    }
+
+    private void use(int index) {
+        moveToTail(index);
+        lastUse[index] = ++clock;
+        lastChange[index] = clock;
+    }
+
+    private void hash(int index, T item) {
+        int bucket = bucketOf(item);
+        while (table[bucket] != 0) {
+            bucket = (bucket + 1) & mask;
+        }
+        table[bucket] = index + 1;
+    }
+
+    /**
+     * Remove an item from the hash table, shifting subsequent entries of the probe sequence back into the hole.
+     */
+    private void remove(Object item) {
+        int hole = bucketOf(item);
+        while (!item.equals(items[table[hole] - 1])) {
+            hole = (hole + 1) & mask;
+        }
+        for (int bucket = (hole + 1) & mask; table[bucket] != 0; bucket = (bucket + 1) & mask) {
+            int home = bucketOf(items[table[bucket] - 1]);
+            // entries may only move back as far as their home bucket
+            if (((bucket - home) & mask) >= ((bucket - hole) & mask)) {
+                table[hole] = table[bucket];
+                hole = bucket;
+            }
+        }
+        table[hole] = 0;
+    }
+
+    private void moveToTail(int index) {
+        if (index != tail) {
+            unlink(index);
+            linkAtTail(index);
+        }
+    }
+
+    private void linkAtTail(int index) {
+        previous[index] = tail;
+        next[index] = NONE;
+        if (tail != NONE) {
+            next[tail] = index;
+        } else {
+            head = index;
+        }
+        tail = index;
+    }
+
+    private void unlink(int index) {
+        int before = previous[index];
+        int after = next[index];
+        if (before != NONE) {
+            next[before] = after;
+        } else {
+            head = after;
+        }
+        if (after != NONE) {
+            previous[after] = before;
+        } else {
+            tail = before;
+        }
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,110 @@
+/**
+ * This file Copyright (c) 2019 Magnolia International
+ * Ltd.  (http://www.magnolia-cms.com). All rights reserved.
+ *
+ *
+ * This program and the accompanying materials are made
+ * available under the terms of the Magnolia Network Agreement
+ * which accompanies this distribution, and is available at
+ * http://www.magnolia-cms.com/mna.html
+ *
+ * Any modifications to this file must keep this entire header
+ * intact.
+ *
+ */
+package info.magnolia.forge.periscope.rank.ml;
+
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Executor loading networks in the background, with a fixed number of threads. Queued loads are executed by
+ * {@link Priority}, then in submission order, so that users waiting for their network go ahead of the
+ * {@link PeriscopeResultRankerModule#getWarmUpUsers() warm-up}.
+ * <p>
+ * Plain {@link #execute(Runnable) executed} commands are {@link Priority#INTERACTIVE interactive}.
+ */
+class LoadingExecutor extends ThreadPoolExecutor {
+
+    /**
+     * Priority of a load, from highest to lowest.
+     */
+    enum Priority {
+        /** Some user is waiting for the network. */
+        INTERACTIVE,
+        /** Nobody is waiting for the network yet. */
+        WARM_UP
+    }
+
+    private final AtomicLong sequence = new AtomicLong(0);
+
+    LoadingExecutor(int threads, ThreadFactory threadFactory) {
+        super(threads, threads, 0L, TimeUnit.MILLISECONDS, new PriorityBlockingQueue<>(), threadFactory);
+    }
+
+    @Override
+    public void execute(Runnable command) {
+        if (command instanceof Task) {
+            super.execute(command);
+        } else {
+            execute(command, Priority.INTERACTIVE);
+        }
+    }
+
+    /**
+     * Execute a command with a given priority.
+     *
+     * @return the queued task, to {@link #prioritize(Task) prioritize} it later on.
+     */
+    Task execute(Runnable command, Priority priority) {
+        Task task = new Task(command, priority, sequence.getAndIncrement());
+        super.execute(task);
+        return task;
+    }
+
+    /**
+     * Move a task still waiting in the queue ahead of all {@link Priority#WARM_UP warm-up} tasks.
+     *
+     * @return the task as queued from now on, the given one if it isn't waiting anymore or is interactive already.
+     */
+    Task prioritize(Task task) {
+        if (task.priority == Priority.INTERACTIVE || !getQueue().remove(task)) {
+            return task;
+        }
+        return execute(task.command, Priority.INTERACTIVE);
+    }
+
+    /**
+     * A command along with its priority and submission order.
+     */
+    static final class Task implements Runnable, Comparable<Task> {
+
+        private final Runnable command;
+        private final Priority priority;
+        private final long sequence;
+
+        private Task(Runnable command, Priority priority, long sequence) {
+            this.command = command;
+            this.priority = priority;
+            this.sequence = sequence;
+        }
+
+        Priority getPriority() {
+            return priority;
+        }
+
+        @Override
+        public void run() {
+            command.run();
+        }
+
+        @Override
+        public int compareTo(Task other) {
+            int byPriority = priority.compareTo(other.priority);
+            return byPriority != 0 ? byPriority : Long.compare(sequence, other.sequence);
+        }
+    }
+}
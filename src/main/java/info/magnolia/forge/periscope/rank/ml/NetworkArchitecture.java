@@ -0,0 +1,296 @@
+/**
+ * This file Copyright (c) 2019 Magnolia International
+ * Ltd.  (http://www.magnolia-cms.com). All rights reserved.
+ *
+ *
+ * This program and the accompanying materials are made
+ * available under the terms of the Magnolia Network Agreement
+ * which accompanies this distribution, and is available at
+ * http://www.magnolia-cms.com/mna.html
+ *
+ * Any modifications to this file must keep this entire header
+ * intact.
+ *
+ */
+package info.magnolia.forge.periscope.rank.ml;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.stream.Collectors;
+
+import org.deeplearning4j.nn.api.OptimizationAlgorithm;
+import org.deeplearning4j.nn.conf.MultiLayerConfiguration;
+import org.deeplearning4j.nn.conf.NeuralNetConfiguration;
+import org.deeplearning4j.nn.conf.WorkspaceMode;
+import org.deeplearning4j.nn.conf.inputs.InputType;
+import org.deeplearning4j.nn.conf.layers.BaseLayer;
+import org.deeplearning4j.nn.conf.layers.ConvolutionLayer;
+import org.deeplearning4j.nn.conf.layers.DenseLayer;
+import org.deeplearning4j.nn.conf.layers.FeedForwardLayer;
+import org.deeplearning4j.nn.conf.layers.Layer;
+import org.deeplearning4j.nn.conf.layers.OutputLayer;
+import org.deeplearning4j.nn.multilayer.MultiLayerNetwork;
+import org.deeplearning4j.nn.params.DefaultParamInitializer;
+import org.deeplearning4j.nn.weights.WeightInit;
+import org.nd4j.linalg.activations.Activation;
+import org.nd4j.linalg.api.ndarray.INDArray;
+import org.nd4j.linalg.learning.config.Adam;
+import org.nd4j.linalg.learning.config.IUpdater;
+import org.nd4j.linalg.learning.config.Nesterovs;
+import org.nd4j.linalg.learning.config.Sgd;
+import org.nd4j.linalg.learning.regularization.L2Regularization;
+import org.nd4j.linalg.learning.regularization.Regularization;
+
+import lombok.Getter;
+import lombok.Setter;
+
+/**
+ * Configuration of the ranking neural network, see {@link PeriscopeResultRankerModule#getArchitecture()}.
+ * <p>
+ * A {@link Preset} defines the layers, while the other properties override the preset's sizes and the training
+ * hyperparameters. Unset properties fall back to the preset defaults.
+ * <p>
+ * Stored networks are checked against the configured architecture when loaded: if only hyperparameters changed, their
+ * parameters are carried over to a network with the new configuration, otherwise they are recreated.
+ */
+@Getter
+@Setter
+public class NetworkArchitecture {
+
+    static final double DEFAULT_LEARNING_RATE = 0.01;
+    static final double DEFAULT_MOMENTUM = 0.4;
+    static final double DEFAULT_L2 = 1e-5;
+
+    /**
+     * Predefined layer setups.
+     */
+    public enum Preset {
+        /** Convolution over the encoded query followed by a dense layer, as originally shipped. */
+        CONVOLUTIONAL(200, 3, 100),
+        /** Single dense hidden layer. */
+        DENSE(0, 0, 100),
+        /** Small dense hidden layer, ranking at a fraction of the CPU and memory per call. */
+        TINY(0, 0, 32);
+
+        private final int convolutionFilters;
+        private final int convolutionWidth;
+        private final int hiddenUnits;
+
+        Preset(int convolutionFilters, int convolutionWidth, int hiddenUnits) {
+            this.convolutionFilters = convolutionFilters;
+            this.convolutionWidth = convolutionWidth;
+            this.hiddenUnits = hiddenUnits;
+        }
+    }
+
+    /**
+     * Supported training algorithms.
+     */
+    public enum Updater {
+        NESTEROVS, SGD, ADAM
+    }
+
+    private Preset preset = Preset.CONVOLUTIONAL;
+
+    /**
+     * Number of convolution filters, only used by {@link Preset#CONVOLUTIONAL}.
+     */
+    private Integer convolutionFilters;
+
+    /**
+     * Number of encoded query positions each convolution filter spans, only used by {@link Preset#CONVOLUTIONAL}.
+     */
+    private Integer convolutionWidth;
+
+    /**
+     * Number of units of the last hidden layer, i.e. the number of weights per output unit.
+     */
+    private Integer hiddenUnits;
+
+    private Updater updater = Updater.NESTEROVS;
+
+    private Double learningRate;
+
+    /**
+     * Only used by {@link Updater#NESTEROVS}.
+     */
+    private Double momentum;
+
+    private Double l2;
+
+    /**
+     * Configuration of a network for the given encoder and number of output units.
+     *
+     * @param rngSeed Random number generation seed for reproducibility (e.g. during tests)
+     */
+    MultiLayerConfiguration toConfiguration(QueryEncoder queryEncoder, int outputUnits, Integer rngSeed) {
+        Preset layers = Optional.ofNullable(preset).orElse(Preset.CONVOLUTIONAL);
+
+        NeuralNetConfiguration.Builder builder = new NeuralNetConfiguration.Builder();
+        // Workspaces set to none to consume less memory
+        builder.setInferenceWorkspaceMode(WorkspaceMode.NONE);
+        builder.setTrainingWorkspaceMode(WorkspaceMode.NONE);
+        if (rngSeed != null) {
+            builder.seed(rngSeed);
+        }
+        NeuralNetConfiguration.ListBuilder listBuilder = builder.l2(Optional.ofNullable(l2).orElse(DEFAULT_L2))
+                .weightInit(WeightInit.RELU)
+                .optimizationAlgo(OptimizationAlgorithm.STOCHASTIC_GRADIENT_DESCENT)
+                .activation(Activation.TANH)
+                .updater(createUpdater())
+                .list();
+
+        int layer = 0;
+        InputType inputType = InputType.feedForward(QueryInputs.size(queryEncoder));
+        if (layers == Preset.CONVOLUTIONAL) {
+            int width = Optional.ofNullable(convolutionWidth).orElse(layers.convolutionWidth);
+            listBuilder.layer(layer++, new ConvolutionLayer.Builder(queryEncoder.getAlphabetSize(), width).nIn(1)
+                    .nOut(Optional.ofNullable(convolutionFilters).orElse(layers.convolutionFilters))
+                    // Workspace set to none to consume less memory
+                    .cudnnAlgoMode(ConvolutionLayer.AlgoMode.NO_WORKSPACE)
+                    .activation(Activation.IDENTITY)
+                    .build());
+            inputType = InputType.convolutionalFlat(queryEncoder.getAlphabetSize(), queryEncoder.getLength(), 1);
+        }
+        listBuilder.layer(layer++, new DenseLayer.Builder()
+                .nOut(Optional.ofNullable(hiddenUnits).orElse(layers.hiddenUnits))
+                .build());
+        listBuilder.layer(layer, new OutputLayer.Builder()
+                .nOut(outputUnits)
+                .activation(Activation.SOFTMAX)
+                .build());
+
+        return listBuilder.setInputType(inputType).build();
+    }
+
+    private IUpdater createUpdater() {
+        double rate = Optional.ofNullable(learningRate).orElse(DEFAULT_LEARNING_RATE);
+        switch (Optional.ofNullable(updater).orElse(Updater.NESTEROVS)) {
+        case SGD:
+            return new Sgd(rate);
+        case ADAM:
+            return new Adam(rate);
+        default:
+            return new Nesterovs(rate, Optional.ofNullable(momentum).orElse(DEFAULT_MOMENTUM));
+        }
+    }
+
+    /**
+     * Whether all layers of a network are configured as expected, regardless of its seed and training progress.
+     * <p>
+     * Only the properties set by {@link #toConfiguration(QueryEncoder, int, Integer)} are compared, rather than whole
+     * layer configurations, whose equality covers updater, activation and weight initialization objects that aren't
+     * guaranteed to be equal once serialized and read again.
+     */
+    static boolean hasSameLayers(MultiLayerConfiguration actual, MultiLayerConfiguration expected) {
+        if (actual.getConfs().size() != expected.getConfs().size()) {
+            return false;
+        }
+        for (int i = 0; i < expected.getConfs().size(); i++) {
+            if (!hasSameLayer(actual.getConf(i).getLayer(), expected.getConf(i).getLayer())) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean hasSameLayer(Layer actual, Layer expected) {
+        if (actual.getClass() != expected.getClass()) {
+            return false;
+        }
+        if (expected instanceof ConvolutionLayer) {
+            ConvolutionLayer actualConvolution = (ConvolutionLayer) actual;
+            ConvolutionLayer expectedConvolution = (ConvolutionLayer) expected;
+            if (!Arrays.equals(actualConvolution.getKernelSize(), expectedConvolution.getKernelSize())
+                    || !Arrays.equals(actualConvolution.getStride(), expectedConvolution.getStride())) {
+                return false;
+            }
+        }
+        if (expected instanceof FeedForwardLayer) {
+            FeedForwardLayer actualFeedForward = (FeedForwardLayer) actual;
+            FeedForwardLayer expectedFeedForward = (FeedForwardLayer) expected;
+            if (actualFeedForward.getNIn() != expectedFeedForward.getNIn() || actualFeedForward.getNOut() != expectedFeedForward.getNOut()) {
+                return false;
+            }
+        }
+        if (expected instanceof BaseLayer) {
+            BaseLayer actualBase = (BaseLayer) actual;
+            BaseLayer expectedBase = (BaseLayer) expected;
+            return isSameClass(actualBase.getActivationFn(), expectedBase.getActivationFn())
+                    && hasSameHyperparameters(actualBase.getIUpdater(), expectedBase.getIUpdater())
+                    && describe(actualBase.getRegularization()).equals(describe(expectedBase.getRegularization()));
+        }
+        return true;
+    }
+
+    private static boolean hasSameHyperparameters(IUpdater actual, IUpdater expected) {
+        if (!isSameClass(actual, expected)) {
+            return false;
+        }
+        if (expected == null) {
+            return true;
+        }
+        if (expected.hasLearningRate() && Double.compare(actual.getLearningRate(0, 0), expected.getLearningRate(0, 0)) != 0) {
+            return false;
+        }
+        return !(expected instanceof Nesterovs) || Double.compare(((Nesterovs) actual).getMomentum(), ((Nesterovs) expected).getMomentum()) == 0;
+    }
+
+    private static boolean isSameClass(Object actual, Object expected) {
+        return actual == null ? expected == null : expected != null && actual.getClass() == expected.getClass();
+    }
+
+    /**
+     * Kind and coefficient of each regularization.
+     */
+    private static List<String> describe(List<Regularization> regularization) {
+        return Optional.ofNullable(regularization).orElse(Collections.emptyList()).stream()
+                .map(each -> each instanceof L2Regularization ?
+                        "l2=" + ((L2Regularization) each).getL2().valueAt(0, 0) :
+                        each.getClass().getName())
+                .collect(Collectors.toList());
+    }
+
+    /**
+     * Whether two networks have the same parameters, so that those of one can be transferred to the other.
+     */
+    static boolean hasSameParameterShapes(MultiLayerNetwork actual, MultiLayerNetwork expected) {
+        return hasSameShapes(actual.paramTable(), expected.paramTable());
+    }
+
+    /**
+     * Whether two networks have the same parameters up to the number of output units, so that all but the output layer
+     * can be transferred from one to the other.
+     */
+    static boolean hasSameHiddenLayers(MultiLayerNetwork actual, MultiLayerNetwork expected) {
+        if (actual.getnLayers() != expected.getnLayers()) {
+            return false;
+        }
+        for (int i = 0; i < expected.getnLayers() - 1; i++) {
+            if (!hasSameShapes(actual.getLayer(i).paramTable(), expected.getLayer(i).paramTable())) {
+                return false;
+            }
+        }
+        return actual.getOutputLayer().getParam(DefaultParamInitializer.WEIGHT_KEY).size(0)
+                == expected.getOutputLayer().getParam(DefaultParamInitializer.WEIGHT_KEY).size(0);
+    }
+
+    /**
+     * Number of parameters of a network with the given configuration, without initializing it.
+     */
+    static long numParams(MultiLayerConfiguration configuration) {
+        long numParams = 0;
+        for (NeuralNetConfiguration layerConfiguration : configuration.getConfs()) {
+            numParams += layerConfiguration.getLayer().initializer().numParams(layerConfiguration);
+        }
+        return numParams;
+    }
+
+    private static boolean hasSameShapes(Map<String, INDArray> actualParams, Map<String, INDArray> expectedParams) {
+        return actualParams.keySet().equals(expectedParams.keySet()) && expectedParams.entrySet().stream()
+                .allMatch(entry -> Arrays.equals(entry.getValue().shape(), actualParams.get(entry.getKey()).shape()));
+    }
+}
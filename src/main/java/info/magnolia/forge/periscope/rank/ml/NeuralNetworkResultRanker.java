@@ -14,75 +14,281 @@
  */
 package info.magnolia.forge.periscope.rank.ml;
 
-import static java.util.Comparator.comparingInt;
-
 import info.magnolia.cms.security.User;
+import info.magnolia.context.MgnlContext;
+import info.magnolia.forge.periscope.rank.ml.RankingNetworkStorageStrategy.TrainingEvent;
 import info.magnolia.periscope.rank.ResultRanker;
 import info.magnolia.periscope.search.SearchResult;
 
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.List;
 import java.util.Optional;
+import java.util.PriorityQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Supplier;
 import java.util.stream.Collectors;
 import java.util.stream.IntStream;
 
 import javax.inject.Inject;
 
-import org.apache.commons.lang3.StringUtils;
-import org.deeplearning4j.nn.api.OptimizationAlgorithm;
+import org.deeplearning4j.nn.api.Layer;
+import org.deeplearning4j.nn.api.Updater;
 import org.deeplearning4j.nn.conf.MultiLayerConfiguration;
-import org.deeplearning4j.nn.conf.NeuralNetConfiguration;
-import org.deeplearning4j.nn.conf.WorkspaceMode;
-import org.deeplearning4j.nn.conf.inputs.InputType;
-import org.deeplearning4j.nn.conf.layers.ConvolutionLayer;
-import org.deeplearning4j.nn.conf.layers.DenseLayer;
-import org.deeplearning4j.nn.conf.layers.Layer;
-import org.deeplearning4j.nn.conf.layers.OutputLayer;
 import org.deeplearning4j.nn.multilayer.MultiLayerNetwork;
-import org.deeplearning4j.nn.weights.WeightInit;
-import org.jsoup.Jsoup;
-import org.nd4j.linalg.activations.Activation;
+import org.deeplearning4j.nn.params.DefaultParamInitializer;
 import org.nd4j.linalg.api.ndarray.INDArray;
-import org.nd4j.linalg.cpu.nativecpu.NDArray;
-import org.nd4j.linalg.learning.config.Nesterovs;
+import org.nd4j.linalg.factory.Nd4j;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.google.common.collect.Lists;
 
+import lombok.Value;
+
 /**
  * Generates a Neural Network in order to rank results provided by Periscope.
+ * <p>
+ * A ranker may be shared by several users bound to the same network (see
+ * {@link PeriscopeResultRankerModule#getShareRankers()}), hence it is thread-safe: changes to the network and its
+ * labels are serialized, while ranking runs concurrently.
+ * <p>
+ * Unless {@link PeriscopeResultRankerModule#getAsyncLoading() disabled}, the network is loaded in the background,
+ * once the ranker is first used or {@link #preload() preloaded}. Meanwhile results are ranked by the
+ * {@link PopularityPrior}, results added are kept to be added once loaded, and selections wait in the training queue;
+ * rankers switch over to their network at once when it's ready.
+ * <p>
+ * Unless {@link PeriscopeResultRankerModule#getLazyUpdaterState() disabled}, stored networks are loaded without their
+ * updater state, which is only restored before they are first trained or stored again.
+ * <p>
+ * With a reduced {@link PeriscopeResultRankerModule#getInferencePrecision() inference precision}, rankings read the
+ * output units of the candidate results from a {@link QuantizedOutputLayer quantized copy} of the output layer, which
+ * is taken again after each training batch.
  */
 class NeuralNetworkResultRanker implements ResultRanker {
 
     private static final Logger log = LoggerFactory.getLogger(NeuralNetworkResultRanker.class);
 
-    private static final int ASCII_CHARS = 128;
-    private static final int INPUT_DIGITS = 20;
-    private static final int INPUT_CHANNELS = INPUT_DIGITS * ASCII_CHARS;
-    private static final int LAST_HIDDEN_UNITS = 100;
+    private static final long POPULARITY_PRIOR_MAX_RESULTS = 10000;
+    /** How often results were chosen, by all users. */
+    private static final PopularityPrior POPULARITY_PRIOR = new PopularityPrior(POPULARITY_PRIOR_MAX_RESULTS);
+    /** Upper bound of selections kept for training while the network isn't loaded, the oldest ones are dropped. */
+    private static final int MAX_DEFERRED_SELECTIONS = 1000;
+
     private final RankingNetworkStorage storage;
 
-    private final MultiLayerNetwork network;
-    private final IndexedBuffer<String> resultTexts;
+    /** Set once loaded, before {@link #ready} is. */
+    private MultiLayerNetwork network;
+    /** Set once loaded, before {@link #ready} is. */
+    private IndexedBuffer<String> resultTexts;
+    /** Whether the network is loaded; switched while holding the lock on {@link #pendingResultKeys}. */
+    private volatile boolean ready = false;
+    /** Keys of results added while the network is loading. */
+    private final List<String> pendingResultKeys = new ArrayList<>();
+    /** Selections to be trained once the network is loaded, guarded by {@link #pendingResultKeys}. */
+    private final List<TrainingEvent> deferredTraining = new ArrayList<>();
+    /** Completes once the network is loaded, or failed to; {@code null} until loading is requested. */
+    private volatile CompletableFuture<Void> loading;
+    /** Background load of the network, guarded by this ranker. */
+    private LoadingExecutor.Task loadingTask;
+    /** Whether use of the network has been recorded, see {@link RankingNetworkStorage#recordUse(User)}. */
+    private final AtomicBoolean useRecorded = new AtomicBoolean(false);
     private final int outputUnits;
+    /** Number of best results sorted, {@code null} to sort all of them. */
+    private final Integer topK;
     private final User user;
+    /** Whether this ranker has been changed since it was loaded or last flushed. */
+    private final AtomicBoolean modified = new AtomicBoolean(false);
+    /** Training and adding results take the write lock, ranking takes the read lock. */
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+    private final TrainingQueue<TrainingEvent> trainingQueue;
+    private final QueryEncoder queryEncoder;
+    private final NetworkArchitecture architecture;
+    private final ResultKeyResolver keyResolver = new ResultKeyResolver();
+    private final int trainingBatchSize;
+    private final Integer rngSeed;
+    private final boolean lazyUpdaterState;
+    /** Reduced precision of the output layer copy used for ranking, {@code null} to rank by the network output. */
+    private final RankingInfoSerializer.Precision inferencePrecision;
+    /** Copy of the output layer used for ranking, if any; changed while holding the write lock. */
+    private QuantizedOutputLayer quantizedOutput;
+    /** Whether the network was loaded without its stored updater state, which is yet to be restored. */
+    private volatile boolean updaterStatePending = false;
+    /** Number of weights in front of each output unit, set once loaded. */
+    private int lastHiddenUnits;
+    /** Notified when the {@link #estimateMemoryUsage() memory usage} changes, e.g. to weigh this ranker again. */
+    private volatile Runnable memoryUsageListener = () -> { };
 
     @Inject
     NeuralNetworkResultRanker(RankingNetworkStorage storage, PeriscopeResultRankerModule module, User user) {
-        this(storage, null, Optional.ofNullable(module.getOutputUnits()).orElse(module.DEFAULT_OUTPUT_UNITS), user);
+        this(storage, module, null, user, !Boolean.FALSE.equals(module.getAsyncLoading()));
     }
 
     /**
      * @param rngSeed Random number generation seed for reproducibility (e.g. during tests)
      */
     NeuralNetworkResultRanker(RankingNetworkStorage storage, Integer rngSeed, int outputUnits, User user) {
+        this(storage, moduleWithOutputUnits(outputUnits), rngSeed, user);
+    }
+
+    /**
+     * @param rngSeed Random number generation seed for reproducibility (e.g. during tests)
+     */
+    NeuralNetworkResultRanker(RankingNetworkStorage storage, PeriscopeResultRankerModule module, Integer rngSeed, User user) {
+        this(storage, module, rngSeed, user, false);
+    }
+
+    /**
+     * @param rngSeed Random number generation seed for reproducibility (e.g. during tests)
+     * @param asyncLoading whether the network is loaded in the background rather than right away
+     */
+    NeuralNetworkResultRanker(RankingNetworkStorage storage, PeriscopeResultRankerModule module, Integer rngSeed, User user, boolean asyncLoading) {
         this.storage = storage;
-        this.outputUnits = outputUnits;
+        this.outputUnits = Optional.ofNullable(module.getOutputUnits()).orElse(PeriscopeResultRankerModule.DEFAULT_OUTPUT_UNITS);
+        this.topK = Optional.ofNullable(module.getTopK()).filter(k -> k > 0).orElse(null);
+        this.queryEncoder = Optional.ofNullable(module.getQueryEncoder()).orElseGet(AsciiQueryEncoder::new);
+        this.architecture = Optional.ofNullable(module.getArchitecture()).orElseGet(NetworkArchitecture::new);
         this.user = user;
+        this.trainingBatchSize = Optional.ofNullable(module.getTrainingBatchSize()).orElse(PeriscopeResultRankerModule.DEFAULT_TRAINING_BATCH_SIZE);
+        this.rngSeed = rngSeed;
+        this.lazyUpdaterState = !Boolean.FALSE.equals(module.getLazyUpdaterState());
+        this.inferencePrecision = module.getInferencePrecision() != RankingInfoSerializer.Precision.FP32 ? module.getInferencePrecision() : null;
+        this.trainingQueue = new TrainingQueue<>("user " + user.getName(), PeriscopeResultRankerModule.getTrainingExecutor(),
+                trainingBatchSize,
+                Optional.ofNullable(module.getTrainingMaxDelay()).orElse(PeriscopeResultRankerModule.DEFAULT_TRAINING_MAX_DELAY),
+                this::train);
+        if (!asyncLoading) {
+            load();
+            this.loading = CompletableFuture.completedFuture(null);
+        }
+    }
+
+    /**
+     * Load the network on the loading executor. Must be called while holding the lock on this ranker.
+     */
+    private CompletableFuture<Void> loadInBackground(LoadingExecutor.Priority priority) {
+        CompletableFuture<Void> loaded = new CompletableFuture<>();
+        try {
+            loadingTask = PeriscopeResultRankerModule.getLoadingExecutor().execute(() -> {
+                try {
+                    // background threads have no context of their own
+                    MgnlContext.doInSystemContext(() -> {
+                        load();
+                        return null;
+                    }, true);
+                    loaded.complete(null);
+                } catch (RuntimeException e) {
+                    log.error("Failed to load ranking neural network for user {}, it will be loaded again on the next search", user.getName(), e);
+                    loaded.completeExceptionally(e);
+                }
+            }, priority);
+        } catch (RejectedExecutionException e) {
+            loaded.completeExceptionally(e);
+        }
+        return loaded;
+    }
+
+    /**
+     * Load or create the network, then switch over to it.
+     */
+    private void load() {
         RankingNetworkStorageStrategy.RankingInfo rankingInfo = loadOrCreateState(rngSeed, user);
-        this.network = rankingInfo.getNetwork();
-        this.resultTexts = rankingInfo.getLabels();
+        List<TrainingEvent> deferred;
+        boolean changed;
+        lock.writeLock().lock();
+        try {
+            this.network = rankingInfo.getNetwork();
+            this.resultTexts = rankingInfo.getLabels();
+            this.lastHiddenUnits = (int) network.getOutputLayer().getParam(DefaultParamInitializer.WEIGHT_KEY).size(0);
+            List<TrainingEvent> pendingTraining = storage.loadPendingTraining(user);
+            if (!pendingTraining.isEmpty()) {
+                restoreUpdaterState();
+                replay(pendingTraining, trainingBatchSize);
+            }
+            refreshQuantizedOutput();
+            synchronized (pendingResultKeys) {
+                pendingResultKeys.forEach(this::addResultKey);
+                pendingResultKeys.clear();
+                deferred = new ArrayList<>(deferredTraining);
+                deferredTraining.clear();
+                ready = true;
+            }
+            changed = modified.get();
+        } finally {
+            lock.writeLock().unlock();
+        }
+        if (changed) {
+            // migrated from a previous configuration, replayed or given new results, store right away rather than on
+            // the next selection; the storage keeps the stored updater state if it's not restored yet
+            storage.persist(newRankingInfo());
+        }
+        memoryUsageListener.run();
+        trainDeferred(deferred);
+    }
+
+    /**
+     * Train selections made while the network was loading. The network is loaded already, so failures don't count as
+     * failed loads.
+     */
+    private void trainDeferred(List<TrainingEvent> deferred) {
+        int batchSize = Math.max(1, trainingBatchSize);
+        try {
+            for (int from = 0; from < deferred.size(); from += batchSize) {
+                train(deferred.subList(from, Math.min(deferred.size(), from + batchSize)));
+            }
+        } catch (RuntimeException e) {
+            log.error("Failed to train selections of user {} made while the ranking neural network was loading", user.getName(), e);
+        }
+    }
+
+    /**
+     * Start loading the network unless it's loading already, or load it again if loading it failed, e.g. because the
+     * repository was not available. An {@link LoadingExecutor.Priority#INTERACTIVE interactive} request moves a
+     * pending warm-up load ahead.
+     *
+     * @return a future completing once the network is loaded.
+     */
+    private synchronized CompletableFuture<Void> requestLoading(LoadingExecutor.Priority priority) {
+        if (loading == null || loading.isCompletedExceptionally()) {
+            loading = loadInBackground(priority);
+        } else if (!loading.isDone() && priority == LoadingExecutor.Priority.INTERACTIVE) {
+            loadingTask = PeriscopeResultRankerModule.getLoadingExecutor().prioritize(loadingTask);
+        }
+        return loading;
+    }
+
+    /**
+     * Start loading the network in the background ahead of its first use, behind all loads users are waiting for.
+     */
+    void preload() {
+        if (!ready) {
+            requestLoading(LoadingExecutor.Priority.WARM_UP);
+        }
+    }
+
+    /**
+     * Future completing once the network is loaded, {@code null} if loading wasn't requested yet.
+     */
+    CompletableFuture<Void> getLoading() {
+        return loading;
+    }
+
+    /**
+     * Module configuration for a given number of output units, training each selection right away.
+     */
+    private static PeriscopeResultRankerModule moduleWithOutputUnits(int outputUnits) {
+        PeriscopeResultRankerModule module = new PeriscopeResultRankerModule();
+        module.setOutputUnits(outputUnits);
+        module.setTrainingBatchSize(1);
+        module.setTrainingMaxDelay(0L);
+        return module;
     }
 
     /**
@@ -90,13 +296,52 @@ class NeuralNetworkResultRanker implements ResultRanker {
      */
     @Override
     public void addResults(Collection<SearchResult> results) {
-        results.stream()
-                .map(this::idFromResult)
-                .filter(o -> !resultTexts.contains(o))
-                .forEach(item -> {
-                    Optional<Integer> droppedIndex = resultTexts.add(item);
-                    droppedIndex.ifPresent(this::resetForOutputUnit);
-                });
+        if (!ready) {
+            requestLoading(LoadingExecutor.Priority.INTERACTIVE);
+            synchronized (pendingResultKeys) {
+                if (!ready) {
+                    results.stream()
+                            .map(keyResolver::keyOf)
+                            .limit(Math.max(0, outputUnits - pendingResultKeys.size()))
+                            .forEach(pendingResultKeys::add);
+                    return;
+                }
+            }
+        }
+        // most of the time all results are known already, so avoid blocking concurrent rankings
+        if (withReadLock(() -> results.stream().map(keyResolver::keyOf).allMatch(resultTexts::contains))) {
+            return;
+        }
+
+        lock.writeLock().lock();
+        try {
+            for (SearchResult result : results) {
+                String key = keyResolver.keyOf(result);
+                if (resultTexts.contains(key)) {
+                    continue;
+                }
+                // results formerly known by title take over their output unit
+                String legacyKey = keyResolver.legacyKeyOf(result);
+                if (!legacyKey.equals(key) && resultTexts.replace(legacyKey, key)) {
+                    modified.set(true);
+                    continue;
+                }
+                resultTexts.add(key).ifPresent(this::resetForOutputUnit);
+                modified.set(true);
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Add a result added while the network was loading. Must be called while holding the write lock.
+     */
+    private void addResultKey(String key) {
+        if (!resultTexts.contains(key)) {
+            resultTexts.add(key).ifPresent(this::resetForOutputUnit);
+            modified.set(true);
+        }
     }
 
     /**
@@ -104,143 +349,527 @@ class NeuralNetworkResultRanker implements ResultRanker {
      */
     private void resetForOutputUnit(int unitIndex) {
         INDArray params = network.getOutputLayer().params();
-        IntStream.range(LAST_HIDDEN_UNITS * unitIndex, LAST_HIDDEN_UNITS * (unitIndex + 1))
+        IntStream.range(lastHiddenUnits * unitIndex, lastHiddenUnits * (unitIndex + 1))
                 .forEach(i -> params.put(0, i, 0));
         network.getOutputLayer().setParams(params);
+        if (quantizedOutput != null) {
+            quantizedOutput.update(unitIndex, network.getOutputLayer().getParam(DefaultParamInitializer.WEIGHT_KEY),
+                    network.getOutputLayer().getParam(DefaultParamInitializer.BIAS_KEY));
+        }
+    }
+
+    /**
+     * Take the quantized copy of the output layer again, if ranking uses one. Must be called while holding the write
+     * lock.
+     */
+    private void refreshQuantizedOutput() {
+        if (inferencePrecision != null) {
+            quantizedOutput = QuantizedOutputLayer.copyOf(inferencePrecision, network.getOutputLayer());
+        }
     }
 
     /**
      * Injects users' selection to the Neural Network.
      *
+     * <p>Selections are queued and trained in mini-batches on a background thread, see
+     * {@link PeriscopeResultRankerModule#getTrainingBatchSize()}.
+     *
      * @param query which query was used to generate the result.
      * @param result is what user had selected with the given query.
      */
     @Override
     public void trainRanking(String query, SearchResult result) {
+        String key = keyResolver.keyOf(result);
+        POPULARITY_PRIOR.record(key);
+        trainingQueue.enqueue(new TrainingEvent(query, key));
+    }
+
+    /**
+     * Train a mini-batch of selections, record them and schedule the network to be persisted.
+     */
+    private void train(List<TrainingEvent> batch) {
+        if (!ready) {
+            // train once loaded rather than holding a training thread, kept until a load succeeds
+            boolean deferred = false;
+            synchronized (pendingResultKeys) {
+                if (!ready) {
+                    deferredTraining.addAll(batch);
+                    int dropped = deferredTraining.size() - MAX_DEFERRED_SELECTIONS;
+                    if (dropped > 0) {
+                        deferredTraining.subList(0, dropped).clear();
+                        log.warn("Dropping {} selections of user {}, the ranking neural network isn't loaded yet", dropped, user.getName());
+                    }
+                    deferred = true;
+                }
+            }
+            if (deferred) {
+                requestLoading(LoadingExecutor.Priority.INTERACTIVE);
+                return;
+            }
+        }
+        boolean grown = restoreUpdaterState();
+        List<TrainingEvent> trained;
+        RankingNetworkStorageStrategy.RankingInfo rankingInfo = null;
+        lock.writeLock().lock();
         try {
-            this.network.fit(inputToArray(query), outputToArray(idFromResult(result)));
-            this.resultTexts.touch(idFromResult(result));
-            storage.persist(new RankingNetworkStorageStrategy.RankingInfo(this.network, this.resultTexts, this.user));
+            // the updater, along with its state, is created on first training
+            boolean untrained = network.getUpdater(false) == null;
+            trained = fit(batch);
+            grown |= untrained && network.getUpdater(false) != null;
+            if (!trained.isEmpty()) {
+                modified.set(true);
+                refreshQuantizedOutput();
+                rankingInfo = newRankingInfo();
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+        if (grown) {
+            memoryUsageListener.run();
+        }
+        if (trained.isEmpty()) {
+            return;
+        }
+        // recording may write to disk, rankings don't wait for it
+        storage.recordTraining(user, trained);
+        storage.persist(rankingInfo);
+    }
+
+    /**
+     * Restore the updater state of a network loaded without it, so that training carries on with the stored momentum.
+     * The state is read before taking the write lock, so rankings go on meanwhile.
+     *
+     * @return whether the network got an updater, i.e. grew.
+     */
+    private boolean restoreUpdaterState() {
+        if (!updaterStatePending) {
+            return false;
+        }
+        Optional<INDArray> state = storage.loadUpdaterState(user);
+        lock.writeLock().lock();
+        try {
+            if (!updaterStatePending) {
+                return false;
+            }
+            Updater updater = network.getUpdater();
+            INDArray freshState = updater.getStateViewArray();
+            if (state.isPresent() && freshState != null && state.get().length() == freshState.length()) {
+                updater.setStateViewArray(network, state.get(), false);
+            } else {
+                log.debug("No matching updater state stored for the ranking network of user {}, training starts over with a fresh one", user.getName());
+            }
+            updaterStatePending = false;
+            return true;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Train a mini-batch of selections at once, stacking their input and output arrays. Must be called while holding
+     * the write lock, or before this ranker is published.
+     *
+     * @return the selections actually trained, i.e. those of known results.
+     */
+    private List<TrainingEvent> fit(List<TrainingEvent> batch) {
+        try {
+            List<TrainingEvent> knownExamples = new ArrayList<>(batch.size());
+            List<Integer> resultIndices = new ArrayList<>(batch.size());
+            for (TrainingEvent example : batch) {
+                int resultIndex = resultTexts.indexOf(example.getResultKey());
+                if (resultIndex < 0) {
+                    // in case resultTexts reach maximum outputUnits config, NN can not learn this case
+                    log.warn("Can not find result index in resultTexts, probably resultTexts reaches maximum outputUnits configuration");
+                    continue;
+                }
+                knownExamples.add(example);
+                resultIndices.add(resultIndex);
+            }
+            if (knownExamples.isEmpty()) {
+                return knownExamples;
+            }
+
+            this.network.fit(inputsToArray(knownExamples), outputsToArray(resultIndices));
+            knownExamples.forEach(example -> this.resultTexts.touch(example.getResultKey()));
+            return knownExamples;
         } catch (IllegalArgumentException e) {
             log.error("Failed to train ranking neural network", e);
+            return Collections.emptyList();
         }
     }
 
-    private String idFromResult(SearchResult result) {
-        // remove potential highlighting and such
-        return Jsoup.parse(result.getTitle()).text();
+    /**
+     * Train again selections which were recorded but never made it into the stored network, e.g. due to a crash,
+     * adding their results back first.
+     */
+    private void replay(List<TrainingEvent> events, int batchSize) {
+        log.info("Replaying {} selections missing in the stored ranking network of user {}", events.size(), user.getName());
+        events.forEach(event -> resultTexts.add(event.getResultKey()).ifPresent(this::resetForOutputUnit));
+        Lists.partition(events, Math.max(1, batchSize)).forEach(this::fit);
+        modified.set(true);
     }
 
     /**
      * Sorts the results based on the query of the user.
      * Takes into account what neural network is suggesting and does ordering according to.
+     *
+     * <p>Only the given results are scored: the hidden layers are run once, then only the output units of the known
+     * results are computed, see {@link #scoreUnits(String, int[])}. Results unknown to the network keep their original
+     * relative order and are put at the end of the list.
+     *
+     * <p>If {@link PeriscopeResultRankerModule#getTopK() topK} is set, only the best K known results are sorted and
+     * put first, all others keep their original search order.
      */
     @Override
     public Collection<SearchResult> rank(String query, Collection<SearchResult> results) {
-        List<SearchResult> tempResults = Lists.newArrayList(results);
-        INDArray resultArray = this.network.output(inputToArray(query));
-        List<String> sortedIds = outputArrayToResults(resultArray);
-        tempResults.sort(comparingInt(r -> {
-            final String id = idFromResult(r);
-            final int index = sortedIds.indexOf(id);
-            // order "known" results based on NN ranking, put others at end of list
-            return index >= 0 ? index : results.size();
-        }));
-        return tempResults;
+        if (!useRecorded.get() && useRecorded.compareAndSet(false, true)) {
+            storage.recordUse(user);
+        }
+        if (!ready) {
+            requestLoading(LoadingExecutor.Priority.INTERACTIVE);
+            return POPULARITY_PRIOR.rank(results, keyResolver::keyOf);
+        }
+        List<ScoredResult> scoredResults = withReadLock(() -> scoreResults(query, results));
+        if (topK != null && topK < scoredResults.size()) {
+            scoredResults = selectTopK(scoredResults, topK);
+        } else {
+            scoredResults.sort(ScoredResult.BY_RANK);
+        }
+        return scoredResults.stream()
+                .map(ScoredResult::getResult)
+                .collect(Collectors.toList());
     }
 
-    IndexedBuffer<String> getResultTexts() {
-        return resultTexts;
-    }
+    /**
+     * Partial selection of the best {@code k} known results, using a bounded heap whose head is the worst one kept.
+     *
+     * @return the best {@code k} known results by descending score, followed by all others in original order.
+     */
+    private List<ScoredResult> selectTopK(List<ScoredResult> scoredResults, int k) {
+        PriorityQueue<ScoredResult> best = new PriorityQueue<>(k + 1, ScoredResult.BY_RANK.reversed());
+        for (ScoredResult scoredResult : scoredResults) {
+            if (!scoredResult.isKnown()) {
+                continue;
+            }
+            best.add(scoredResult);
+            if (best.size() > k) {
+                best.poll();
+            }
+        }
 
-    int getOutputUnits() {
-        return outputUnits;
+        List<ScoredResult> selection = new ArrayList<>(best);
+        selection.sort(ScoredResult.BY_RANK);
+        boolean[] selected = new boolean[scoredResults.size()];
+        selection.forEach(scoredResult -> selected[scoredResult.getPosition()] = true);
+
+        List<ScoredResult> ranked = new ArrayList<>(scoredResults.size());
+        ranked.addAll(selection);
+        scoredResults.stream()
+                .filter(scoredResult -> !selected[scoredResult.getPosition()])
+                .forEach(ranked::add);
+        return ranked;
     }
 
     /**
-     * Encode a string into a float array. Each character is represented by a 128-length subarray where one entry at its
-     * corresponding ascii code position is 1 and everything else 0.
+     * Look up the output unit of each result once and score them all in one go.
      */
-    private INDArray inputToArray(String query) {
-        String asciiQuery = StringUtils.stripAccents(query);
+    private List<ScoredResult> scoreResults(String query, Collection<SearchResult> results) {
+        int[] units = results.stream()
+                .mapToInt(result -> resultTexts.indexOf(keyResolver.keyOf(result)))
+                .toArray();
+        float[] scores = scoreUnits(query, units);
+        List<ScoredResult> scoredResults = new ArrayList<>(results.size());
+        int position = 0;
+        for (SearchResult result : results) {
+            scoredResults.add(new ScoredResult(result, position, units[position] >= 0, scores[position]));
+            position++;
+        }
+        return scoredResults;
+    }
 
-        float[] chars = new float[INPUT_CHANNELS];
-        IntStream.range(0, INPUT_DIGITS).forEach(i -> {
-            if (asciiQuery.length() <= i) {
-                return;
-            }
+    private <T> T withReadLock(Supplier<T> supplier) {
+        lock.readLock().lock();
+        try {
+            return supplier.get();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
 
-            int asciiCode = asciiQuery.charAt(i) % ASCII_CHARS;
-            chars[i * ASCII_CHARS + asciiCode] = 1;
+    /**
+     * Persist this ranker right away if it has been changed since it was loaded, e.g. when it's evicted from memory.
+     * @return CompletableFuture serving whether this ranker was stored, false if it had nothing to store; completed
+     * exceptionally if storing it failed.
+     */
+    CompletableFuture<Boolean> flush() {
+        if (!ready) {
+            CompletableFuture<Void> current = loading;
+            if (current == null) {
+                return CompletableFuture.completedFuture(false);
+            }
+            // nothing changed before the network was loaded, but selections may be waiting for it
+            return current.handle((loaded, e) -> e == null)
+                    .thenCompose(loaded -> loaded ? flush() : CompletableFuture.completedFuture(false));
+        }
+        trainingQueue.drain();
+        if (!modified.getAndSet(false)) {
+            return CompletableFuture.completedFuture(false);
+        }
+        return storage.persistNow(newRankingInfo()).whenComplete((stored, e) -> {
+            if (e != null) {
+                // still to be stored, e.g. when flushed again on shutdown
+                modified.set(true);
+            }
         });
-        return new NDArray(chars);
     }
 
-    private INDArray outputToArray(String resultId) {
-        float[] nodes = new float[outputUnits];
+    /**
+     * Train pending selections and schedule this ranker to be persisted if it has been changed since it was loaded,
+     * superseding the persist pending for it, if any.
+     */
+    void schedulePersist() {
+        if (!ready) {
+            return;
+        }
+        trainingQueue.drain();
+        if (modified.getAndSet(false)) {
+            storage.persist(newRankingInfo());
+        }
+    }
 
-        int resultIndex = resultTexts.indexOf(resultId);
-        if (resultIndex < 0) {
-            // in case resultTexts reach maximum outputUnits config, NN can not learn this case
-            log.warn("Can not find result index in resultTexts, probably resultTexts reaches maximum outputUnits configuration");
-        } else {
-            nodes[resultIndex] = 1;
+    /**
+     * Snapshot of the network and its labels to be stored, taken while holding the read lock: storing happens on
+     * another thread meanwhile training and added results go on changing the live ones. A network whose updater state
+     * isn't restored yet has the storage keep the stored one, rather than reading it back just for storing.
+     */
+    private RankingNetworkStorageStrategy.RankingInfo newRankingInfo() {
+        return withReadLock(() -> new RankingNetworkStorageStrategy.RankingInfo(this.network.clone(), this.resultTexts.snapshot(), this.user,
+                queryEncoder.getId(), updaterStatePending));
+    }
+
+    /**
+     * Set the listener notified when the {@link #estimateMemoryUsage() memory usage} of this ranker changes, i.e. once
+     * its network is loaded and once it's first trained. It's run outside of any lock of this ranker.
+     */
+    void setMemoryUsageListener(Runnable memoryUsageListener) {
+        this.memoryUsageListener = memoryUsageListener;
+    }
+
+    /**
+     * Rough estimate of the memory held by this ranker [bytes]: network parameters, along with as many floats for
+     * gradients and for the updater state once the network is trained.
+     */
+    long estimateMemoryUsage() {
+        if (!ready) {
+            return estimateMemoryUsage(architecture, queryEncoder, outputUnits, lazyUpdaterState);
         }
+        boolean trained = network.getUpdater(false) != null;
+        long copy = quantizedOutput != null ? quantizedOutput.sizeInBytes() : 0;
+        return network.numParams() * Float.BYTES * (trained ? 3 : 1) + copy;
+    }
 
-        return new NDArray(nodes);
+    /**
+     * Rough estimate of the memory a ranker configured by the given module holds once loaded [bytes], before it's
+     * created, see {@link #estimateMemoryUsage()}.
+     */
+    static long estimateMemoryUsage(PeriscopeResultRankerModule module) {
+        return estimateMemoryUsage(Optional.ofNullable(module.getArchitecture()).orElseGet(NetworkArchitecture::new),
+                Optional.ofNullable(module.getQueryEncoder()).orElseGet(AsciiQueryEncoder::new),
+                Optional.ofNullable(module.getOutputUnits()).orElse(PeriscopeResultRankerModule.DEFAULT_OUTPUT_UNITS),
+                !Boolean.FALSE.equals(module.getLazyUpdaterState()));
     }
 
-    private List<String> outputArrayToResults(INDArray resultArray) {
-        return resultTexts.asList().stream()
-                .sorted((a, b) -> Math.round(Math.signum(resultArray.getFloat(resultTexts.indexOf(b)) - resultArray.getFloat(resultTexts.indexOf(a)))))
-                .collect(Collectors.toList());
+    private static long estimateMemoryUsage(NetworkArchitecture architecture, QueryEncoder queryEncoder, int outputUnits, boolean lazyUpdaterState) {
+        long params = NetworkArchitecture.numParams(architecture.toConfiguration(queryEncoder, outputUnits, null));
+        return params * Float.BYTES * (lazyUpdaterState ? 1 : 3);
+    }
+
+    /**
+     * Raw network output for a query, one score per output unit.
+     */
+    INDArray output(String query) {
+        MultiLayerNetwork network = this.network;
+        synchronized (network) {
+            return network.output(inputToArray(query));
+        }
+    }
+
+    /**
+     * Score some output units for a query, without computing the whole network output. The hidden layers are run once,
+     * then only the weights of the given output units are multiplied, either from the
+     * {@link QuantizedOutputLayer quantized copy} or from the output layer itself.
+     * <p>
+     * Scores are the output units' pre-activation values: they order output units the same as the network
+     * {@link #output(String) output}, the softmax being monotonic, but aren't normalized.
+     *
+     * @param units output unit indexes, negative ones aren't scored
+     * @return one score per given unit, {@link Float#NaN} for negative ones
+     */
+    float[] scoreUnits(String query, int[] units) {
+        float[] scores = new float[units.length];
+        Arrays.fill(scores, Float.NaN);
+        int[] known = Arrays.stream(units).filter(unit -> unit >= 0).toArray();
+        if (known.length == 0) {
+            return scores;
+        }
+        INDArray hidden = hiddenActivations(query);
+        if (quantizedOutput != null) {
+            float[] hiddenValues = hidden.toFloatVector();
+            for (int i = 0; i < units.length; i++) {
+                if (units[i] >= 0) {
+                    scores[i] = quantizedOutput.score(hiddenValues, units[i]);
+                }
+            }
+            return scores;
+        }
+        Layer outputLayer = network.getOutputLayer();
+        INDArray knownScores = hidden.mmul(outputLayer.getParam(DefaultParamInitializer.WEIGHT_KEY).getColumns(known))
+                .addiRowVector(outputLayer.getParam(DefaultParamInitializer.BIAS_KEY).getColumns(known));
+        int k = 0;
+        for (int i = 0; i < units.length; i++) {
+            if (units[i] >= 0) {
+                scores[i] = knownScores.getFloat(k++);
+            }
+        }
+        return scores;
+    }
+
+    /**
+     * Activations of the last hidden layer for a query, i.e. the input of the output layer. Forward passes set the
+     * input of the network and its layers, so they are run one at a time, even though rankings run concurrently.
+     */
+    private INDArray hiddenActivations(String query) {
+        INDArray input = inputToArray(query);
+        MultiLayerNetwork network = this.network;
+        synchronized (network) {
+            List<INDArray> activations = network.feedForwardToLayer(network.getnLayers() - 2, input, false);
+            return activations.get(activations.size() - 1);
+        }
+    }
+
+    IndexedBuffer<String> getResultTexts() {
+        return resultTexts;
+    }
+
+    int getOutputUnits() {
+        return outputUnits;
+    }
+
+    private INDArray inputToArray(String query) {
+        return QueryInputs.toInputArray(queryEncoder, query);
+    }
+
+    private INDArray inputsToArray(List<TrainingEvent> examples) {
+        return QueryInputs.toInputArray(queryEncoder, examples.stream()
+                .map(TrainingEvent::getQuery)
+                .collect(Collectors.toList()));
+    }
+
+    /**
+     * One row per selection, where the entry of the selected result is 1 and everything else 0.
+     */
+    private INDArray outputsToArray(List<Integer> resultIndices) {
+        INDArray outputs = Nd4j.zeros(resultIndices.size(), outputUnits);
+        IntStream.range(0, resultIndices.size()).forEach(i -> outputs.putScalar(i, resultIndices.get(i), 1));
+        return outputs;
     }
 
     private RankingNetworkStorageStrategy.RankingInfo loadOrCreateState(Integer rngSeed, User user) {
-        Optional<RankingNetworkStorageStrategy.RankingInfo> rankingInfo = storage.load(user);
+        Optional<RankingNetworkStorageStrategy.RankingInfo> rankingInfo = storage.load(user, !lazyUpdaterState);
         if (rankingInfo.isPresent()) {
             RankingNetworkStorageStrategy.RankingInfo info = rankingInfo.get();
-            if (info.getLabels().getLimit() != this.outputUnits) {
-                return new RankingNetworkStorageStrategy.RankingInfo(createNetwork(rngSeed), new IndexedBuffer<>(this.outputUnits), user);
+            // networks stored without encoder were all trained on ascii input
+            String storedEncoderId = Optional.ofNullable(info.getQueryEncoderId()).orElse(AsciiQueryEncoder.ID);
+            if (!storedEncoderId.equals(queryEncoder.getId())) {
+                log.info("Discarding ranking network of user {}, it was trained with query encoder {} instead of {}", user.getName(), storedEncoderId, queryEncoder.getId());
+                return newState(rngSeed, user);
+            }
+            MultiLayerConfiguration configuration = architecture.toConfiguration(queryEncoder, outputUnits, rngSeed);
+            if (info.getLabels().getLimit() != this.outputUnits
+                    || !NetworkArchitecture.hasSameLayers(info.getNetwork().getLayerWiseConfigurations(), configuration)) {
+                return migrateOrCreateState(info, configuration, rngSeed, user);
             }
+            updaterStatePending = lazyUpdaterState && info.getNetwork().getUpdater(false) == null;
             return info;
         }
-        return new RankingNetworkStorageStrategy.RankingInfo(createNetwork(rngSeed), new IndexedBuffer<>(this.outputUnits), user);
+        return newState(rngSeed, user);
+    }
+
+    /**
+     * Carry the parameters of a network over to the configured architecture if its hidden layers still match, e.g. if
+     * only the updater or the number of output units changed. Otherwise the network is recreated.
+     *
+     * <p>When the number of output units changed, the weights of the output units whose labels are kept are moved
+     * along with them, see {@link IndexedBuffer#resize(int)}.
+     */
+    private RankingNetworkStorageStrategy.RankingInfo migrateOrCreateState(RankingNetworkStorageStrategy.RankingInfo info, MultiLayerConfiguration configuration, Integer rngSeed, User user) {
+        MultiLayerNetwork stored = info.getNetwork();
+        MultiLayerNetwork migrated = new MultiLayerNetwork(configuration);
+        migrated.init();
+        if (!NetworkArchitecture.hasSameHiddenLayers(stored, migrated)) {
+            log.info("Discarding ranking network of user {}, its architecture no longer matches the configured one", user.getName());
+            return newState(rngSeed, user);
+        }
+
+        IndexedBuffer<String> labels = info.getLabels();
+        if (NetworkArchitecture.hasSameParameterShapes(stored, migrated)) {
+            log.info("Migrating ranking network of user {} to the configured architecture", user.getName());
+            migrated.setParams(stored.params());
+        } else {
+            log.info("Resizing ranking network of user {} from {} to {} output units", user.getName(), labels.getLimit(), outputUnits);
+            IntStream.range(0, migrated.getnLayers() - 1)
+                    .forEach(i -> migrated.getLayer(i).setParams(stored.getLayer(i).params()));
+            labels = labels.resize(outputUnits);
+            copyOutputUnits(stored, info.getLabels(), migrated, labels);
+        }
+        modified.set(true);
+        return new RankingNetworkStorageStrategy.RankingInfo(migrated, labels, user, queryEncoder.getId());
+    }
+
+    /**
+     * Copy the weights and bias of each output unit of a network to the unit of the same label in another one.
+     */
+    private static void copyOutputUnits(MultiLayerNetwork source, IndexedBuffer<String> sourceLabels, MultiLayerNetwork target, IndexedBuffer<String> targetLabels) {
+        INDArray sourceWeights = source.getOutputLayer().getParam(DefaultParamInitializer.WEIGHT_KEY);
+        INDArray sourceBias = source.getOutputLayer().getParam(DefaultParamInitializer.BIAS_KEY);
+        INDArray targetWeights = target.getOutputLayer().getParam(DefaultParamInitializer.WEIGHT_KEY).dup();
+        INDArray targetBias = target.getOutputLayer().getParam(DefaultParamInitializer.BIAS_KEY).dup();
+
+        targetLabels.forEach((targetUnit, label) -> {
+            int sourceUnit = sourceLabels.indexOf(label);
+            targetWeights.putColumn(targetUnit, sourceWeights.getColumn(sourceUnit));
+            targetBias.putScalar(targetUnit, sourceBias.getDouble(sourceUnit));
+        });
+        target.getOutputLayer().setParam(DefaultParamInitializer.WEIGHT_KEY, targetWeights);
+        target.getOutputLayer().setParam(DefaultParamInitializer.BIAS_KEY, targetBias);
+    }
+
+    private RankingNetworkStorageStrategy.RankingInfo newState(Integer rngSeed, User user) {
+        return new RankingNetworkStorageStrategy.RankingInfo(createNetwork(rngSeed), new IndexedBuffer<>(this.outputUnits), user, queryEncoder.getId());
     }
 
     private MultiLayerNetwork createNetwork(Integer rngSeed) {
-        Layer outputLayer = new OutputLayer.Builder()
-                .nOut(outputUnits)
-                .activation(Activation.SOFTMAX)
-                .build();
-
-        NeuralNetConfiguration.Builder builder = new NeuralNetConfiguration.Builder();
-        // Workspaces set to none to consume less memory
-        builder.setInferenceWorkspaceMode(WorkspaceMode.NONE);
-        builder.setTrainingWorkspaceMode(WorkspaceMode.NONE);
-        if (rngSeed != null) {
-            builder.seed(rngSeed);
-        }
-        MultiLayerConfiguration configuration = builder.l2(1e-5)
-                .weightInit(WeightInit.RELU)
-                .optimizationAlgo(OptimizationAlgorithm.STOCHASTIC_GRADIENT_DESCENT)
-                .activation(Activation.TANH)
-                .updater(new Nesterovs(0.01, 0.4))
-                .list()
-                .layer(0, new ConvolutionLayer.Builder(ASCII_CHARS, 3).nIn(1)
-                        .nOut(200)
-                        // Workspace set to none to consume less memory
-                        .cudnnAlgoMode(ConvolutionLayer.AlgoMode.NO_WORKSPACE)
-                        .activation(Activation.IDENTITY)
-                        .build())
-                .layer(1, new DenseLayer.Builder().nOut(LAST_HIDDEN_UNITS)
-                        .build())
-                .layer(2, outputLayer)
-                .setInputType(InputType.convolutionalFlat(ASCII_CHARS, INPUT_DIGITS, 1))
-                .build();
-
-        MultiLayerNetwork network = new MultiLayerNetwork(configuration);
+        MultiLayerNetwork network = new MultiLayerNetwork(architecture.toConfiguration(queryEncoder, outputUnits, rngSeed));
         network.init();
         return network;
     }
+
+    /**
+     * A search result along with its position in the original search order and its score given by the network.
+     */
+    @Value
+    private static class ScoredResult {
+
+        /**
+         * Known results first, by descending score, then unknown ones; original search order on ties.
+         */
+        static final Comparator<ScoredResult> BY_RANK = Comparator.comparing(ScoredResult::isKnown).reversed()
+                .thenComparing(Comparator.comparingDouble(ScoredResult::getScore).reversed())
+                .thenComparingInt(ScoredResult::getPosition);
+
+        SearchResult result;
+        int position;
+        boolean known;
+        float score;
+    }
 }
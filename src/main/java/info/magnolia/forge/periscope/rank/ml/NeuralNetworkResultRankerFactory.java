@@ -15,12 +15,22 @@
 package info.magnolia.forge.periscope.rank.ml;
 
 import info.magnolia.cms.beans.config.ServerConfiguration;
+import info.magnolia.cms.security.SecuritySupport;
 import info.magnolia.cms.security.User;
+import info.magnolia.cms.security.UserManager;
 import info.magnolia.objectfactory.ComponentProvider;
 import info.magnolia.periscope.PeriscopeModule;
 import info.magnolia.periscope.rank.AbstractResultRankerFactory;
 import info.magnolia.periscope.rank.ResultRanker;
 
+import java.util.HashSet;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
 import javax.inject.Inject;
 import javax.inject.Provider;
 import javax.inject.Singleton;
@@ -29,24 +39,182 @@ import lombok.extern.slf4j.Slf4j;
 
 /**
  * This factory creates a {@code NeuralNetworkResultRanker} for a given user.
+ * <p>
+ * Rankers are kept in a {@link RankerCache} by {@link RankingNetworkStorageStrategy#getStorageKey(User) storage key},
+ * so that their neural network doesn't need to be restored from storage on every request. Users bound to the same
+ * network share the same ranker, unless {@link PeriscopeResultRankerModule#getShareRankers() disabled}, in which case
+ * rankers are cached per user.
+ *
+ * @see RankerCacheConfiguration
  */
 @Singleton
 @Slf4j
 class NeuralNetworkResultRankerFactory extends AbstractResultRankerFactory {
 
+    private static final long BYTES_PER_MEGABYTE = 1024 * 1024;
+    /** Interval between evictions of idle rankers [min], so that they don't wait for the next lookup. */
+    private static final long CLEAN_UP_INTERVAL_MINUTES = 1;
+
     private final ComponentProvider componentProvider;
     private final Provider<PeriscopeModule> periscopeModuleProvider;
+    private final Provider<PeriscopeResultRankerModule> rankerModuleProvider;
+    private final RankingNetworkStorage storage;
+    private final Provider<SecuritySupport> securitySupportProvider;
+
+    private RankerCache<String, ResultRanker> rankerCache;
 
     @Inject
-    NeuralNetworkResultRankerFactory(ServerConfiguration configuration, ComponentProvider componentProvider, Provider<PeriscopeModule> periscopeModuleProvider) {
+    NeuralNetworkResultRankerFactory(ServerConfiguration configuration, ComponentProvider componentProvider, Provider<PeriscopeModule> periscopeModuleProvider,
+                                     Provider<PeriscopeResultRankerModule> rankerModuleProvider, RankingNetworkStorage storage,
+                                     Provider<SecuritySupport> securitySupportProvider) {
         super(configuration, periscopeModuleProvider);
         this.componentProvider = componentProvider;
         this.periscopeModuleProvider = periscopeModuleProvider;
+        this.rankerModuleProvider = rankerModuleProvider;
+        this.storage = storage;
+        this.securitySupportProvider = securitySupportProvider;
     }
 
     @Override
     protected ResultRanker doCreateRanker(User user) {
-        log.debug("Creating ResultRanker for user {}", user.getName());
-        return componentProvider.newInstance(ResultRanker.class, user);
+        RankerCache<String, ResultRanker> cache = getRankerCache();
+        return cache.get(getCacheKey(user), key -> {
+            log.debug("Creating ResultRanker for user {}", user.getName());
+            ResultRanker ranker = componentProvider.newInstance(ResultRanker.class, user);
+            if (ranker instanceof NeuralNetworkResultRanker) {
+                // weighed when cached, before its network is loaded and trained
+                ((NeuralNetworkResultRanker) ranker).setMemoryUsageListener(() -> cache.reweigh(key));
+            }
+            return ranker;
+        });
+    }
+
+    /**
+     * Load the networks of the most recently active users in the background, see
+     * {@link RankingNetworkStorageStrategy#getRecentUserNames(int)}, as long as their estimated memory fits into the
+     * given budget and the ranker cache. Users bound to the same network count once.
+     *
+     * @return the number of networks scheduled to be loaded.
+     */
+    int warmUp(int maxUsers, long memoryMegabytes) {
+        RankerCacheConfiguration configuration = Optional.ofNullable(rankerModuleProvider.get().getRankerCache())
+                .orElseGet(RankerCacheConfiguration::new);
+        long memoryBudget = Math.min(memoryMegabytes, configuration.getMaxMemoryMegabytes()) * BYTES_PER_MEGABYTE;
+        int maxRankers = Math.min(maxUsers, configuration.getMaxEntries());
+        UserManager userManager = securitySupportProvider.get().getUserManager();
+
+        // checked before creating a ranker, as created rankers are cached right away
+        long rankerMemoryUsage = NeuralNetworkResultRanker.estimateMemoryUsage(rankerModuleProvider.get());
+
+        Set<String> cacheKeys = new HashSet<>();
+        long memoryUsage = 0;
+        for (String userName : storage.getRecentUserNames(maxUsers)) {
+            if (cacheKeys.size() >= maxRankers || memoryUsage + rankerMemoryUsage > memoryBudget) {
+                break;
+            }
+            User user = userManager.getUser(userName);
+            if (user == null || !cacheKeys.add(getCacheKey(user))) {
+                continue;
+            }
+            ResultRanker ranker = doCreateRanker(user);
+            if (!(ranker instanceof NeuralNetworkResultRanker)) {
+                continue;
+            }
+            memoryUsage += estimateMemoryUsage(ranker);
+            ((NeuralNetworkResultRanker) ranker).preload();
+        }
+        return cacheKeys.size();
+    }
+
+    /**
+     * Have all cached rankers train their pending selections and schedule their changes to be persisted, e.g. before
+     * pending persists get flushed on shutdown.
+     */
+    void persistAll() {
+        final RankerCache<String, ResultRanker> cache;
+        synchronized (this) {
+            cache = rankerCache;
+        }
+        if (cache == null) {
+            return;
+        }
+        cache.values().stream()
+                .filter(NeuralNetworkResultRanker.class::isInstance)
+                .map(NeuralNetworkResultRanker.class::cast)
+                .forEach(NeuralNetworkResultRanker::schedulePersist);
+    }
+
+    /**
+     * Evict all cached rankers, e.g. on shutdown, so that those changed since they were last persisted get flushed.
+     * @return the eviction flushes, each serving whether the evicted ranker was stored.
+     */
+    List<CompletableFuture<Boolean>> invalidateAll() {
+        final RankerCache<String, ResultRanker> cache;
+        synchronized (this) {
+            cache = rankerCache;
+        }
+        return cache != null ? cache.invalidateAll() : Collections.emptyList();
+    }
+
+    private String getCacheKey(User user) {
+        boolean shareRankers = !Boolean.FALSE.equals(rankerModuleProvider.get().getShareRankers());
+        return shareRankers ? storage.getStorageKey(user) : user.getName();
+    }
+
+    private synchronized RankerCache<String, ResultRanker> getRankerCache() {
+        if (rankerCache == null) {
+            RankerCacheConfiguration configuration = Optional.ofNullable(rankerModuleProvider.get().getRankerCache())
+                    .orElseGet(RankerCacheConfiguration::new);
+            rankerCache = new RankerCache<>(
+                    configuration.getMaxEntries(),
+                    configuration.getMaxMemoryMegabytes() * BYTES_PER_MEGABYTE,
+                    TimeUnit.MINUTES.toNanos(configuration.getIdleTimeoutMinutes()),
+                    NeuralNetworkResultRankerFactory::estimateMemoryUsage,
+                    NeuralNetworkResultRankerFactory::onEviction,
+                    System::nanoTime);
+            if (configuration.getIdleTimeoutMinutes() > 0) {
+                scheduleCleanUp(rankerCache);
+            }
+        }
+        return rankerCache;
+    }
+
+    /**
+     * Evict idle rankers periodically, rather than only when other rankers are looked up.
+     */
+    private static void scheduleCleanUp(RankerCache<String, ResultRanker> cache) {
+        try {
+            PeriscopeResultRankerModule.getTrainingExecutor().scheduleWithFixedDelay(() -> {
+                try {
+                    cache.cleanUp();
+                } catch (RuntimeException e) {
+                    log.error("Failed to evict idle rankers", e);
+                }
+            }, CLEAN_UP_INTERVAL_MINUTES, CLEAN_UP_INTERVAL_MINUTES, TimeUnit.MINUTES);
+        } catch (RejectedExecutionException e) {
+            log.debug("Not evicting idle rankers periodically, the module is shut down");
+        }
+    }
+
+    private static long estimateMemoryUsage(ResultRanker ranker) {
+        return ranker instanceof NeuralNetworkResultRanker ? ((NeuralNetworkResultRanker) ranker).estimateMemoryUsage() : 0;
+    }
+
+    /**
+     * Flush an evicted ranker on the training executor rather than in the request thread which happened to evict it:
+     * flushing trains the selections it still has queued. Once the executor is shut down, the ranker is flushed right
+     * away.
+     */
+    private static CompletableFuture<Boolean> onEviction(ResultRanker ranker) {
+        if (!(ranker instanceof NeuralNetworkResultRanker)) {
+            return CompletableFuture.completedFuture(false);
+        }
+        NeuralNetworkResultRanker evicted = (NeuralNetworkResultRanker) ranker;
+        try {
+            return CompletableFuture.supplyAsync(evicted::flush, PeriscopeResultRankerModule.getTrainingExecutor())
+                    .thenCompose(Function.identity());
+        } catch (RejectedExecutionException e) {
+            return evicted.flush();
+        }
     }
 }
@@ -0,0 +1,58 @@
+/**
+ * This file Copyright (c) 2019 Magnolia International
+ * Ltd.  (http://www.magnolia-cms.com). All rights reserved.
+ *
+ *
+ * This program and the accompanying materials are made
+ * available under the terms of the Magnolia Network Agreement
+ * which accompanies this distribution, and is available at
+ * http://www.magnolia-cms.com/mna.html
+ *
+ * Any modifications to this file must keep this entire header
+ * intact.
+ *
+ */
+package info.magnolia.forge.periscope.rank.ml;
+
+import java.util.Locale;
+
+import org.apache.commons.lang3.StringUtils;
+
+/**
+ * {@link QueryEncoder} for lowercase ascii: queries are lowercased and stripped from accents, surrounding whitespace
+ * is trimmed. Characters which are still not ascii afterwards are all encoded as {@value #NON_ASCII_CODE}, instead of
+ * colliding with arbitrary ascii characters.
+ */
+public class NormalizedAsciiQueryEncoder implements QueryEncoder {
+
+    static final String ID = "normalized-ascii";
+    static final int NON_ASCII_CODE = 0;
+
+    @Override
+    public String getId() {
+        return ID;
+    }
+
+    @Override
+    public int getAlphabetSize() {
+        return AsciiQueryEncoder.ASCII_CHARS;
+    }
+
+    @Override
+    public int getLength() {
+        return AsciiQueryEncoder.INPUT_DIGITS;
+    }
+
+    @Override
+    public int[] encode(String query) {
+        String normalized = StringUtils.stripAccents(query.trim().toLowerCase(Locale.ROOT));
+        int digits = Math.min(normalized.length(), getLength());
+
+        int[] codes = new int[digits];
+        for (int i = 0; i < digits; i++) {
+            char c = normalized.charAt(i);
+            codes[i] = c > NON_ASCII_CODE && c < AsciiQueryEncoder.ASCII_CHARS ? c : NON_ASCII_CODE;
+        }
+        return codes;
+    }
+}
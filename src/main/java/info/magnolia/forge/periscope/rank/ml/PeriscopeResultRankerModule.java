@@ -14,17 +14,32 @@
  */
 package info.magnolia.forge.periscope.rank.ml;
 
+import info.magnolia.context.MgnlContext;
 import info.magnolia.forge.periscope.rank.ml.jcr.JcrUsernameNetworkStorageStrategy;
 import info.magnolia.module.ModuleLifecycle;
 import info.magnolia.module.ModuleLifecycleContext;
+import info.magnolia.objectfactory.Components;
+import info.magnolia.periscope.rank.ResultRankerFactory;
 
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
 import lombok.Getter;
 import lombok.Setter;
 
@@ -43,10 +58,34 @@ public class PeriscopeResultRankerModule implements ModuleLifecycle {
 
     private static final Logger log = LoggerFactory.getLogger(PeriscopeResultRankerModule.class);
 
-    // use single thread to avoid interference while saving
-    private static final ExecutorService STORING_EXECUTOR = Executors.newSingleThreadExecutor();
+    static final int DEFAULT_MAX_CONCURRENT_STORES = 2;
+
+    // bounded number of threads, so that a burst of many users storing doesn't saturate the repository
+    private static final ThreadPoolExecutor STORING_EXECUTOR = new ThreadPoolExecutor(DEFAULT_MAX_CONCURRENT_STORES, DEFAULT_MAX_CONCURRENT_STORES,
+            0L, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<>(), new ThreadFactoryBuilder().setNameFormat("periscope-ranker-storing-%d").build());
+
+    // background training of mini-batches, shared by all rankers
+    private static final ScheduledThreadPoolExecutor TRAINING_EXECUTOR = new ScheduledThreadPoolExecutor(
+            Math.max(1, Runtime.getRuntime().availableProcessors() / 2),
+            new ThreadFactoryBuilder().setNameFormat("periscope-ranker-training-%d").setDaemon(true).build());
+
+    static final int DEFAULT_MAX_CONCURRENT_LOADS = 2;
+
+    // background loading of networks, so that searches don't wait for them; users waiting go ahead of the warm-up
+    private static final LoadingExecutor LOADING_EXECUTOR = new LoadingExecutor(DEFAULT_MAX_CONCURRENT_LOADS,
+            new ThreadFactoryBuilder().setNameFormat("periscope-ranker-loading-%d").setDaemon(true).build());
+
+    // flushing the storage strategy on shutdown, abandoned once the shutdown timeout is reached
+    private static final ThreadFactory STRATEGY_FLUSH_THREADS = new ThreadFactoryBuilder().setNameFormat("periscope-ranker-strategy-flush-%d").setDaemon(true).build();
+
+    static final long DEFAULT_WARM_UP_MEMORY_MEGABYTES = 512;
+
+    static final long DEFAULT_SHUTDOWN_TIMEOUT = 30 * 1000;
+    static final int DEFAULT_SHUTDOWN_CONCURRENCY = 4;
 
     static final int DEFAULT_OUTPUT_UNITS = 10000;
+    static final int DEFAULT_TRAINING_BATCH_SIZE = 16;
+    static final long DEFAULT_TRAINING_MAX_DELAY = 500;
 
     static final RankingNetworkStorageStrategy DEFAULT_NETWORK_STORAGE_STRATEGY = new JcrUsernameNetworkStorageStrategy();
 
@@ -58,32 +97,318 @@ public class PeriscopeResultRankerModule implements ModuleLifecycle {
     @Setter
     private Integer outputUnits = DEFAULT_OUTPUT_UNITS;
 
+    /**
+     * Encoding of search queries into the network input, {@link AsciiQueryEncoder} by default. Networks trained with
+     * another encoder are discarded when loaded.
+     */
+    @Getter
+    @Setter
+    private QueryEncoder queryEncoder = new AsciiQueryEncoder();
+
+    /**
+     * Layers and training hyperparameters of the ranking networks, see {@link NetworkArchitecture}.
+     */
+    @Getter
+    @Setter
+    private NetworkArchitecture architecture = new NetworkArchitecture();
+
+    /**
+     * When set, only the best {@code topK} known results get sorted by the ranker, all others keep their search order.
+     * Unset by default, meaning all results are ranked; values below {@code 1} rank all results as well.
+     */
+    @Getter
+    @Setter
+    private Integer topK;
+
+    /**
+     * Maximum number of selections trained together in one mini-batch, defaults to {@value #DEFAULT_TRAINING_BATCH_SIZE}.
+     */
+    @Getter
+    @Setter
+    private Integer trainingBatchSize = DEFAULT_TRAINING_BATCH_SIZE;
+
+    /**
+     * Maximum delay [ms] before selections get trained, even if the batch isn't full, defaults to
+     * {@value #DEFAULT_TRAINING_MAX_DELAY}. A batch size of 1 along with no delay trains each selection right away on
+     * the request thread.
+     */
+    @Getter
+    @Setter
+    private Long trainingMaxDelay = DEFAULT_TRAINING_MAX_DELAY;
+
+    /**
+     * Maximum number of networks being stored concurrently, defaults to {@value #DEFAULT_MAX_CONCURRENT_STORES}.
+     * Networks of the same user are never stored concurrently.
+     */
+    @Getter
+    @Setter
+    private Integer maxConcurrentStores = DEFAULT_MAX_CONCURRENT_STORES;
+
+    /**
+     * Whether users bound to the same network, e.g. all users without the ranker role when using
+     * {@link info.magnolia.forge.periscope.rank.ml.jcr.JcrUserRoleNetworkStorageStrategy}, share a single ranker.
+     * Otherwise each user gets its own in-memory copy of the network. Enabled by default.
+     */
+    @Getter
+    @Setter
+    private Boolean shareRankers = true;
+
+    /**
+     * Whether networks are loaded in the background, enabled by default. Until its network is loaded, a ranker orders
+     * results by how often they were chosen by any user, so searches never wait for a network to be restored.
+     */
+    @Getter
+    @Setter
+    private Boolean asyncLoading = true;
+
+    /**
+     * Maximum number of networks being loaded concurrently in the background, defaults to
+     * {@value #DEFAULT_MAX_CONCURRENT_LOADS}.
+     */
+    @Getter
+    @Setter
+    private Integer maxConcurrentLoads = DEFAULT_MAX_CONCURRENT_LOADS;
+
+    /**
+     * Precision of the output layer weights used for ranking. With {@code FP16} or {@code INT8}, rankings score the
+     * candidate results from a reduced precision copy of the output layer, taken again after each training batch.
+     * Defaults to {@code FP32}, i.e. scoring from the output layer itself.
+     */
+    @Getter
+    @Setter
+    private RankingInfoSerializer.Precision inferencePrecision = RankingInfoSerializer.Precision.FP32;
+
+    /**
+     * Whether stored networks are loaded without their updater state, enabled by default. Rankers serving rankings
+     * only then hold about half the memory and load faster; the updater state is restored once they get trained.
+     */
+    @Getter
+    @Setter
+    private Boolean lazyUpdaterState = true;
+
+    /**
+     * Number of most recently active users whose networks are loaded in the background on startup, none by default.
+     * Users searching in the meantime get their network loaded first.
+     */
+    @Getter
+    @Setter
+    private Integer warmUpUsers = 0;
+
+    /**
+     * Estimated memory budget [MB] for the networks loaded on startup, defaults to
+     * {@value #DEFAULT_WARM_UP_MEMORY_MEGABYTES}. The {@link #getRankerCache() ranker cache} bounds still apply.
+     */
+    @Getter
+    @Setter
+    private Long warmUpMemoryMegabytes = DEFAULT_WARM_UP_MEMORY_MEGABYTES;
+
+    /**
+     * Maximum time [ms] given on shutdown to store the networks changed since they were last stored, defaults to
+     * {@value #DEFAULT_SHUTDOWN_TIMEOUT}. Networks not stored by then are dropped.
+     */
+    @Getter
+    @Setter
+    private Long shutdownTimeout = DEFAULT_SHUTDOWN_TIMEOUT;
+
+    /**
+     * Maximum number of networks being stored concurrently on shutdown, defaults to
+     * {@value #DEFAULT_SHUTDOWN_CONCURRENCY}.
+     */
+    @Getter
+    @Setter
+    private Integer shutdownConcurrency = DEFAULT_SHUTDOWN_CONCURRENCY;
+
+    @Getter
+    @Setter
+    private RankerCacheConfiguration rankerCache = new RankerCacheConfiguration();
+
 
     public static ExecutorService getStoringExecutor() {
         return STORING_EXECUTOR;
     }
 
+    static ScheduledExecutorService getTrainingExecutor() {
+        return TRAINING_EXECUTOR;
+    }
+
+    static LoadingExecutor getLoadingExecutor() {
+        return LOADING_EXECUTOR;
+    }
+
     @Override
     public void start(ModuleLifecycleContext ctx) {
         final String storageStrategyClassName = rankingNetworkStorageStrategy != null? rankingNetworkStorageStrategy.getClass().getName() : "<not defined>";
         log.info("Using rankingNetworkStorageStrategy [{}]", storageStrategyClassName);
         log.info("Using outputUnits with value [{}]", outputUnits);
+        if (queryEncoder != null) {
+            log.info("Using queryEncoder [{}]", queryEncoder.getId());
+        }
+        if (architecture != null) {
+            log.info("Using network architecture [{}] with [{}] updater", architecture.getPreset(), architecture.getUpdater());
+        }
+        if (topK != null && topK > 0) {
+            log.info("Using topK with value [{}]", topK);
+        } else if (topK != null) {
+            log.warn("Ignoring topK with value [{}], all results are ranked", topK);
+        }
+        setStoringConcurrency(Optional.ofNullable(maxConcurrentStores).orElse(DEFAULT_MAX_CONCURRENT_STORES));
+        if (!Boolean.FALSE.equals(asyncLoading)) {
+            setConcurrency(LOADING_EXECUTOR, Optional.ofNullable(maxConcurrentLoads).orElse(DEFAULT_MAX_CONCURRENT_LOADS));
+            log.info("Loading neural network ranking models in the background, up to [{}] concurrently", LOADING_EXECUTOR.getMaximumPoolSize());
+        }
+        if (warmUpUsers != null && warmUpUsers > 0) {
+            scheduleWarmUp(warmUpUsers, Optional.ofNullable(warmUpMemoryMegabytes).orElse(DEFAULT_WARM_UP_MEMORY_MEGABYTES));
+        }
+        log.info("Training selections in batches of up to [{}] within [{}] ms", trainingBatchSize, trainingMaxDelay);
+        if (rankerCache != null) {
+            log.info("Caching up to [{}] rankers within [{}] MB, evicted after [{}] minutes idle",
+                    rankerCache.getMaxEntries(), rankerCache.getMaxMemoryMegabytes(), rankerCache.getIdleTimeoutMinutes());
+        }
+    }
+
+    /**
+     * Load the networks of the most recently active users in the background, behind any load a user is waiting for.
+     */
+    private static void scheduleWarmUp(int users, long memoryMegabytes) {
+        log.info("Warming up neural network ranking models of up to [{}] recently active users within [{}] MB", users, memoryMegabytes);
+        LOADING_EXECUTOR.execute(() -> {
+            try {
+                MgnlContext.doInSystemContext(() -> {
+                    ResultRankerFactory rankerFactory = Components.getComponent(ResultRankerFactory.class);
+                    if (rankerFactory instanceof NeuralNetworkResultRankerFactory) {
+                        int warmedUp = ((NeuralNetworkResultRankerFactory) rankerFactory).warmUp(users, memoryMegabytes);
+                        log.info("Scheduled warm-up of [{}] neural network ranking models", warmedUp);
+                    }
+                    return null;
+                }, true);
+            } catch (RuntimeException e) {
+                log.error("Failed to warm up neural network ranking models", e);
+            }
+        }, LoadingExecutor.Priority.WARM_UP);
+    }
+
+    private static void setStoringConcurrency(int threads) {
+        setConcurrency(STORING_EXECUTOR, threads);
+        log.info("Using up to [{}] threads for storing neural network ranking models", STORING_EXECUTOR.getMaximumPoolSize());
+    }
+
+    private static void setConcurrency(ThreadPoolExecutor executor, int threads) {
+        int concurrency = Math.max(1, threads);
+        // core pool size must never exceed maximum pool size, hence the order
+        if (concurrency > executor.getMaximumPoolSize()) {
+            executor.setMaximumPoolSize(concurrency);
+            executor.setCorePoolSize(concurrency);
+        } else {
+            executor.setCorePoolSize(concurrency);
+            executor.setMaximumPoolSize(concurrency);
+        }
     }
 
     @Override
     public void stop(ModuleLifecycleContext ctx) {
         if (ctx.getPhase() == ModuleLifecycleContext.PHASE_SYSTEM_SHUTDOWN) {
-            log.info("Shutting down thread executor for neural network ranking model results persistence...");
-            STORING_EXECUTOR.shutdown();
-            try {
-                // allow jobs currently executing to finish if possible
-                if (!STORING_EXECUTOR.awaitTermination(2000, TimeUnit.MILLISECONDS)) {
-                    STORING_EXECUTOR.shutdownNow();
-                }
-            } catch (InterruptedException e) {
-                STORING_EXECUTOR.shutdownNow();
+            log.info("Shutting down thread executors for neural network ranking loading and training...");
+            LOADING_EXECUTOR.shutdownNow();
+            TRAINING_EXECUTOR.shutdown();
+
+            long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(Optional.ofNullable(shutdownTimeout).orElse(DEFAULT_SHUTDOWN_TIMEOUT));
+            flushPendingNetworks(deadline);
+        }
+    }
+
+    /**
+     * Store all networks changed since they were last stored, with bounded concurrency, until the given deadline.
+     */
+    private void flushPendingNetworks(long deadline) {
+        ResultRankerFactory rankerFactory = null;
+        RankingNetworkStorage storage = null;
+        try {
+            setStoringConcurrency(Optional.ofNullable(shutdownConcurrency).orElse(DEFAULT_SHUTDOWN_CONCURRENCY));
+            rankerFactory = Components.getComponent(ResultRankerFactory.class);
+            storage = Components.getComponent(RankingNetworkStorage.class);
+        } catch (RuntimeException e) {
+            log.error("Failed to flush pending neural network ranking models", e);
+        }
+        flushPendingNetworks(rankerFactory, storage, STORING_EXECUTOR, deadline);
+    }
+
+    /**
+     * Selections still queued for training are trained first, then debounced persists and flushes of the evicted
+     * rankers are executed right away on the given executor, which is shut down. Networks held back by the storage
+     * strategy, e.g. {@link info.magnolia.forge.periscope.rank.ml.fs.JournalingNetworkStorageStrategy}, are stored
+     * last, until the deadline.
+     *
+     * @return the number of persists and flushes which stored their network successfully.
+     */
+    static long flushPendingNetworks(ResultRankerFactory rankerFactory, RankingNetworkStorage storage, ExecutorService storingExecutor, long deadline) {
+        List<CompletableFuture<Boolean>> flushes = new ArrayList<>();
+        try {
+            if (rankerFactory instanceof NeuralNetworkResultRankerFactory) {
+                ((NeuralNetworkResultRankerFactory) rankerFactory).persistAll();
+                // rankers changed in the meantime are stored right away
+                flushes.addAll(((NeuralNetworkResultRankerFactory) rankerFactory).invalidateAll());
+            }
+            if (storage != null) {
+                flushes.addAll(storage.flushPending());
             }
+        } catch (RuntimeException e) {
+            log.error("Failed to flush pending neural network ranking models", e);
         }
 
+        log.info("Shutting down thread executor for neural network ranking model results persistence, storing [{}] pending models...", flushes.size());
+        storingExecutor.shutdown();
+        try {
+            // allow pending and currently executing jobs to finish until the deadline
+            if (!storingExecutor.awaitTermination(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS)) {
+                storingExecutor.shutdownNow();
+            }
+        } catch (InterruptedException e) {
+            storingExecutor.shutdownNow();
+            Thread.currentThread().interrupt();
+        }
+
+        // flushes which failed or didn't run until the deadline count as dropped, those which had nothing to store as neither
+        long flushed = flushes.stream()
+                .filter(flush -> flush.handle((stored, e) -> e == null && stored).getNow(false))
+                .count();
+        long dropped = flushes.stream()
+                .filter(flush -> !flush.isDone() || flush.isCompletedExceptionally())
+                .count();
+        log.info("Flushed [{}] neural network ranking models on shutdown, dropped [{}]", flushed, dropped);
+
+        if (storage != null) {
+            flushStrategy(storage, deadline);
+        }
+        return flushed;
+    }
+
+    /**
+     * Store the networks held back by the storage strategy until the deadline, then have the strategy release its
+     * resources once it's done storing.
+     */
+    private static void flushStrategy(RankingNetworkStorage storage, long deadline) {
+        long remaining = deadline - System.nanoTime();
+        if (remaining <= 0) {
+            log.warn("Shutdown timeout reached, leaving neural network ranking models held back by the storage strategy to it");
+            storage.stopStrategy();
+            return;
+        }
+
+        CompletableFuture<Integer> strategyFlush = CompletableFuture.supplyAsync(storage::flushStrategy,
+                runnable -> STRATEGY_FLUSH_THREADS.newThread(runnable).start());
+        try {
+            int stored = strategyFlush.get(remaining, TimeUnit.NANOSECONDS);
+            if (stored > 0) {
+                log.info("Stored [{}] neural network ranking models held back by the storage strategy", stored);
+            }
+        } catch (TimeoutException e) {
+            log.warn("Shutdown timeout reached while storing neural network ranking models held back by the storage strategy, leaving the remaining ones to it");
+        } catch (ExecutionException e) {
+            log.error("Failed to flush ranking neural networks held back by the storage strategy", e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        // not stopping the strategy while it's still storing
+        strategyFlush.whenComplete((stored, e) -> storage.stopStrategy());
     }
 }
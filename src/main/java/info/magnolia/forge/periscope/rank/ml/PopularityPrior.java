@@ -0,0 +1,72 @@
+/**
+ * This file Copyright (c) 2019 Magnolia International
+ * Ltd.  (http://www.magnolia-cms.com). All rights reserved.
+ *
+ *
+ * This program and the accompanying materials are made
+ * available under the terms of the Magnolia Network Agreement
+ * which accompanies this distribution, and is available at
+ * http://www.magnolia-cms.com/mna.html
+ *
+ * Any modifications to this file must keep this entire header
+ * intact.
+ *
+ */
+package info.magnolia.forge.periscope.rank.ml;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
+/**
+ * How often results were chosen, regardless of query and user. Serves as a cheap ranking until a user's network is
+ * loaded, see {@link NeuralNetworkResultRanker}.
+ * <p>
+ * Counts are kept in memory only, for a bounded number of results; the least recently chosen ones are dropped first.
+ */
+class PopularityPrior {
+
+    private final Cache<String, LongAdder> counts;
+
+    PopularityPrior(long maxResults) {
+        this.counts = CacheBuilder.newBuilder().maximumSize(maxResults).build();
+    }
+
+    void record(String resultKey) {
+        counts.asMap().computeIfAbsent(resultKey, key -> new LongAdder()).increment();
+    }
+
+    long count(String resultKey) {
+        LongAdder count = counts.getIfPresent(resultKey);
+        return count != null ? count.sum() : 0;
+    }
+
+    /**
+     * Order results by descending count; results with equal counts, e.g. never chosen ones, keep their order.
+     */
+    <T> List<T> rank(Iterable<T> results, Function<T, String> keyOf) {
+        List<Counted<T>> counted = new ArrayList<>();
+        results.forEach(result -> counted.add(new Counted<>(result, count(keyOf.apply(result)))));
+        // stable sort
+        counted.sort(Comparator.comparingLong((Counted<T> c) -> c.count).reversed());
+
+        List<T> ranked = new ArrayList<>(counted.size());
+        counted.forEach(c -> ranked.add(c.result));
+        return ranked;
+    }
+
+    private static final class Counted<T> {
+        private final T result;
+        private final long count;
+
+        private Counted(T result, long count) {
+            this.result = result;
+            this.count = count;
+        }
+    }
+}
@@ -0,0 +1,194 @@
+/**
+ * This file Copyright (c) 2019 Magnolia International
+ * Ltd.  (http://www.magnolia-cms.com). All rights reserved.
+ *
+ *
+ * This program and the accompanying materials are made
+ * available under the terms of the Magnolia Network Agreement
+ * which accompanies this distribution, and is available at
+ * http://www.magnolia-cms.com/mna.html
+ *
+ * Any modifications to this file must keep this entire header
+ * intact.
+ *
+ */
+package info.magnolia.forge.periscope.rank.ml;
+
+import info.magnolia.forge.periscope.rank.ml.RankingInfoSerializer.Precision;
+
+import org.deeplearning4j.nn.api.Layer;
+import org.deeplearning4j.nn.params.DefaultParamInitializer;
+import org.nd4j.linalg.api.ndarray.INDArray;
+import org.nd4j.linalg.factory.Nd4j;
+
+/**
+ * Copy of the output layer weights in reduced precision, laid out per output unit, to score single output units from
+ * the activations of the last hidden layer.
+ * <p>
+ * Scores are the output units' pre-activation values. Softmax being monotonic, they order output units the same as
+ * the network output does, up to the precision of the copy. {@link Precision#INT8} weights are scaled per output unit,
+ * {@link Precision#FP16} ones are half-precision floats; biases are kept as floats.
+ * <p>
+ * The copy doesn't follow changes to the network, it needs to be {@link #copyOf(Precision, INDArray, INDArray) taken}
+ * again or {@link #update(int, INDArray, INDArray) updated} per output unit.
+ */
+abstract class QuantizedOutputLayer {
+
+    /** Number of weights per output unit, i.e. activations of the last hidden layer. */
+    final int inputs;
+    final float[] bias;
+
+    private QuantizedOutputLayer(int inputs, int outputs) {
+        this.inputs = inputs;
+        this.bias = new float[outputs];
+    }
+
+    /**
+     * Copy the weights and bias of an output layer.
+     *
+     * @param precision either {@link Precision#FP16} or {@link Precision#INT8}
+     */
+    static QuantizedOutputLayer copyOf(Precision precision, INDArray weights, INDArray bias) {
+        int inputs = (int) weights.size(0);
+        int outputs = (int) weights.size(1);
+        QuantizedOutputLayer copy;
+        switch (precision) {
+        case FP16:
+            copy = new Fp16(inputs, outputs);
+            break;
+        case INT8:
+            copy = new Int8(inputs, outputs);
+            break;
+        default:
+            throw new IllegalArgumentException("No quantized copy for precision " + precision);
+        }
+        // column-major, so that the weights of each output unit are consecutive
+        float[] unitWeights = Nd4j.toFlattened('f', weights).toFloatVector();
+        float[] biasValues = bias.toFloatVector();
+        for (int unit = 0; unit < outputs; unit++) {
+            copy.set(unit, unitWeights, unit * inputs, biasValues[unit]);
+        }
+        return copy;
+    }
+
+    /**
+     * Copy the output layer of a network.
+     */
+    static QuantizedOutputLayer copyOf(Precision precision, Layer outputLayer) {
+        return copyOf(precision, outputLayer.getParam(DefaultParamInitializer.WEIGHT_KEY), outputLayer.getParam(DefaultParamInitializer.BIAS_KEY));
+    }
+
+    /**
+     * Copy the weights and bias of a single output unit again, e.g. after it's been reset.
+     */
+    void update(int unit, INDArray weights, INDArray bias) {
+        set(unit, weights.getColumn(unit).dup().toFloatVector(), 0, bias.getFloat(unit));
+    }
+
+    /**
+     * Pre-activation value of an output unit, given the activations of the last hidden layer.
+     */
+    abstract float score(float[] hidden, int unit);
+
+    /**
+     * Approximate memory held by this copy [bytes].
+     */
+    abstract long sizeInBytes();
+
+    /**
+     * Set the weights of an output unit from {@link #inputs} values starting at an offset.
+     */
+    abstract void set(int unit, float[] weights, int offset, float bias);
+
+    /**
+     * Half-precision weights, see {@link RankingInfoSerializer#toHalf(float)}.
+     */
+    private static final class Fp16 extends QuantizedOutputLayer {
+
+        /** Float value of each half-precision bit pattern, so that scoring doesn't decode weights one by one. */
+        private static final float[] HALF_TO_FLOAT = new float[1 << 16];
+
+        static {
+            for (int bits = 0; bits < HALF_TO_FLOAT.length; bits++) {
+                HALF_TO_FLOAT[bits] = RankingInfoSerializer.fromHalf((short) bits);
+            }
+        }
+
+        private final short[] weights;
+
+        private Fp16(int inputs, int outputs) {
+            super(inputs, outputs);
+            this.weights = new short[inputs * outputs];
+        }
+
+        @Override
+        void set(int unit, float[] unitWeights, int offset, float unitBias) {
+            int from = unit * inputs;
+            for (int i = 0; i < inputs; i++) {
+                weights[from + i] = RankingInfoSerializer.toHalf(unitWeights[offset + i]);
+            }
+            bias[unit] = unitBias;
+        }
+
+        @Override
+        float score(float[] hidden, int unit) {
+            int from = unit * inputs;
+            float sum = bias[unit];
+            for (int i = 0; i < inputs; i++) {
+                sum += hidden[i] * HALF_TO_FLOAT[weights[from + i] & 0xffff];
+            }
+            return sum;
+        }
+
+        @Override
+        long sizeInBytes() {
+            return (long) weights.length * Short.BYTES + (long) bias.length * Float.BYTES;
+        }
+    }
+
+    /**
+     * Weights as bytes, scaled per output unit so that its largest absolute weight maps to {@link Byte#MAX_VALUE}.
+     */
+    private static final class Int8 extends QuantizedOutputLayer {
+
+        private final byte[] weights;
+        private final float[] scales;
+
+        private Int8(int inputs, int outputs) {
+            super(inputs, outputs);
+            this.weights = new byte[inputs * outputs];
+            this.scales = new float[outputs];
+        }
+
+        @Override
+        void set(int unit, float[] unitWeights, int offset, float unitBias) {
+            float maxAbs = 0;
+            for (int i = 0; i < inputs; i++) {
+                maxAbs = Math.max(maxAbs, Math.abs(unitWeights[offset + i]));
+            }
+            float scale = maxAbs / Byte.MAX_VALUE;
+            int from = unit * inputs;
+            for (int i = 0; i < inputs; i++) {
+                weights[from + i] = scale == 0 ? 0 : (byte) Math.round(unitWeights[offset + i] / scale);
+            }
+            scales[unit] = scale;
+            bias[unit] = unitBias;
+        }
+
+        @Override
+        float score(float[] hidden, int unit) {
+            int from = unit * inputs;
+            float sum = 0;
+            for (int i = 0; i < inputs; i++) {
+                sum += hidden[i] * weights[from + i];
+            }
+            // scaling once per unit rather than per weight
+            return bias[unit] + sum * scales[unit];
+        }
+
+        @Override
+        long sizeInBytes() {
+            return weights.length + (long) (scales.length + bias.length) * Float.BYTES;
+        }
+    }
+}
@@ -0,0 +1,50 @@
+/**
+ * This file Copyright (c) 2019 Magnolia International
+ * Ltd.  (http://www.magnolia-cms.com). All rights reserved.
+ *
+ *
+ * This program and the accompanying materials are made
+ * available under the terms of the Magnolia Network Agreement
+ * which accompanies this distribution, and is available at
+ * http://www.magnolia-cms.com/mna.html
+ *
+ * Any modifications to this file must keep this entire header
+ * intact.
+ *
+ */
+package info.magnolia.forge.periscope.rank.ml;
+
+/**
+ * Allows to plugin different ways of encoding search queries into the input of the ranking neural network.
+ *
+ * <p>A query is encoded into up to {@link #getLength()} positions, each holding one code out of
+ * {@link #getAlphabetSize()}. The network then sees each position as a one-hot subarray of that size.
+ *
+ * <p>Networks are bound to the encoder they were trained with: its {@link #getId() id} is stored along with the
+ * network, and networks trained with another encoder are discarded when loaded.
+ *
+ * @see PeriscopeResultRankerModule#setQueryEncoder(QueryEncoder)
+ */
+public interface QueryEncoder {
+
+    /**
+     * Identifier of this encoder, including all settings which affect encoding.
+     */
+    String getId();
+
+    /**
+     * Number of distinct codes per position.
+     */
+    int getAlphabetSize();
+
+    /**
+     * Maximum number of positions a query is encoded into.
+     */
+    int getLength();
+
+    /**
+     * Encode a query into one code per position, each within {@code [0, alphabetSize)}. The returned array may be
+     * shorter than {@link #getLength()} for short queries, but never longer.
+     */
+    int[] encode(String query);
+}
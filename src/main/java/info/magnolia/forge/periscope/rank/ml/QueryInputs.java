@@ -0,0 +1,106 @@
+/**
+ * This file Copyright (c) 2019 Magnolia International
+ * Ltd.  (http://www.magnolia-cms.com). All rights reserved.
+ *
+ *
+ * This program and the accompanying materials are made
+ * available under the terms of the Magnolia Network Agreement
+ * which accompanies this distribution, and is available at
+ * http://www.magnolia-cms.com/mna.html
+ *
+ * Any modifications to this file must keep this entire header
+ * intact.
+ *
+ */
+package info.magnolia.forge.periscope.rank.ml;
+
+import java.util.List;
+
+import org.nd4j.linalg.api.ndarray.INDArray;
+import org.nd4j.linalg.factory.Nd4j;
+
+/**
+ * Turns queries encoded by a {@link QueryEncoder} into input arrays of the ranking neural network. Each position is
+ * represented by an {@code alphabetSize}-length subarray where the entry of its code is 1 and everything else 0.
+ * <p>
+ * Since at most {@code length} entries are non-zero, queries are handled sparsely as the indices of those entries.
+ * Single-query input arrays are reused per thread: only the entries of the previous query get reset.
+ */
+final class QueryInputs {
+
+    // shared by all rankers, since a thread only ranks one query at a time
+    private static final ThreadLocal<InputBuffer> INPUT_BUFFERS = new ThreadLocal<>();
+
+    private QueryInputs() {
+    }
+
+    /**
+     * Number of input entries of networks fed by the given encoder.
+     */
+    static int size(QueryEncoder encoder) {
+        return encoder.getAlphabetSize() * encoder.getLength();
+    }
+
+    /**
+     * Indices of the non-zero entries of the encoded query.
+     */
+    static int[] indices(QueryEncoder encoder, String query) {
+        int[] indices = encoder.encode(query);
+        for (int i = 0; i < indices.length; i++) {
+            indices[i] += i * encoder.getAlphabetSize();
+        }
+        return indices;
+    }
+
+    /**
+     * Input array for a single query. The array is reused by subsequent calls on the same thread, so it must not be
+     * held on to.
+     */
+    static INDArray toInputArray(QueryEncoder encoder, String query) {
+        int size = size(encoder);
+        InputBuffer buffer = INPUT_BUFFERS.get();
+        if (buffer == null || buffer.size != size) {
+            buffer = new InputBuffer(size);
+            INPUT_BUFFERS.set(buffer);
+        }
+        return buffer.set(indices(encoder, query));
+    }
+
+    /**
+     * Input array with one row per query.
+     */
+    static INDArray toInputArray(QueryEncoder encoder, List<String> queries) {
+        INDArray inputs = Nd4j.zeros(queries.size(), size(encoder));
+        for (int row = 0; row < queries.size(); row++) {
+            for (int index : indices(encoder, queries.get(row))) {
+                inputs.putScalar(row, index, 1);
+            }
+        }
+        return inputs;
+    }
+
+    /**
+     * Single-row input array along with the indices currently set to 1.
+     */
+    private static class InputBuffer {
+        private final int size;
+        private final INDArray array;
+        private int[] indices = new int[0];
+
+        private InputBuffer(int size) {
+            this.size = size;
+            this.array = Nd4j.zeros(1, size);
+        }
+
+        private INDArray set(int[] newIndices) {
+            for (int index : indices) {
+                array.putScalar(index, 0);
+            }
+            for (int index : newIndices) {
+                array.putScalar(index, 1);
+            }
+            indices = newIndices;
+            return array;
+        }
+    }
+}
@@ -0,0 +1,290 @@
+/**
+ * This file Copyright (c) 2019 Magnolia International
+ * Ltd.  (http://www.magnolia-cms.com). All rights reserved.
+ *
+ *
+ * This program and the accompanying materials are made
+ * available under the terms of the Magnolia Network Agreement
+ * which accompanies this distribution, and is available at
+ * http://www.magnolia-cms.com/mna.html
+ *
+ * Any modifications to this file must keep this entire header
+ * intact.
+ *
+ */
+package info.magnolia.forge.periscope.rank.ml;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.function.Function;
+import java.util.function.LongSupplier;
+import java.util.function.ToLongFunction;
+
+/**
+ * Cache with LRU policy, bounded by number of entries and by total weight, which also evicts entries that have not
+ * been accessed for a given time.
+ * <p>
+ * Values are loaded outside of the cache lock, so loading an expensive value doesn't block lookups of other keys.
+ * Concurrent lookups of a key which is still loading wait for that single load. Evicted values are handed over to an
+ * eviction listener, e.g. for flushing them to a storage; it's expected to hand the work over to another thread rather
+ * than doing it in the thread which happened to evict. A key evicted while its flush is in flight is loaded again only
+ * once that flush completes, so the new value doesn't start from stale state.
+ * <p>
+ * Values are weighed once loaded; values whose weight changes afterwards, e.g. rankers whose network is loaded in the
+ * background, need to be {@link #reweigh(Object) weighed again}.
+ *
+ * @param <K> type of keys
+ * @param <V> type of cached values
+ */
+class RankerCache<K, V> {
+
+    private final int maxEntries;
+    private final long maxWeight;
+    /** Idle time after which entries get evicted [ns], non-positive for no idle eviction. */
+    private final long idleTimeout;
+    private final ToLongFunction<V> weigher;
+    /** Flushes an evicted value, completing with whether it was stored. */
+    private final Function<V, CompletableFuture<Boolean>> evictionListener;
+    private final LongSupplier ticker;
+
+    private final LinkedHashMap<K, CacheEntry<V>> entries = new LinkedHashMap<>(16, 0.75f, true);
+    /** Completing once the flush of the last value evicted for a key is done, as long as it's in flight. */
+    private final Map<K, CompletableFuture<Void>> evicting = new HashMap<>();
+    private long totalWeight = 0;
+
+    /**
+     * @param evictionListener flushes an evicted value, completing with whether it was stored
+     * @param idleTimeout idle time after which entries get evicted [ns], non-positive for no idle eviction
+     * @param ticker source of time [ns]
+     */
+    RankerCache(int maxEntries, long maxWeight, long idleTimeout, ToLongFunction<V> weigher, Function<V, CompletableFuture<Boolean>> evictionListener, LongSupplier ticker) {
+        this.maxEntries = maxEntries;
+        this.maxWeight = maxWeight;
+        this.idleTimeout = idleTimeout;
+        this.weigher = weigher;
+        this.evictionListener = evictionListener;
+        this.ticker = ticker;
+    }
+
+    /**
+     * Get the value cached for a key, loading it if needed, once a previous value evicted for it is flushed.
+     */
+    V get(K key, Function<? super K, ? extends V> loader) {
+        final CacheEntry<V> entry;
+        final boolean load;
+        final CompletableFuture<Void> eviction;
+        final List<Eviction<K, V>> evicted;
+        synchronized (this) {
+            evicted = collectIdle();
+            CacheEntry<V> existing = entries.get(key);
+            load = existing == null;
+            entry = load ? new CacheEntry<>() : existing;
+            if (load) {
+                entries.put(key, entry);
+            }
+            eviction = load ? evicting.get(key) : null;
+            entry.lastAccess = ticker.getAsLong();
+        }
+        notifyEvicted(evicted);
+
+        if (load) {
+            if (eviction != null) {
+                // completes normally, whether the flush succeeded or not
+                eviction.join();
+            }
+            return load(key, entry, loader);
+        }
+
+        try {
+            return entry.value.join();
+        } catch (CompletionException e) {
+            throw e.getCause() instanceof RuntimeException ? (RuntimeException) e.getCause() : e;
+        }
+    }
+
+    private V load(K key, CacheEntry<V> entry, Function<? super K, ? extends V> loader) {
+        final V value;
+        try {
+            value = loader.apply(key);
+        } catch (RuntimeException e) {
+            synchronized (this) {
+                entries.remove(key, entry);
+            }
+            entry.value.completeExceptionally(e);
+            throw e;
+        }
+
+        final List<Eviction<K, V>> evicted;
+        synchronized (this) {
+            entry.weight = weigher.applyAsLong(value);
+            totalWeight += entry.weight;
+            entry.value.complete(value);
+            evicted = collectOverflow(key);
+        }
+        notifyEvicted(evicted);
+        return value;
+    }
+
+    /**
+     * Weigh the value cached for a key again, e.g. once it grew after being loaded, evicting other entries if the cache
+     * no longer fits its limits. This counts as an access of the entry; keys which aren't loaded are ignored.
+     */
+    void reweigh(K key) {
+        final List<Eviction<K, V>> evicted;
+        synchronized (this) {
+            CacheEntry<V> entry = entries.get(key);
+            if (entry == null || !entry.value.isDone() || entry.value.isCompletedExceptionally()) {
+                return;
+            }
+            // the lookup moved the entry to the most recently used ones, keep idle eviction in that order
+            entry.lastAccess = ticker.getAsLong();
+            long weight = weigher.applyAsLong(entry.value.join());
+            totalWeight += weight - entry.weight;
+            entry.weight = weight;
+            evicted = collectOverflow(key);
+        }
+        notifyEvicted(evicted);
+    }
+
+    /**
+     * Evict entries that have been idle for too long.
+     */
+    void cleanUp() {
+        final List<Eviction<K, V>> evicted;
+        synchronized (this) {
+            evicted = collectIdle();
+        }
+        notifyEvicted(evicted);
+    }
+
+    /**
+     * Evict all loaded entries.
+     *
+     * @return the flushes of the evicted values, see the eviction listener.
+     */
+    List<CompletableFuture<Boolean>> invalidateAll() {
+        final List<Eviction<K, V>> evicted = new ArrayList<>();
+        synchronized (this) {
+            Iterator<Map.Entry<K, CacheEntry<V>>> iterator = entries.entrySet().iterator();
+            while (iterator.hasNext()) {
+                Map.Entry<K, CacheEntry<V>> entry = iterator.next();
+                if (entry.getValue().value.isDone()) {
+                    evicted.add(remove(iterator, entry));
+                }
+            }
+        }
+        return notifyEvicted(evicted);
+    }
+
+    /**
+     * Values of all loaded entries, without touching them.
+     */
+    synchronized List<V> values() {
+        List<V> values = new ArrayList<>(entries.size());
+        entries.values().stream()
+                .filter(entry -> entry.value.isDone() && !entry.value.isCompletedExceptionally())
+                .forEach(entry -> values.add(entry.value.join()));
+        return values;
+    }
+
+    synchronized int size() {
+        return entries.size();
+    }
+
+    synchronized long weight() {
+        return totalWeight;
+    }
+
+    private List<Eviction<K, V>> collectIdle() {
+        List<Eviction<K, V>> evicted = new ArrayList<>();
+        if (idleTimeout <= 0) {
+            return evicted;
+        }
+        long now = ticker.getAsLong();
+        // entries are in access order, so we can stop at the first one which is not idle
+        Iterator<Map.Entry<K, CacheEntry<V>>> iterator = entries.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Map.Entry<K, CacheEntry<V>> entry = iterator.next();
+            if (now - entry.getValue().lastAccess < idleTimeout) {
+                break;
+            }
+            if (entry.getValue().value.isDone()) {
+                evicted.add(remove(iterator, entry));
+            }
+        }
+        return evicted;
+    }
+
+    private List<Eviction<K, V>> collectOverflow(K loadedKey) {
+        List<Eviction<K, V>> evicted = new ArrayList<>();
+        Iterator<Map.Entry<K, CacheEntry<V>>> iterator = entries.entrySet().iterator();
+        while ((entries.size() > maxEntries || totalWeight > maxWeight) && iterator.hasNext()) {
+            Map.Entry<K, CacheEntry<V>> eldest = iterator.next();
+            // keep the value that was just loaded, even if it exceeds the limits on its own
+            if (eldest.getKey().equals(loadedKey) || !eldest.getValue().value.isDone()) {
+                continue;
+            }
+            evicted.add(remove(iterator, eldest));
+        }
+        return evicted;
+    }
+
+    /**
+     * Remove an entry, registering its flush as in flight so that the key isn't loaded again before it's done. Any
+     * previous flush of the key is done, as loading the removed entry waited for it.
+     */
+    private Eviction<K, V> remove(Iterator<?> iterator, Map.Entry<K, CacheEntry<V>> entry) {
+        iterator.remove();
+        totalWeight -= entry.getValue().weight;
+        Eviction<K, V> eviction = new Eviction<>(entry.getKey(), entry.getValue().value.join());
+        evicting.put(eviction.key, eviction.flushed);
+        return eviction;
+    }
+
+    /**
+     * Hand evicted values over to the eviction listener, outside of the cache lock.
+     */
+    private List<CompletableFuture<Boolean>> notifyEvicted(List<Eviction<K, V>> evicted) {
+        List<CompletableFuture<Boolean>> flushes = new ArrayList<>(evicted.size());
+        for (Eviction<K, V> eviction : evicted) {
+            CompletableFuture<Boolean> flush;
+            try {
+                flush = evictionListener.apply(eviction.value);
+            } catch (RuntimeException e) {
+                flush = new CompletableFuture<>();
+                flush.completeExceptionally(e);
+            }
+            flush.whenComplete((stored, e) -> {
+                synchronized (this) {
+                    evicting.remove(eviction.key, eviction.flushed);
+                }
+                eviction.flushed.complete(null);
+            });
+            flushes.add(flush);
+        }
+        return flushes;
+    }
+
+    private static class CacheEntry<V> {
+        private final CompletableFuture<V> value = new CompletableFuture<>();
+        private long lastAccess;
+        private long weight;
+    }
+
+    private static class Eviction<K, V> {
+        private final K key;
+        private final V value;
+        private final CompletableFuture<Void> flushed = new CompletableFuture<>();
+
+        private Eviction(K key, V value) {
+            this.key = key;
+            this.value = value;
+        }
+    }
+}
@@ -0,0 +1,47 @@
+/**
+ * This file Copyright (c) 2019 Magnolia International
+ * Ltd.  (http://www.magnolia-cms.com). All rights reserved.
+ *
+ *
+ * This program and the accompanying materials are made
+ * available under the terms of the Magnolia Network Agreement
+ * which accompanies this distribution, and is available at
+ * http://www.magnolia-cms.com/mna.html
+ *
+ * Any modifications to this file must keep this entire header
+ * intact.
+ *
+ */
+package info.magnolia.forge.periscope.rank.ml;
+
+import lombok.Getter;
+import lombok.Setter;
+
+/**
+ * Configuration of the cache keeping loaded rankers in memory, see {@link PeriscopeResultRankerModule#getRankerCache()}.
+ * <p>
+ * Loading a ranker means restoring its whole neural network from storage, so keeping recently used ones around avoids
+ * doing so on every search. Rankers are evicted by LRU policy once either {@link #getMaxEntries()} or
+ * {@link #getMaxMemoryMegabytes()} is exceeded, or after having been idle for {@link #getIdleTimeoutMinutes()}.
+ * Evicted rankers which have been trained in the meantime are flushed to storage.
+ */
+@Getter
+@Setter
+public class RankerCacheConfiguration {
+
+    static final int DEFAULT_MAX_ENTRIES = 100;
+    static final long DEFAULT_MAX_MEMORY_MEGABYTES = 2048;
+    static final long DEFAULT_IDLE_TIMEOUT_MINUTES = 30;
+
+    private int maxEntries = DEFAULT_MAX_ENTRIES;
+
+    /**
+     * Estimated memory budget for all cached rankers.
+     */
+    private long maxMemoryMegabytes = DEFAULT_MAX_MEMORY_MEGABYTES;
+
+    /**
+     * Non-positive values disable idle eviction.
+     */
+    private long idleTimeoutMinutes = DEFAULT_IDLE_TIMEOUT_MINUTES;
+}
@@ -0,0 +1,489 @@
+/**
+ * This file Copyright (c) 2019 Magnolia International
+ * Ltd.  (http://www.magnolia-cms.com). All rights reserved.
+ *
+ *
+ * This program and the accompanying materials are made
+ * available under the terms of the Magnolia Network Agreement
+ * which accompanies this distribution, and is available at
+ * http://www.magnolia-cms.com/mna.html
+ *
+ * Any modifications to this file must keep this entire header
+ * intact.
+ *
+ */
+package info.magnolia.forge.periscope.rank.ml;
+
+import info.magnolia.cms.security.User;
+import info.magnolia.forge.periscope.rank.ml.RankingNetworkStorageStrategy.RankingInfo;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.input.CloseShieldInputStream;
+import org.apache.commons.io.output.CloseShieldOutputStream;
+import org.deeplearning4j.nn.api.Updater;
+import org.deeplearning4j.nn.conf.MultiLayerConfiguration;
+import org.deeplearning4j.nn.multilayer.MultiLayerNetwork;
+import org.deeplearning4j.util.ModelSerializer;
+import org.nd4j.linalg.api.ndarray.INDArray;
+import org.nd4j.linalg.factory.Nd4j;
+
+import lombok.Getter;
+import lombok.Setter;
+
+/**
+ * Compact, versioned binary format for {@link RankingInfo}.
+ * <p>
+ * The format starts with the {@link #MAGIC} bytes, the format version, flags and the parameter precision, followed by
+ * the (optionally deflated) payload: network configuration as json, query encoder id, parameters, optionally the
+ * updater state, and optionally the labels along with their change tracking state. Strings are length-prefixed UTF-8.
+ * <p>
+ * Parameters are stored as raw floats, as half-precision floats or as bytes scaled per block of
+ * {@value #INT8_BLOCK_SIZE} values, trading precision for size. The updater state is always stored as raw floats;
+ * leaving it out makes the network restart its momentum when trained again. Networks meant for ranking only can be
+ * {@link #read(InputStream, User, boolean) read} without it, and their updater state {@link #readUpdaterState(InputStream)
+ * read} once they get trained; when written again meanwhile, the stored updater state is handed over to be written
+ * along, see {@link #write(RankingInfo, INDArray, boolean, OutputStream)}.
+ * <p>
+ * Networks written by {@link ModelSerializer}, i.e. zip files, are still read.
+ */
+@Getter
+@Setter
+public class RankingInfoSerializer {
+
+    /**
+     * Encodings of network parameters.
+     */
+    public enum Precision {
+        FP32, FP16, INT8
+    }
+
+    /**
+     * Compression of the payload.
+     */
+    public enum Compression {
+        NONE, DEFLATE
+    }
+
+    static final byte[] MAGIC = {'P', 'R', 'N', 'K'};
+    static final int FORMAT_VERSION = 1;
+    static final int INT8_BLOCK_SIZE = 256;
+
+    private static final int FLAG_DEFLATED = 1;
+    private static final int FLAG_UPDATER_STATE = 1 << 1;
+    private static final int FLAG_LABELS = 1 << 2;
+    private static final byte[] ZIP_MAGIC = {'P', 'K'};
+    private static final int CONFIGURATION_SIZE_ALLOWANCE = 16 * 1024;
+
+    private Precision precision = Precision.FP32;
+    private Compression compression = Compression.NONE;
+    private boolean includeUpdaterState = true;
+
+    /**
+     * Write a network along with its query encoder id, and its labels if requested. The user isn't written.
+     */
+    public void write(RankingInfo rankingInfo, boolean includeLabels, OutputStream stream) throws IOException {
+        write(rankingInfo, null, includeLabels, stream);
+    }
+
+    /**
+     * Write a network along with its query encoder id, and its labels if requested. The user isn't written.
+     *
+     * @param storedUpdaterState updater state written for a network without updater whose stored state is
+     * {@link RankingInfo#isKeepStoredUpdaterState() kept}, see {@link #readUpdaterState(InputStream)}; may be
+     * {@code null}.
+     */
+    public void write(RankingInfo rankingInfo, INDArray storedUpdaterState, boolean includeLabels, OutputStream stream) throws IOException {
+        MultiLayerNetwork network = rankingInfo.getNetwork();
+        INDArray updaterState = updaterStateOf(rankingInfo, storedUpdaterState);
+        int flags = (compression == Compression.DEFLATE ? FLAG_DEFLATED : 0)
+                | (updaterState != null ? FLAG_UPDATER_STATE : 0)
+                | (includeLabels ? FLAG_LABELS : 0);
+
+        DataOutputStream header = new DataOutputStream(new CloseShieldOutputStream(stream));
+        header.write(MAGIC);
+        header.writeByte(FORMAT_VERSION);
+        header.writeByte(flags);
+        header.writeByte(precision.ordinal());
+        header.flush();
+
+        Deflater deflater = compression == Compression.DEFLATE ? new Deflater(Deflater.BEST_SPEED) : null;
+        OutputStream payloadStream = new CloseShieldOutputStream(stream);
+        if (deflater != null) {
+            payloadStream = new DeflaterOutputStream(payloadStream, deflater);
+        }
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(payloadStream))) {
+            writeString(out, network.getLayerWiseConfigurations().toJson());
+            writeString(out, rankingInfo.getQueryEncoderId());
+            writeParams(out, network.params().toFloatVector());
+            if (updaterState != null) {
+                writeFloats(out, updaterState.toFloatVector());
+            }
+            if (includeLabels) {
+                writeLabels(out, rankingInfo.getLabels());
+            }
+        } finally {
+            if (deflater != null) {
+                deflater.end();
+            }
+        }
+    }
+
+    /**
+     * Estimate how many bytes {@link #write(RankingInfo, boolean, OutputStream) writing} a network without its labels
+     * takes, from its number of parameters, the precision and its updater state, so buffers can be sized once up front.
+     * Deflated networks are estimated at their uncompressed size.
+     */
+    public long estimateSize(RankingInfo rankingInfo) {
+        return estimateSize(rankingInfo, null);
+    }
+
+    /**
+     * Estimate how many bytes {@link #write(RankingInfo, INDArray, boolean, OutputStream) writing} a network without
+     * its labels takes, along with the given stored updater state if it's written.
+     */
+    public long estimateSize(RankingInfo rankingInfo, INDArray storedUpdaterState) {
+        long size = MAGIC.length + 3 + CONFIGURATION_SIZE_ALLOWANCE + paramsSize(rankingInfo.getNetwork().numParams());
+        INDArray updaterState = updaterStateOf(rankingInfo, storedUpdaterState);
+        if (updaterState != null) {
+            size += Integer.BYTES + updaterState.length() * Float.BYTES;
+        }
+        return size;
+    }
+
+    /**
+     * Updater state to write, if any. Networks read without updater state, or never trained, have no updater yet; none
+     * is created just for writing.
+     */
+    private INDArray updaterStateOf(RankingInfo rankingInfo, INDArray storedUpdaterState) {
+        if (!includeUpdaterState) {
+            return null;
+        }
+        Updater updater = rankingInfo.getNetwork().getUpdater(false);
+        if (updater != null) {
+            return updater.getStateViewArray();
+        }
+        return rankingInfo.isKeepStoredUpdaterState() ? storedUpdaterState : null;
+    }
+
+    /**
+     * Read a network along with its updater state, streaming. Labels are {@code null} if they weren't written along.
+     */
+    public RankingInfo read(InputStream stream, User user) throws IOException {
+        return read(stream, user, true);
+    }
+
+    /**
+     * Read a network, streaming. Labels are {@code null} if they weren't written along.
+     *
+     * @param withUpdaterState whether to restore the updater state, if stored; networks read without it have no updater
+     * until they are trained, which roughly halves their memory.
+     */
+    public RankingInfo read(InputStream stream, User user, boolean withUpdaterState) throws IOException {
+        BufferedInputStream in = new BufferedInputStream(new CloseShieldInputStream(stream));
+        if (isZip(in)) {
+            return new RankingInfo(ModelSerializer.restoreMultiLayerNetwork(in, withUpdaterState), null, user);
+        }
+
+        DataInputStream header = new DataInputStream(in);
+        int flags = readFlags(header);
+        Precision storedPrecision = readPrecision(header);
+
+        try (DataInputStream data = payload(in, flags)) {
+            MultiLayerConfiguration configuration = MultiLayerConfiguration.fromJson(readString(data));
+            String queryEncoderId = readString(data);
+            float[] params = readParams(data, storedPrecision);
+
+            MultiLayerNetwork network = new MultiLayerNetwork(configuration);
+            network.init(Nd4j.create(params, new long[]{1, params.length}, 'c'), false);
+            if ((flags & FLAG_UPDATER_STATE) != 0) {
+                if (withUpdaterState) {
+                    float[] state = readFloats(data);
+                    network.getUpdater().setStateViewArray(network, Nd4j.create(state, new long[]{1, state.length}, 'c'), false);
+                } else {
+                    skipFully(data, (long) data.readInt() * Float.BYTES);
+                }
+            }
+            IndexedBuffer<String> labels = (flags & FLAG_LABELS) != 0 ? readLabels(data) : null;
+            return new RankingInfo(network, labels, user, queryEncoderId);
+        }
+    }
+
+    /**
+     * Read only the updater state of a network, skipping over its parameters.
+     *
+     * @return the updater state, {@code null} if it wasn't written along.
+     */
+    public INDArray readUpdaterState(InputStream stream) throws IOException {
+        BufferedInputStream in = new BufferedInputStream(new CloseShieldInputStream(stream));
+        if (isZip(in)) {
+            Updater updater = ModelSerializer.restoreMultiLayerNetwork(in, true).getUpdater(false);
+            return updater != null ? updater.getStateViewArray() : null;
+        }
+
+        DataInputStream header = new DataInputStream(in);
+        int flags = readFlags(header);
+        Precision storedPrecision = readPrecision(header);
+        if ((flags & FLAG_UPDATER_STATE) == 0) {
+            return null;
+        }
+
+        try (DataInputStream data = payload(in, flags)) {
+            readString(data);
+            readString(data);
+            skipParams(data, storedPrecision);
+            float[] state = readFloats(data);
+            return Nd4j.create(state, new long[]{1, state.length}, 'c');
+        }
+    }
+
+    /**
+     * Whether the stream holds a network written by {@link ModelSerializer}, otherwise it's checked to start with the
+     * {@link #MAGIC} bytes, which are consumed.
+     */
+    private static boolean isZip(BufferedInputStream in) throws IOException {
+        in.mark(MAGIC.length);
+        byte[] magic = new byte[MAGIC.length];
+        int read = IOUtils.read(in, magic);
+        if (read >= ZIP_MAGIC.length && magic[0] == ZIP_MAGIC[0] && magic[1] == ZIP_MAGIC[1]) {
+            in.reset();
+            return true;
+        }
+        if (read != MAGIC.length || !Arrays.equals(magic, MAGIC)) {
+            throw new IOException("Not a serialized ranking network");
+        }
+        return false;
+    }
+
+    private static int readFlags(DataInputStream header) throws IOException {
+        int version = header.readUnsignedByte();
+        if (version != FORMAT_VERSION) {
+            throw new IOException("Unsupported ranking network format version " + version);
+        }
+        return header.readUnsignedByte();
+    }
+
+    private static Precision readPrecision(DataInputStream header) throws IOException {
+        int ordinal = header.readUnsignedByte();
+        if (ordinal >= Precision.values().length) {
+            throw new IOException("Unsupported ranking network precision " + ordinal);
+        }
+        return Precision.values()[ordinal];
+    }
+
+    private static DataInputStream payload(InputStream in, int flags) {
+        return new DataInputStream((flags & FLAG_DEFLATED) != 0 ? new InflaterInputStream(in) : in);
+    }
+
+    private void writeParams(DataOutputStream out, float[] params) throws IOException {
+        out.writeInt(params.length);
+        switch (precision) {
+        case FP16:
+            for (float param : params) {
+                out.writeShort(toHalf(param));
+            }
+            break;
+        case INT8:
+            for (int from = 0; from < params.length; from += INT8_BLOCK_SIZE) {
+                int to = Math.min(params.length, from + INT8_BLOCK_SIZE);
+                float maxAbs = 0;
+                for (int i = from; i < to; i++) {
+                    maxAbs = Math.max(maxAbs, Math.abs(params[i]));
+                }
+                float scale = maxAbs / Byte.MAX_VALUE;
+                out.writeFloat(scale);
+                for (int i = from; i < to; i++) {
+                    out.writeByte(scale == 0 ? 0 : Math.round(params[i] / scale));
+                }
+            }
+            break;
+        default:
+            for (float param : params) {
+                out.writeFloat(param);
+            }
+        }
+    }
+
+    private long paramsSize(long count) {
+        switch (precision) {
+        case FP16:
+            return Integer.BYTES + count * 2;
+        case INT8:
+            return Integer.BYTES + (count + INT8_BLOCK_SIZE - 1) / INT8_BLOCK_SIZE * Float.BYTES + count;
+        default:
+            return Integer.BYTES + count * Float.BYTES;
+        }
+    }
+
+    private static float[] readParams(DataInputStream in, Precision precision) throws IOException {
+        float[] params = new float[in.readInt()];
+        switch (precision) {
+        case FP16:
+            for (int i = 0; i < params.length; i++) {
+                params[i] = fromHalf(in.readShort());
+            }
+            break;
+        case INT8:
+            for (int from = 0; from < params.length; from += INT8_BLOCK_SIZE) {
+                float scale = in.readFloat();
+                for (int i = from; i < Math.min(params.length, from + INT8_BLOCK_SIZE); i++) {
+                    params[i] = in.readByte() * scale;
+                }
+            }
+            break;
+        default:
+            for (int i = 0; i < params.length; i++) {
+                params[i] = in.readFloat();
+            }
+        }
+        return params;
+    }
+
+    private static void skipParams(DataInputStream in, Precision precision) throws IOException {
+        long count = in.readInt();
+        switch (precision) {
+        case FP16:
+            skipFully(in, count * 2);
+            break;
+        case INT8:
+            long blocks = (count + INT8_BLOCK_SIZE - 1) / INT8_BLOCK_SIZE;
+            skipFully(in, blocks * Float.BYTES + count);
+            break;
+        default:
+            skipFully(in, count * Float.BYTES);
+        }
+    }
+
+    private static void skipFully(DataInputStream in, long bytes) throws IOException {
+        long skipped = IOUtils.skip(in, bytes);
+        if (skipped != bytes) {
+            throw new EOFException("Ranking network ended after " + skipped + " of " + bytes + " skipped bytes");
+        }
+    }
+
+    private static void writeFloats(DataOutputStream out, float[] values) throws IOException {
+        out.writeInt(values.length);
+        for (float value : values) {
+            out.writeFloat(value);
+        }
+    }
+
+    private static float[] readFloats(DataInputStream in) throws IOException {
+        float[] values = new float[in.readInt()];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = in.readFloat();
+        }
+        return values;
+    }
+
+    private static void writeLabels(DataOutputStream out, IndexedBuffer<String> labels) throws IOException {
+        // read the version first, so that concurrent changes are considered newer than what's written
+        long version = labels.getVersion();
+        int size = labels.size();
+        writeString(out, labels.getId());
+        out.writeInt(labels.getLimit());
+        out.writeLong(version);
+        out.writeInt(size);
+        for (int index = 0; index < size; index++) {
+            writeString(out, labels.labelAt(index));
+            out.writeLong(labels.lastUseAt(index));
+        }
+    }
+
+    private static IndexedBuffer<String> readLabels(DataInputStream in) throws IOException {
+        String id = readString(in);
+        int limit = in.readInt();
+        long version = in.readLong();
+        int size = in.readInt();
+        List<String> labels = new ArrayList<>(size);
+        long[] lastUse = new long[size];
+        for (int index = 0; index < size; index++) {
+            labels.add(readString(in));
+            lastUse[index] = in.readLong();
+        }
+        return new IndexedBuffer<>(id, limit, labels, lastUse, version);
+    }
+
+    /**
+     * Length-prefixed UTF-8, a negative length standing for {@code null}.
+     */
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        if (value == null) {
+            out.writeInt(-1);
+            return;
+        }
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * IEEE 754 half-precision bits of a float, rounding to nearest. Finite values beyond the half-precision range
+     * saturate to its largest value rather than overflowing to infinity.
+     */
+    static short toHalf(float value) {
+        int bits = Float.floatToIntBits(value);
+        int sign = (bits >>> 16) & 0x8000;
+        int rounded = (bits & 0x7fffffff) + 0x1000;
+        if ((bits & 0x7fffffff) >= 0x7f800000) {
+            // infinity or NaN
+            return (short) (sign | ((bits & 0x7fffffff) > 0x7f800000 ? 0x7e00 : 0x7c00));
+        }
+        if (rounded >= 0x47800000) {
+            return (short) (sign | 0x7bff);
+        }
+        if (rounded >= 0x38800000) {
+            // normalized
+            return (short) (sign | ((rounded - 0x38000000) >>> 13));
+        }
+        if (rounded < 0x33000000) {
+            // too small for subnormals
+            return (short) sign;
+        }
+        // subnormal
+        int exponent = (bits & 0x7fffffff) >>> 23;
+        int mantissa = (bits & 0x7fffff) | 0x800000;
+        return (short) (sign | ((mantissa + (0x800000 >>> (exponent - 102))) >>> (126 - exponent)));
+    }
+
+    static float fromHalf(short half) {
+        int bits = half & 0xffff;
+        int sign = (bits & 0x8000) << 16;
+        int exponent = (bits >>> 10) & 0x1f;
+        int mantissa = bits & 0x3ff;
+        if (exponent == 0x1f) {
+            return Float.intBitsToFloat(sign | 0x7f800000 | (mantissa << 13));
+        }
+        if (exponent == 0) {
+            // zero or subnormal
+            float value = mantissa / 1024f / 16384f;
+            return sign == 0 ? value : -value;
+        }
+        return Float.intBitsToFloat(sign | ((exponent + 112) << 23) | (mantissa << 13));
+    }
+}
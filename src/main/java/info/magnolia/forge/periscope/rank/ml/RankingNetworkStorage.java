@@ -16,20 +16,30 @@ package info.magnolia.forge.periscope.rank.ml;
 
 import info.magnolia.cms.security.User;
 
+import java.util.Collections;
+import java.util.List;
 import java.util.Optional;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.RejectedExecutionException;
 
 import javax.inject.Inject;
+import javax.inject.Singleton;
 
+import org.nd4j.linalg.api.ndarray.INDArray;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 /**
  * Persistence utility for {@link NeuralNetworkResultRanker}.
  * Different {@link RankingNetworkStorageStrategy storage strategies} can be plugged in.
+ * <p>
+ * Persisting is debounced per {@link RankingNetworkStorageStrategy#getStorageKey(User) storage key}, so that
+ * networks of different users don't supersede each other.
  *
  * @see PeriscopeResultRankerModule#setRankingNetworkStorageStrategy(RankingNetworkStorageStrategy)
  */
+@Singleton
 class RankingNetworkStorage {
 
     private static final Logger log = LoggerFactory.getLogger(RankingNetworkStorage.class);
@@ -59,18 +69,122 @@ class RankingNetworkStorage {
     /**
      * Persist some ranking information.
      * @return CompletableFuture serving a boolean whether this version was actually stored or obsoleted by a more
-     * recent version (due to debouncing).
+     * recent version (due to debouncing); completed exceptionally if storing it failed.
      */
     CompletableFuture<Boolean> persist(RankingNetworkStorageStrategy.RankingInfo rankingInfo) {
-        return debouncer.debounce(() -> {
+        return debouncer.debounce(networkStorageStrategy.getStorageKey(rankingInfo.getUser()), () -> {
             try {
                 networkStorageStrategy.store(rankingInfo);
             } catch (RankingNetworkStorageException e) {
-                log.error("Failed to persist ranking neural network", e);
+                throw new CompletionException("Failed to persist ranking neural network", e);
             }
         });
     }
 
+    /**
+     * Persist some ranking information right away, bypassing debouncing, e.g. when a ranker is evicted from memory.
+     * @return CompletableFuture serving true once this version is stored; completed exceptionally if storing it failed.
+     */
+    CompletableFuture<Boolean> persistNow(RankingNetworkStorageStrategy.RankingInfo rankingInfo) {
+        return CompletableFuture.supplyAsync(() -> {
+            try {
+                networkStorageStrategy.store(rankingInfo);
+                return true;
+            } catch (RankingNetworkStorageException e) {
+                log.error("Failed to persist ranking neural network", e);
+                throw new CompletionException("Failed to persist ranking neural network", e);
+            }
+        }, PeriscopeResultRankerModule.getStoringExecutor());
+    }
+
+    /**
+     * Record trained selections, see {@link RankingNetworkStorageStrategy#recordTraining(User, List)}. Failures are
+     * logged only, as the selections are trained already.
+     */
+    void recordTraining(User user, List<RankingNetworkStorageStrategy.TrainingEvent> events) {
+        try {
+            networkStorageStrategy.recordTraining(user, events);
+        } catch (RankingNetworkStorageException e) {
+            log.error("Failed to record training of ranking neural network", e);
+        }
+    }
+
+    List<RankingNetworkStorageStrategy.TrainingEvent> loadPendingTraining(User user) {
+        try {
+            return networkStorageStrategy.loadPendingTraining(user);
+        } catch (RankingNetworkStorageException e) {
+            log.error("Failed to load pending training of ranking neural network for user {}", user.getName(), e);
+            return Collections.emptyList();
+        }
+    }
+
+    /**
+     * Record that a user is using their network, see {@link RankingNetworkStorageStrategy#recordUse(User)}, on the
+     * storing executor rather than on the request thread. Failures are logged only.
+     */
+    void recordUse(User user) {
+        try {
+            PeriscopeResultRankerModule.getStoringExecutor().execute(() -> {
+                try {
+                    networkStorageStrategy.recordUse(user);
+                } catch (RankingNetworkStorageException e) {
+                    log.warn("Failed to record use of ranking neural network for user {}", user.getName(), e);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            log.debug("Not recording use of ranking neural network for user {}, storing is shut down", user.getName());
+        }
+    }
+
+    List<String> getRecentUserNames(int limit) {
+        try {
+            return networkStorageStrategy.getRecentUserNames(limit);
+        } catch (RankingNetworkStorageException e) {
+            log.error("Failed to find recently active users of ranking neural networks", e);
+            return Collections.emptyList();
+        }
+    }
+
+    /**
+     * Hand all debounced persists over to the storing executor right away, e.g. on shutdown; persists requested from
+     * now on aren't debounced anymore.
+     *
+     * @return futures of the pending and running persists, serving {@code true} once they were executed, completed
+     * exceptionally if they failed.
+     */
+    List<CompletableFuture<Boolean>> flushPending() {
+        return debouncer.flush();
+    }
+
+    /**
+     * Have the storage strategy store the networks it holds back, if any, see {@link RankingNetworkStorageStrategy#flush()}.
+     *
+     * @return the number of networks stored.
+     */
+    int flushStrategy() {
+        try {
+            return networkStorageStrategy.flush();
+        } catch (RankingNetworkStorageException e) {
+            log.error("Failed to flush ranking neural networks held back by the storage strategy", e);
+            return 0;
+        }
+    }
+
+    /**
+     * Have the storage strategy release its resources, see {@link RankingNetworkStorageStrategy#stop()}.
+     */
+    void stopStrategy() {
+        try {
+            networkStorageStrategy.stop();
+        } catch (RuntimeException e) {
+            log.error("Failed to stop ranking neural network storage strategy", e);
+        }
+    }
+
+    String getStorageKey(User user) {
+        return networkStorageStrategy.getStorageKey(user);
+    }
+
     Optional<RankingNetworkStorageStrategy.RankingInfo> load(User user) {
         try {
             return networkStorageStrategy.load(user);
@@ -78,4 +192,32 @@ class RankingNetworkStorage {
             throw new IllegalStateException("Failed to load ranking neural network for user " + user.getName(), e);
         }
     }
+
+    /**
+     * @param withUpdaterState whether the network is loaded entirely, or for ranking only, see
+     * {@link RankingNetworkStorageStrategy#loadForInference(User)}.
+     */
+    Optional<RankingNetworkStorageStrategy.RankingInfo> load(User user, boolean withUpdaterState) {
+        if (withUpdaterState) {
+            return load(user);
+        }
+        try {
+            return networkStorageStrategy.loadForInference(user);
+        } catch (RankingNetworkStorageException e) {
+            throw new IllegalStateException("Failed to load ranking neural network for user " + user.getName(), e);
+        }
+    }
+
+    /**
+     * Updater state of the stored network of a user; empty if there's none or it fails to load, as training can
+     * start over with a fresh updater state.
+     */
+    Optional<INDArray> loadUpdaterState(User user) {
+        try {
+            return networkStorageStrategy.loadUpdaterState(user);
+        } catch (RankingNetworkStorageException e) {
+            log.error("Failed to load updater state of ranking neural network for user {}", user.getName(), e);
+            return Optional.empty();
+        }
+    }
 }
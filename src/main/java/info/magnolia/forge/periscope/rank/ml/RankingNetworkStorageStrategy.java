@@ -16,10 +16,15 @@ package info.magnolia.forge.periscope.rank.ml;
 
 import info.magnolia.cms.security.User;
 
+import java.util.Collections;
+import java.util.List;
 import java.util.Optional;
 
+import org.deeplearning4j.nn.api.Updater;
 import org.deeplearning4j.nn.multilayer.MultiLayerNetwork;
+import org.nd4j.linalg.api.ndarray.INDArray;
 
+import lombok.AllArgsConstructor;
 import lombok.Value;
 
 /**
@@ -30,17 +35,119 @@ import lombok.Value;
  */
 public interface RankingNetworkStorageStrategy {
 
+    /**
+     * Store a network along with its labels. Rankers hand over snapshots, which they don't change afterwards, so
+     * strategies may keep them, e.g. to store them later.
+     */
     void store(RankingInfo rankingInfo) throws RankingNetworkStorageException;
 
     Optional<RankingInfo> load(User user) throws RankingNetworkStorageException;
 
     /**
-     * Container for information around ranking. That is, a neural network, corresponding labels and a user.
+     * Load a network for ranking only, leaving out its updater state if possible, see
+     * {@link #loadUpdaterState(User)}. Loads it entirely by default.
+     */
+    default Optional<RankingInfo> loadForInference(User user) throws RankingNetworkStorageException {
+        return load(user);
+    }
+
+    /**
+     * Updater state of the stored network of a user, to train a network {@link #loadForInference(User) loaded for
+     * inference}. Loads the network entirely by default.
+     */
+    default Optional<INDArray> loadUpdaterState(User user) throws RankingNetworkStorageException {
+        return load(user)
+                .map(rankingInfo -> rankingInfo.getNetwork().getUpdater(false))
+                .map(Updater::getStateViewArray);
+    }
+
+    /**
+     * Key identifying the ranking neural network a user is bound to. Users with the same key share the same network.
+     */
+    default String getStorageKey(User user) {
+        return user.getName();
+    }
+
+    /**
+     * Record selections once they were trained into the network of a user, ahead of the network being stored.
+     * Strategies storing networks lazily may keep them to replay them after a crash; by default they are ignored.
+     */
+    default void recordTraining(User user, List<TrainingEvent> events) throws RankingNetworkStorageException {
+    }
+
+    /**
+     * Selections recorded for the network of a user which aren't part of the network {@link #load(User) loaded} from
+     * this strategy, e.g. because the network wasn't stored before a crash. They are handed out only once, to be
+     * trained again; none by default.
+     */
+    default List<TrainingEvent> loadPendingTraining(User user) throws RankingNetworkStorageException {
+        return Collections.emptyList();
+    }
+
+    /**
+     * Record that a user is using their network, so that it can be loaded ahead on the next start, see
+     * {@link #getRecentUserNames(int)}. Ignored by default.
+     */
+    default void recordUse(User user) throws RankingNetworkStorageException {
+    }
+
+    /**
+     * Names of the users who most recently {@link #recordUse(User) used} a network, most recent first, one user per
+     * network; none by default.
+     */
+    default List<String> getRecentUserNames(int limit) throws RankingNetworkStorageException {
+        return Collections.emptyList();
+    }
+
+    /**
+     * Store the networks this strategy holds back, if any, e.g. on shutdown.
+     *
+     * @return the number of networks stored.
+     */
+    default int flush() throws RankingNetworkStorageException {
+        return 0;
+    }
+
+    /**
+     * Release the resources of this strategy on shutdown, once networks were {@link #flush() flushed}. Nothing to
+     * release by default.
+     */
+    default void stop() {
+    }
+
+    /**
+     * Container for information around ranking. That is, a neural network, corresponding labels, a user and the id of
+     * the {@link QueryEncoder} the network was trained with, if known.
+     * <p>
+     * Networks {@link #loadForInference(User) loaded for inference} have no updater until they are trained. Storing
+     * such a network {@link #isKeepStoredUpdaterState() keeps} the updater state stored along with it rather than
+     * dropping it, so that rankers don't need to read the state back before storing.
      */
     @Value
+    @AllArgsConstructor
     final class RankingInfo {
         final MultiLayerNetwork network;
         final IndexedBuffer<String> labels;
         final User user;
+        final String queryEncoderId;
+        /** Whether the stored updater state is still the one of the network, which has no updater of its own. */
+        final boolean keepStoredUpdaterState;
+
+        public RankingInfo(MultiLayerNetwork network, IndexedBuffer<String> labels, User user) {
+            this(network, labels, user, null);
+        }
+
+        public RankingInfo(MultiLayerNetwork network, IndexedBuffer<String> labels, User user, String queryEncoderId) {
+            this(network, labels, user, queryEncoderId, false);
+        }
+    }
+
+    /**
+     * A selection to train: the query and the key of the result chosen for it.
+     */
+    @Value
+    final class TrainingEvent {
+        final String query;
+        final String resultKey;
     }
 }
@@ -0,0 +1,192 @@
+/**
+ * This file Copyright (c) 2019 Magnolia International
+ * Ltd.  (http://www.magnolia-cms.com). All rights reserved.
+ *
+ *
+ * This program and the accompanying materials are made
+ * available under the terms of the Magnolia Network Agreement
+ * which accompanies this distribution, and is available at
+ * http://www.magnolia-cms.com/mna.html
+ *
+ * Any modifications to this file must keep this entire header
+ * intact.
+ *
+ */
+package info.magnolia.forge.periscope.rank.ml;
+
+import info.magnolia.periscope.search.SearchResult;
+
+import java.beans.IntrospectionException;
+import java.beans.Introspector;
+import java.beans.PropertyDescriptor;
+import java.lang.reflect.Method;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+
+import org.jsoup.parser.Parser;
+
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
+
+/**
+ * Derives the key a {@link SearchResult} is known by in the ranking network, i.e. the label of its output unit.
+ * <p>
+ * Results are identified by their operation request, that is what gets executed when picking them: it names the
+ * supplier and points to the underlying item, by id or path, so distinct items sharing a title don't get merged. Such
+ * keys are prefixed with {@value #IDENTITY_KEY_PREFIX}. Only the {@link #SUPPLIER_PROPERTIES supplier} and
+ * {@link #ITEM_PROPERTIES item} properties of a request are read, directly or from its
+ * {@link #NESTED_PROPERTIES location or parameters}. Results whose request lacks either, or without operation request,
+ * are identified by their title, stripped from highlighting markup, which is also how all results were identified
+ * formerly (see {@link #legacyKeyOf(SearchResult)}).
+ * <p>
+ * Keys are memoized per result instance, as the same results get added, ranked and picked in turn.
+ */
+class ResultKeyResolver {
+
+    static final String IDENTITY_KEY_PREFIX = "@";
+    private static final int MAX_CACHED_KEYS = 10000;
+
+    /** Properties naming the supplier of a result, by preference. */
+    static final List<String> SUPPLIER_PROPERTIES = Arrays.asList("supplier", "supplierName", "appName");
+    /** Properties pointing to the item of a result, by preference. */
+    static final List<String> ITEM_PROPERTIES = Arrays.asList("id", "identifier", "uuid", "nodeId", "path");
+    /** Property qualifying the item of a result, if any. */
+    static final String WORKSPACE_PROPERTY = "workspace";
+    /** Properties of a request holding further properties, looked into when the request has none of its own. */
+    static final List<String> NESTED_PROPERTIES = Arrays.asList("location", "parameters");
+
+    private static final ClassValue<Map<String, Method>> GETTERS = new ClassValue<Map<String, Method>>() {
+        @Override
+        protected Map<String, Method> computeValue(Class<?> type) {
+            return getters(type);
+        }
+    };
+
+    // weak keys imply identity comparison, results don't implement equals anyway
+    private final LoadingCache<SearchResult, String> keys = CacheBuilder.newBuilder()
+            .weakKeys()
+            .maximumSize(MAX_CACHED_KEYS)
+            .build(CacheLoader.from(this::computeKey));
+
+    private final LoadingCache<String, String> titleKeys = CacheBuilder.newBuilder()
+            .maximumSize(MAX_CACHED_KEYS)
+            .build(CacheLoader.from(ResultKeyResolver::stripMarkup));
+
+    String keyOf(SearchResult result) {
+        return keys.getUnchecked(result);
+    }
+
+    /**
+     * Title-based key, as results used to be identified by before their operation request was taken into account.
+     */
+    String legacyKeyOf(SearchResult result) {
+        return result.getTitle() == null ? "" : titleKeys.getUnchecked(result.getTitle());
+    }
+
+    private String computeKey(SearchResult result) {
+        String identityKey = result.getOperationRequest() == null ? null : identityKeyOf(result.getOperationRequest());
+        return identityKey != null ? identityKey : legacyKeyOf(result);
+    }
+
+    /**
+     * Key built from the supplier and the item an operation request points to, e.g. {@code @pages:website:/travel}.
+     *
+     * @return the key, {@code null} if the request doesn't tell its supplier and item apart.
+     */
+    static String identityKeyOf(Object operationRequest) {
+        String supplier = findProperty(operationRequest, SUPPLIER_PROPERTIES);
+        String item = findProperty(operationRequest, ITEM_PROPERTIES);
+        if (supplier == null || item == null) {
+            return null;
+        }
+        String workspace = findProperty(operationRequest, Collections.singletonList(WORKSPACE_PROPERTY));
+        return IDENTITY_KEY_PREFIX + supplier + ':' + (workspace != null ? workspace + ':' : "") + item;
+    }
+
+    /**
+     * First of the given properties set on a request, or on the objects it holds as {@link #NESTED_PROPERTIES}.
+     */
+    private static String findProperty(Object request, List<String> names) {
+        String value = findOwnProperty(request, names);
+        for (int i = 0; value == null && i < NESTED_PROPERTIES.size(); i++) {
+            Object nested = readProperty(request, NESTED_PROPERTIES.get(i));
+            value = nested != null ? findOwnProperty(nested, names) : null;
+        }
+        return value;
+    }
+
+    private static String findOwnProperty(Object bean, List<String> names) {
+        for (String name : names) {
+            Object value = readProperty(bean, name);
+            if (value != null && !value.toString().isEmpty()) {
+                return value.toString();
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Value of a map entry, or of a bean property through its getter; {@code null} if there's none.
+     */
+    private static Object readProperty(Object bean, String name) {
+        if (bean instanceof Map) {
+            return ((Map<?, ?>) bean).get(name);
+        }
+        Method getter = GETTERS.get(bean.getClass()).get(name);
+        if (getter == null) {
+            return null;
+        }
+        try {
+            return getter.invoke(bean);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Getters of a class by property name, leaving out {@link Object#getClass()}.
+     */
+    private static Map<String, Method> getters(Class<?> type) {
+        try {
+            return Arrays.stream(Introspector.getBeanInfo(type, Object.class).getPropertyDescriptors())
+                    .filter(property -> property.getReadMethod() != null)
+                    .collect(Collectors.toMap(PropertyDescriptor::getName, PropertyDescriptor::getReadMethod));
+        } catch (IntrospectionException e) {
+            return Collections.emptyMap();
+        }
+    }
+
+    /**
+     * Text of a title without markup tags such as highlighting, with entities unescaped and whitespace normalized.
+     */
+    static String stripMarkup(String title) {
+        StringBuilder text = new StringBuilder(title.length());
+        boolean inTag = false;
+        boolean pendingSpace = false;
+        for (int i = 0; i < title.length(); i++) {
+            char c = title.charAt(i);
+            if (inTag) {
+                inTag = c != '>';
+            } else if (c == '<' && i + 1 < title.length() && isTagStart(title.charAt(i + 1))) {
+                inTag = true;
+            } else if (Character.isWhitespace(c)) {
+                pendingSpace = text.length() > 0;
+            } else {
+                if (pendingSpace) {
+                    text.append(' ');
+                    pendingSpace = false;
+                }
+                text.append(c);
+            }
+        }
+        return text.indexOf("&") >= 0 ? Parser.unescapeEntities(text.toString(), false) : text.toString();
+    }
+
+    private static boolean isTagStart(char c) {
+        return Character.isLetter(c) || c == '/' || c == '!';
+    }
+}
@@ -0,0 +1,121 @@
+/**
+ * This file Copyright (c) 2019 Magnolia International
+ * Ltd.  (http://www.magnolia-cms.com). All rights reserved.
+ *
+ *
+ * This program and the accompanying materials are made
+ * available under the terms of the Magnolia Network Agreement
+ * which accompanies this distribution, and is available at
+ * http://www.magnolia-cms.com/mna.html
+ *
+ * Any modifications to this file must keep this entire header
+ * intact.
+ *
+ */
+package info.magnolia.forge.periscope.rank.ml;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Queue collecting training examples and handing them over to a trainer in mini-batches, on a background executor.
+ * <p>
+ * A batch is trained as soon as {@code batchSize} examples are pending, or {@code maxDelay} after the first pending
+ * example was enqueued, whichever comes first. With a batch size of 1 and no delay, examples are trained right away on
+ * the calling thread. A batch failing to train is logged and dropped, the following ones are trained nonetheless.
+ *
+ * @param <T> type of training examples
+ */
+@Slf4j
+class TrainingQueue<T> {
+
+    /** Whose examples are queued, e.g. a user, for logging. */
+    private final String owner;
+    private final ScheduledExecutorService executor;
+    private final int batchSize;
+    /** Maximum delay before pending examples get trained [ms]. */
+    private final long maxDelay;
+    private final Consumer<List<T>> trainer;
+
+    private final Queue<T> pending = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger pendingCount = new AtomicInteger(0);
+    private final AtomicBoolean drainScheduled = new AtomicBoolean(false);
+
+    /**
+     * @param owner whose examples are queued, e.g. a user, for logging
+     * @param maxDelay maximum delay before pending examples get trained [ms]
+     */
+    TrainingQueue(String owner, ScheduledExecutorService executor, int batchSize, long maxDelay, Consumer<List<T>> trainer) {
+        this.owner = owner;
+        this.executor = executor;
+        this.batchSize = Math.max(1, batchSize);
+        this.maxDelay = Math.max(0, maxDelay);
+        this.trainer = trainer;
+    }
+
+    void enqueue(T example) {
+        if (isSynchronous()) {
+            trainer.accept(Collections.singletonList(example));
+            return;
+        }
+
+        pending.add(example);
+        int count = pendingCount.incrementAndGet();
+        try {
+            if (count >= batchSize) {
+                executor.execute(this::drain);
+            } else if (drainScheduled.compareAndSet(false, true)) {
+                executor.schedule(this::drain, maxDelay, TimeUnit.MILLISECONDS);
+            }
+        } catch (RejectedExecutionException e) {
+            log.warn("Training executor rejected pending examples, training them on the calling thread", e);
+            drain();
+        }
+    }
+
+    /**
+     * Train all pending examples right away on the calling thread, in batches of at most {@code batchSize}. Failures
+     * are logged rather than thrown, as drains mostly run on the executor, which would swallow them.
+     */
+    void drain() {
+        drainScheduled.set(false);
+        List<T> batch = nextBatch();
+        while (!batch.isEmpty()) {
+            try {
+                trainer.accept(batch);
+            } catch (RuntimeException e) {
+                log.error("Failed to train a batch of {} examples of {}, dropping it", batch.size(), owner, e);
+            }
+            batch = nextBatch();
+        }
+    }
+
+    int size() {
+        return pendingCount.get();
+    }
+
+    private List<T> nextBatch() {
+        List<T> batch = new ArrayList<>(batchSize);
+        T example;
+        while (batch.size() < batchSize && (example = pending.poll()) != null) {
+            pendingCount.decrementAndGet();
+            batch.add(example);
+        }
+        return batch;
+    }
+
+    private boolean isSynchronous() {
+        return batchSize == 1 && maxDelay == 0;
+    }
+}
@@ -0,0 +1,302 @@
+/**
+ * This file Copyright (c) 2019 Magnolia International
+ * Ltd.  (http://www.magnolia-cms.com). All rights reserved.
+ *
+ *
+ * This program and the accompanying materials are made
+ * available under the terms of the Magnolia Network Agreement
+ * which accompanies this distribution, and is available at
+ * http://www.magnolia-cms.com/mna.html
+ *
+ * Any modifications to this file must keep this entire header
+ * intact.
+ *
+ */
+package info.magnolia.forge.periscope.rank.ml.fs;
+
+import info.magnolia.cms.security.User;
+import info.magnolia.forge.periscope.rank.ml.RankingInfoSerializer;
+import info.magnolia.forge.periscope.rank.ml.RankingNetworkStorageException;
+import info.magnolia.forge.periscope.rank.ml.RankingNetworkStorageStrategy;
+import info.magnolia.init.MagnoliaConfigurationProperties;
+import info.magnolia.objectfactory.Components;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.locks.Lock;
+import java.util.stream.Collectors;
+
+import javax.inject.Singleton;
+
+import org.nd4j.linalg.api.ndarray.INDArray;
+
+import com.google.common.util.concurrent.Striped;
+
+import lombok.Getter;
+import lombok.Setter;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Strategy storing one file per storage key in a local directory, see {@link #getStorageKey(User)}. Each file holds the
+ * network along with its labels, in the format of the {@link RankingInfoSerializer}.
+ * <p>
+ * Files are written to a temporary file first and atomically renamed, so a crash never leaves a partially written
+ * network behind; they are read back through a memory-mapped {@link FileChannel}. Meant for single node setups, as
+ * the rankings aren't part of the repository, thus neither replicated nor backed up along with it.
+ */
+@Singleton
+@Slf4j
+public class FileSystemNetworkStorageStrategy implements RankingNetworkStorageStrategy {
+
+    static final String DEFAULT_DIRECTORY_NAME = "periscope-rankings";
+    static final String FILE_EXTENSION = ".ranking";
+    private static final String MAGNOLIA_HOME_PROPERTY = "magnolia.home";
+
+    /**
+     * When written files get forced to the storage device.
+     */
+    public enum FsyncPolicy {
+        /** Leave it to the operating system; a power loss may lose the latest rankings. */
+        NEVER,
+        /** Force the written file before renaming it. */
+        FILE,
+        /** Force the written file, and the directory after renaming, so the rename itself survives a power loss. */
+        FILE_AND_DIRECTORY
+    }
+
+    /**
+     * Directory holding the ranking files, created if missing. Defaults to {@value #DEFAULT_DIRECTORY_NAME} in the
+     * Magnolia home directory.
+     */
+    @Getter
+    @Setter
+    private String rootDirectory;
+
+    @Getter
+    @Setter
+    private FsyncPolicy fsyncPolicy = FsyncPolicy.FILE;
+
+    /**
+     * Format of the stored files; labels are always written along.
+     */
+    @Getter
+    @Setter
+    private RankingInfoSerializer serializer = new RankingInfoSerializer();
+
+    private final Striped<Lock> storeLocks = Striped.lock(64);
+
+    @Override
+    public void store(RankingInfo rankingInfo) throws RankingNetworkStorageException {
+        final String storageKey = getStorageKey(rankingInfo.getUser());
+        log.debug("Storing RankingInfo for storage key {}...", storageKey);
+
+        final Lock lock = storeLocks.get(storageKey);
+        lock.lock();
+        try {
+            // networks loaded for inference keep the updater state stored along with them
+            final INDArray storedUpdaterState = rankingInfo.isKeepStoredUpdaterState() ? loadUpdaterState(rankingInfo.getUser()).orElse(null) : null;
+            final Path directory = getDirectory();
+            Files.createDirectories(directory);
+            final Path target = directory.resolve(toFileName(storageKey));
+            final Path temporary = Files.createTempFile(directory, "." + toFileName(storageKey), ".tmp");
+            try {
+                try (FileChannel channel = FileChannel.open(temporary, StandardOpenOption.WRITE)) {
+                    OutputStream out = new BufferedOutputStream(Channels.newOutputStream(channel));
+                    serializer.write(rankingInfo, storedUpdaterState, true, out);
+                    out.flush();
+                    if (fsyncPolicy != FsyncPolicy.NEVER) {
+                        channel.force(true);
+                    }
+                }
+                Files.move(temporary, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            } finally {
+                Files.deleteIfExists(temporary);
+            }
+            if (fsyncPolicy == FsyncPolicy.FILE_AND_DIRECTORY) {
+                try (FileChannel channel = FileChannel.open(directory, StandardOpenOption.READ)) {
+                    channel.force(true);
+                }
+            }
+        } catch (IOException e) {
+            throw new RankingNetworkStorageException(e);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public Optional<RankingInfo> load(User user) throws RankingNetworkStorageException {
+        return load(user, true);
+    }
+
+    @Override
+    public Optional<RankingInfo> loadForInference(User user) throws RankingNetworkStorageException {
+        return load(user, false);
+    }
+
+    @Override
+    public Optional<INDArray> loadUpdaterState(User user) throws RankingNetworkStorageException {
+        final Path file = getDirectory().resolve(toFileName(getStorageKey(user)));
+
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            final MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            return Optional.ofNullable(serializer.readUpdaterState(new ByteBufferInputStream(buffer)));
+        } catch (NoSuchFileException e) {
+            return Optional.empty();
+        } catch (IOException e) {
+            throw new RankingNetworkStorageException(e);
+        }
+    }
+
+    private Optional<RankingInfo> load(User user, boolean withUpdaterState) throws RankingNetworkStorageException {
+        final Path file = getDirectory().resolve(toFileName(getStorageKey(user)));
+
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            final MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            final RankingInfo rankingInfo = serializer.read(new ByteBufferInputStream(buffer), user, withUpdaterState);
+            if (rankingInfo.getLabels() == null) {
+                throw new IOException("No labels stored in " + file);
+            }
+            log.debug("Loaded RankingInfo for user {} from {}", user.getName(), file);
+            return Optional.of(rankingInfo);
+        } catch (NoSuchFileException e) {
+            return Optional.empty();
+        } catch (IOException e) {
+            throw new RankingNetworkStorageException(e);
+        }
+    }
+
+    /**
+     * Use is recorded as the modification time of the network file, which storing updates as well.
+     */
+    @Override
+    public void recordUse(User user) throws RankingNetworkStorageException {
+        final Path file = getDirectory().resolve(toFileName(getStorageKey(user)));
+        try {
+            Files.setLastModifiedTime(file, FileTime.fromMillis(System.currentTimeMillis()));
+        } catch (NoSuchFileException e) {
+            // nothing stored yet
+        } catch (IOException e) {
+            throw new RankingNetworkStorageException(e);
+        }
+    }
+
+    /**
+     * Storage keys of the most recently modified network files, which are the user names unless
+     * {@link #getStorageKey(User)} is overridden.
+     */
+    @Override
+    public List<String> getRecentUserNames(int limit) throws RankingNetworkStorageException {
+        final Path directory = getDirectory();
+        if (!Files.isDirectory(directory)) {
+            return Collections.emptyList();
+        }
+        final Map<Path, FileTime> files = new HashMap<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, "*" + FILE_EXTENSION)) {
+            for (Path file : stream) {
+                files.put(file, Files.getLastModifiedTime(file));
+            }
+        } catch (IOException e) {
+            throw new RankingNetworkStorageException(e);
+        }
+        return files.entrySet().stream()
+                .sorted(Map.Entry.<Path, FileTime>comparingByValue().reversed())
+                .limit(limit)
+                .map(entry -> toStorageKey(entry.getKey().getFileName().toString()))
+                .collect(Collectors.toList());
+    }
+
+    Path getDirectory() {
+        if (rootDirectory != null) {
+            return Paths.get(rootDirectory);
+        }
+        final String magnoliaHome = Components.getComponent(MagnoliaConfigurationProperties.class).getProperty(MAGNOLIA_HOME_PROPERTY);
+        return Paths.get(magnoliaHome, DEFAULT_DIRECTORY_NAME);
+    }
+
+    /**
+     * File name for a storage key, which may contain any character, e.g. path separators.
+     */
+    static String toFileName(String storageKey) {
+        try {
+            return URLEncoder.encode(storageKey, "UTF-8") + FILE_EXTENSION;
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Storage key of a file name, see {@link #toFileName(String)}.
+     */
+    static String toStorageKey(String fileName) {
+        try {
+            return URLDecoder.decode(fileName.substring(0, fileName.length() - FILE_EXTENSION.length()), "UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * {@link InputStream} reading the remaining bytes of a {@link ByteBuffer}.
+     */
+    private static final class ByteBufferInputStream extends InputStream {
+
+        private final ByteBuffer buffer;
+
+        private ByteBufferInputStream(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        @Override
+        public int read() {
+            return buffer.hasRemaining() ? buffer.get() & 0xff : -1;
+        }
+
+        @Override
+        public int read(byte[] bytes, int offset, int length) {
+            if (length == 0) {
+                return 0;
+            }
+            if (!buffer.hasRemaining()) {
+                return -1;
+            }
+            int count = Math.min(length, buffer.remaining());
+            buffer.get(bytes, offset, count);
+            return count;
+        }
+
+        @Override
+        public long skip(long n) {
+            int count = (int) Math.max(0, Math.min(n, buffer.remaining()));
+            buffer.position(buffer.position() + count);
+            return count;
+        }
+
+        @Override
+        public int available() {
+            return buffer.remaining();
+        }
+    }
+}
@@ -0,0 +1,464 @@
+/**
+ * This file Copyright (c) 2019 Magnolia International
+ * Ltd.  (http://www.magnolia-cms.com). All rights reserved.
+ *
+ *
+ * This program and the accompanying materials are made
+ * available under the terms of the Magnolia Network Agreement
+ * which accompanies this distribution, and is available at
+ * http://www.magnolia-cms.com/mna.html
+ *
+ * Any modifications to this file must keep this entire header
+ * intact.
+ *
+ */
+package info.magnolia.forge.periscope.rank.ml.fs;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import info.magnolia.cms.security.User;
+import info.magnolia.forge.periscope.rank.ml.IndexedBuffer;
+import info.magnolia.forge.periscope.rank.ml.RankingNetworkStorageException;
+import info.magnolia.forge.periscope.rank.ml.RankingNetworkStorageStrategy;
+import info.magnolia.forge.periscope.rank.ml.jcr.JcrUsernameNetworkStorageStrategy;
+import info.magnolia.init.MagnoliaConfigurationProperties;
+import info.magnolia.objectfactory.Components;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import javax.inject.Singleton;
+
+import org.deeplearning4j.nn.api.Updater;
+import org.nd4j.linalg.api.ndarray.INDArray;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import lombok.Getter;
+import lombok.Setter;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Write-behind decorator of another {@link RankingNetworkStorageStrategy}, the {@link #getDelegate() delegate}.
+ * <p>
+ * Stored networks are kept in memory and handed over to the delegate in the background, every
+ * {@link #getFlushInterval() flush interval}. Meanwhile trained selections are appended to a local journal per storage
+ * key, so none are lost if the JVM dies before the network was flushed: they are handed out by
+ * {@link #loadPendingTraining(User)} the first time the network is loaded again, to be trained once more.
+ * <p>
+ * Stored networks are snapshots, which rankers don't change afterwards, so pending ones are copied when loaded without
+ * synchronizing with the ranker; the copy keeps a network loaded again from sharing state with the one still to be
+ * flushed. Up to {@link #getMaxPendingNetworks() a given number} of networks are kept pending, as they are held in
+ * memory on top of the cached rankers; networks stored beyond are flushed right away.
+ * <p>
+ * Journals are split into segments. Before a network gets flushed, the current segment is closed and subsequent
+ * selections go to a new one. A snapshot is taken before its selections are journaled, and reaches this strategy
+ * later still, so a segment closed at a flush may hold selections of snapshots yet to be stored: closed segments are
+ * only deleted once the delegate stored the network of the next flush. Selections may thus end up both in the stored
+ * network and in the journal, and be replayed twice after a crash; none is lost.
+ */
+@Singleton
+@Slf4j
+public class JournalingNetworkStorageStrategy implements RankingNetworkStorageStrategy {
+
+    static final String DEFAULT_DIRECTORY_NAME = "periscope-journal";
+    static final long DEFAULT_FLUSH_INTERVAL = 5 * 60 * 1000;
+    static final int DEFAULT_MAX_PENDING_NETWORKS = 20;
+    static final String SEGMENT_EXTENSION = ".journal";
+    private static final String MAGNOLIA_HOME_PROPERTY = "magnolia.home";
+
+    /**
+     * Strategy the networks are eventually stored with, {@link JcrUsernameNetworkStorageStrategy} by default.
+     */
+    @Getter
+    @Setter
+    private RankingNetworkStorageStrategy delegate = new JcrUsernameNetworkStorageStrategy();
+
+    /**
+     * Directory holding the journals, created if missing. Defaults to {@value #DEFAULT_DIRECTORY_NAME} in the
+     * Magnolia home directory.
+     */
+    @Getter
+    @Setter
+    private String journalDirectory;
+
+    /**
+     * Interval [ms] at which stored networks are flushed to the delegate, defaults to
+     * {@value #DEFAULT_FLUSH_INTERVAL}. Networks are flushed right away if not positive.
+     */
+    @Getter
+    @Setter
+    private Long flushInterval = DEFAULT_FLUSH_INTERVAL;
+
+    /**
+     * Number of networks kept in memory until the next flush interval, defaults to
+     * {@value #DEFAULT_MAX_PENDING_NETWORKS}. Networks stored beyond are flushed right away.
+     */
+    @Getter
+    @Setter
+    private Integer maxPendingNetworks = DEFAULT_MAX_PENDING_NETWORKS;
+
+    /**
+     * Whether the journal is forced to the storage device after each recorded batch, so selections even survive a
+     * power loss. Disabled by default, selections then only survive the JVM dying.
+     */
+    @Getter
+    @Setter
+    private boolean syncJournal = false;
+
+    private final Map<String, RankingInfo> pending = new ConcurrentHashMap<>();
+    private final Map<String, Journal> journals = new ConcurrentHashMap<>();
+    private final Set<String> replayedKeys = ConcurrentHashMap.newKeySet();
+    private volatile ScheduledExecutorService flushExecutor;
+
+    @Override
+    public String getStorageKey(User user) {
+        return delegate.getStorageKey(user);
+    }
+
+    @Override
+    public void store(RankingInfo rankingInfo) throws RankingNetworkStorageException {
+        final String storageKey = getStorageKey(rankingInfo.getUser());
+        pending.put(storageKey, rankingInfo);
+        if (flushInterval == null || flushInterval <= 0
+                || pending.size() > Optional.ofNullable(maxPendingNetworks).orElse(DEFAULT_MAX_PENDING_NETWORKS)) {
+            flush(storageKey);
+        } else {
+            startFlushing();
+        }
+    }
+
+    /**
+     * Networks not flushed yet are served from memory, as they are more recent than the stored ones.
+     */
+    @Override
+    public Optional<RankingInfo> load(User user) throws RankingNetworkStorageException {
+        final RankingInfo pendingInfo = pending.get(getStorageKey(user));
+        if (pendingInfo != null) {
+            final IndexedBuffer<String> labels = pendingInfo.getLabels();
+            return Optional.of(new RankingInfo(pendingInfo.getNetwork().clone(), labels != null ? labels.copy() : null, user, pendingInfo.getQueryEncoderId()));
+        }
+        return delegate.load(user);
+    }
+
+    @Override
+    public Optional<RankingInfo> loadForInference(User user) throws RankingNetworkStorageException {
+        final RankingInfo pendingInfo = pending.get(getStorageKey(user));
+        if (pendingInfo != null) {
+            return load(user);
+        }
+        return delegate.loadForInference(user);
+    }
+
+    @Override
+    public Optional<INDArray> loadUpdaterState(User user) throws RankingNetworkStorageException {
+        final RankingInfo pendingInfo = pending.get(getStorageKey(user));
+        final Updater updater = pendingInfo != null ? pendingInfo.getNetwork().getUpdater(false) : null;
+        if (updater != null) {
+            return Optional.ofNullable(updater.getStateViewArray()).map(INDArray::dup);
+        }
+        if (pendingInfo != null && !pendingInfo.isKeepStoredUpdaterState()) {
+            return Optional.empty();
+        }
+        // still the one stored by the delegate
+        return delegate.loadUpdaterState(user);
+    }
+
+    @Override
+    public void recordTraining(User user, List<TrainingEvent> events) throws RankingNetworkStorageException {
+        final String storageKey = getStorageKey(user);
+        // selections of this run are part of the network in memory, only those of previous runs need to be replayed
+        replayedKeys.add(storageKey);
+        try {
+            journals.computeIfAbsent(storageKey, this::createJournal).append(events, syncJournal);
+        } catch (IOException e) {
+            throw new RankingNetworkStorageException(e);
+        }
+    }
+
+    /**
+     * Selections journaled by a previous run which weren't flushed, only handed out once per storage key.
+     */
+    @Override
+    public List<TrainingEvent> loadPendingTraining(User user) throws RankingNetworkStorageException {
+        final String storageKey = getStorageKey(user);
+        if (!replayedKeys.add(storageKey)) {
+            return Collections.emptyList();
+        }
+        try {
+            return journals.computeIfAbsent(storageKey, this::createJournal).readAll();
+        } catch (IOException e) {
+            throw new RankingNetworkStorageException(e);
+        }
+    }
+
+    @Override
+    public void recordUse(User user) throws RankingNetworkStorageException {
+        delegate.recordUse(user);
+    }
+
+    @Override
+    public List<String> getRecentUserNames(int limit) throws RankingNetworkStorageException {
+        return delegate.getRecentUserNames(limit);
+    }
+
+    /**
+     * Hand all pending networks over to the delegate.
+     *
+     * @return the number of networks flushed.
+     */
+    @Override
+    public int flush() {
+        int flushed = 0;
+        for (String storageKey : new ArrayList<>(pending.keySet())) {
+            try {
+                if (flush(storageKey)) {
+                    flushed++;
+                }
+            } catch (RankingNetworkStorageException | RuntimeException e) {
+                log.error("Failed to flush ranking neural network for storage key {}", storageKey, e);
+            }
+        }
+        return flushed;
+    }
+
+    /**
+     * Stop flushing in the background and close the journals; selections recorded afterwards reopen them.
+     */
+    @Override
+    public void stop() {
+        synchronized (this) {
+            if (flushExecutor != null) {
+                flushExecutor.shutdownNow();
+                flushExecutor = null;
+            }
+        }
+        for (Map.Entry<String, Journal> journal : journals.entrySet()) {
+            try {
+                journal.getValue().rotate();
+            } catch (IOException e) {
+                log.warn("Failed to close ranking journal of storage key {}", journal.getKey(), e);
+            }
+        }
+    }
+
+    /**
+     * Number of networks waiting to be flushed.
+     */
+    public int getPendingCount() {
+        return pending.size();
+    }
+
+    private boolean flush(String storageKey) throws RankingNetworkStorageException {
+        final RankingInfo rankingInfo = pending.remove(storageKey);
+        if (rankingInfo == null) {
+            return false;
+        }
+        final Journal journal = journals.computeIfAbsent(storageKey, this::createJournal);
+        try {
+            final int closedSegment = journal.rotate();
+            delegate.store(rankingInfo);
+            journal.deleteUpTo(journal.flushed(closedSegment));
+            return true;
+        } catch (IOException e) {
+            // keep it for the next flush, unless a more recent one was stored meanwhile
+            pending.putIfAbsent(storageKey, rankingInfo);
+            throw new RankingNetworkStorageException(e);
+        } catch (RankingNetworkStorageException | RuntimeException e) {
+            pending.putIfAbsent(storageKey, rankingInfo);
+            throw e;
+        }
+    }
+
+    private void startFlushing() {
+        if (flushExecutor != null) {
+            return;
+        }
+        synchronized (this) {
+            if (flushExecutor == null) {
+                ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder()
+                        .setNameFormat("periscope-ranker-journal-flush")
+                        .setDaemon(true)
+                        .build());
+                executor.scheduleWithFixedDelay(this::flush, flushInterval, flushInterval, TimeUnit.MILLISECONDS);
+                flushExecutor = executor;
+            }
+        }
+    }
+
+    private Journal createJournal(String storageKey) {
+        return new Journal(getDirectory().resolve(FileSystemNetworkStorageStrategy.toFileName(storageKey)));
+    }
+
+    Path getDirectory() {
+        if (journalDirectory != null) {
+            return Paths.get(journalDirectory);
+        }
+        final String magnoliaHome = Components.getComponent(MagnoliaConfigurationProperties.class).getProperty(MAGNOLIA_HOME_PROPERTY);
+        return Paths.get(magnoliaHome, DEFAULT_DIRECTORY_NAME);
+    }
+
+    /**
+     * Append-only journal of one storage key: a directory of numbered segments, each a sequence of records made of
+     * the query and the result key as length-prefixed UTF-8 strings. A record torn by a crash ends its segment.
+     */
+    static final class Journal {
+
+        /** Upper bound of a valid string length, anything above stems from a torn record. */
+        private static final int MAX_STRING_BYTES = 1 << 20;
+
+        private final Path directory;
+        private int segment = -1;
+        /** Segment closed at the last flush, see {@link #flushed(int)}. */
+        private int flushedSegment = -1;
+        private FileChannel channel;
+        private DataOutputStream out;
+
+        Journal(Path directory) {
+            this.directory = directory;
+        }
+
+        synchronized void append(List<TrainingEvent> events, boolean sync) throws IOException {
+            if (out == null) {
+                Files.createDirectories(directory);
+                segment = Math.max(segment, lastSegment()) + 1;
+                channel = FileChannel.open(segmentPath(segment), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+                out = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(channel)));
+            }
+            for (TrainingEvent event : events) {
+                writeString(out, event.getQuery());
+                writeString(out, event.getResultKey());
+            }
+            out.flush();
+            if (sync) {
+                channel.force(false);
+            }
+        }
+
+        /**
+         * Close the current segment, if any; subsequent records go to a new one.
+         *
+         * @return the number of the last closed segment.
+         */
+        synchronized int rotate() throws IOException {
+            if (out != null) {
+                out.close();
+                out = null;
+                channel = null;
+                return segment;
+            }
+            return Math.max(segment, lastSegment());
+        }
+
+        /**
+         * Record that the network was stored after closing the given segment.
+         *
+         * @return the segment closed at the previous flush, the last one which can be deleted.
+         */
+        synchronized int flushed(int closedSegment) {
+            int deletable = flushedSegment;
+            flushedSegment = closedSegment;
+            return deletable;
+        }
+
+        synchronized void deleteUpTo(int lastSegment) throws IOException {
+            for (int number : segments()) {
+                if (number <= lastSegment) {
+                    Files.deleteIfExists(segmentPath(number));
+                }
+            }
+        }
+
+        synchronized List<TrainingEvent> readAll() throws IOException {
+            List<TrainingEvent> events = new ArrayList<>();
+            for (int number : segments()) {
+                try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(segmentPath(number))))) {
+                    while (true) {
+                        String query = readString(in);
+                        if (query == null) {
+                            break;
+                        }
+                        String resultKey = readString(in);
+                        if (resultKey == null) {
+                            break;
+                        }
+                        events.add(new TrainingEvent(query, resultKey));
+                    }
+                }
+            }
+            return events;
+        }
+
+        private List<Integer> segments() throws IOException {
+            List<Integer> numbers = new ArrayList<>();
+            if (!Files.isDirectory(directory)) {
+                return numbers;
+            }
+            try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, "*" + SEGMENT_EXTENSION)) {
+                for (Path file : files) {
+                    String name = file.getFileName().toString();
+                    try {
+                        numbers.add(Integer.parseInt(name.substring(0, name.length() - SEGMENT_EXTENSION.length())));
+                    } catch (NumberFormatException e) {
+                        log.warn("Ignoring unexpected file {} in ranking journal", file);
+                    }
+                }
+            }
+            Collections.sort(numbers);
+            return numbers;
+        }
+
+        private int lastSegment() throws IOException {
+            List<Integer> numbers = segments();
+            return numbers.isEmpty() ? -1 : numbers.get(numbers.size() - 1);
+        }
+
+        private Path segmentPath(int number) {
+            return directory.resolve(number + SEGMENT_EXTENSION);
+        }
+
+        private static void writeString(DataOutputStream out, String value) throws IOException {
+            byte[] bytes = value.getBytes(UTF_8);
+            out.writeInt(bytes.length);
+            out.write(bytes);
+        }
+
+        /**
+         * @return the string read, or {@code null} at the end of the segment or if the record was torn.
+         */
+        private static String readString(DataInputStream data) throws IOException {
+            try {
+                int length = data.readInt();
+                if (length < 0 || length > MAX_STRING_BYTES) {
+                    return null;
+                }
+                byte[] bytes = new byte[length];
+                data.readFully(bytes);
+                return new String(bytes, UTF_8);
+            } catch (EOFException e) {
+                return null;
+            }
+        }
+    }
+}
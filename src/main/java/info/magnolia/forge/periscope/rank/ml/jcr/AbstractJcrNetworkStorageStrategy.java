@@ -20,33 +20,46 @@ import info.magnolia.cms.security.User;
 import info.magnolia.context.MgnlContext;
 import info.magnolia.forge.periscope.rank.ml.Debouncer;
 import info.magnolia.forge.periscope.rank.ml.IndexedBuffer;
+import info.magnolia.forge.periscope.rank.ml.RankingInfoSerializer;
 import info.magnolia.forge.periscope.rank.ml.RankingNetworkStorageException;
 import info.magnolia.forge.periscope.rank.ml.RankingNetworkStorageStrategy;
 import info.magnolia.jcr.util.NodeTypes;
 import info.magnolia.jcr.util.PropertyUtil;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
-import java.io.OutputStream;
-import java.io.PipedInputStream;
-import java.io.PipedOutputStream;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Calendar;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
+import java.util.concurrent.locks.Lock;
 
 import javax.jcr.Node;
+import javax.jcr.NodeIterator;
 import javax.jcr.Property;
 import javax.jcr.PropertyIterator;
 import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+import javax.jcr.Value;
+import javax.jcr.ValueFactory;
+import javax.jcr.query.Query;
 
-import org.apache.commons.io.IOUtils;
 import org.apache.jackrabbit.commons.JcrUtils;
 import org.deeplearning4j.nn.multilayer.MultiLayerNetwork;
-import org.deeplearning4j.util.ModelSerializer;
+import org.nd4j.linalg.api.ndarray.INDArray;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.google.common.util.concurrent.Striped;
+
+import lombok.Getter;
+import lombok.Setter;
+
 /**
  * Abstract network storage strategy based on JCR.
  */
@@ -59,9 +72,37 @@ public abstract class AbstractJcrNetworkStorageStrategy implements RankingNetwor
     static final String LABELS_NODE_NAME = "labels";
     static final String EVICTION_ORDER_PROPERTY = "evictionOrder";
     static final String BUFFER_LIMIT_PROPERTY = "bufferLimit";
+    static final String QUERY_ENCODER_PROPERTY = "queryEncoder";
+    static final String LABELS_ID_PROPERTY = "labelsId";
+    static final String LABELS_VERSION_PROPERTY = "labelsVersion";
+    static final String CHUNK_NODE_PREFIX = "chunk";
+    static final String CHUNK_LABELS_PROPERTY = "labels";
+    static final String CHUNK_LAST_USE_PROPERTY = "lastUse";
+    static final String LAST_USED_PROPERTY = "lastUsed";
+    static final String LAST_USER_PROPERTY = "lastUser";
+    static final int CHUNK_SIZE = 256;
     static final String WORKSPACE = "rankings";
     static final String RANKING_USERROLE = "ranker";
 
+    private final Striped<Lock> storeLocks = Striped.lock(64);
+
+    /**
+     * Serialization buffer reused by each storing thread; stores run on the debounced storage executor, so there is
+     * one buffer per pool thread rather than one allocation per save. Buffers are sized up front from the
+     * {@link RankingInfoSerializer#estimateSize(RankingInfo) estimated size} of the network, so networks of the configured
+     * size are serialized without regrowing, and are kept as long as they aren't far larger than the networks being
+     * stored, so a single large network doesn't pin its size in every pool thread.
+     */
+    private static final ThreadLocal<ReusableBuffer> BUFFERS = ThreadLocal.withInitial(ReusableBuffer::new);
+
+    /**
+     * Format of the stored network binary. Labels are stored separately as JCR properties, see
+     * {@link #storeLabels(Node, IndexedBuffer)}.
+     */
+    @Getter
+    @Setter
+    private RankingInfoSerializer serializer = new RankingInfoSerializer();
+
     protected abstract Optional<Node> getNetworkNode(User user);
 
     protected abstract Node getOrCreateNetworkNode(User user) throws RepositoryException;
@@ -71,10 +112,16 @@ public abstract class AbstractJcrNetworkStorageStrategy implements RankingNetwor
         log.debug("Storing RankingInfo for user {}...", rankingInfo.getUser().getName());
 
         try {
-            MgnlContext.doInSystemContext(() -> {
-                storeToJcr(rankingInfo);
-                return null;
-            }, true);
+            final Lock lock = storeLocks.get(getStorageKey(rankingInfo.getUser()));
+            lock.lock();
+            try {
+                MgnlContext.doInSystemContext(() -> {
+                    storeToJcr(rankingInfo);
+                    return null;
+                }, true);
+            } finally {
+                lock.unlock();
+            }
         } catch (Exception e) {
             throw new RankingNetworkStorageException(e);
         }
@@ -82,14 +129,38 @@ public abstract class AbstractJcrNetworkStorageStrategy implements RankingNetwor
 
     @Override
     public Optional<RankingInfo> load(User user) throws RankingNetworkStorageException {
+        return load(user, true);
+    }
+
+    @Override
+    public Optional<RankingInfo> loadForInference(User user) throws RankingNetworkStorageException {
+        return load(user, false);
+    }
+
+    @Override
+    public Optional<INDArray> loadUpdaterState(User user) throws RankingNetworkStorageException {
         final Optional<Node> networkNode = getNetworkNode(user);
 
         if (!networkNode.isPresent()) {
             return Optional.empty();
         }
 
-        try {
-            final MultiLayerNetwork network = ModelSerializer.restoreMultiLayerNetwork(JcrUtils.readFile(networkNode.get()), true);
+        try (InputStream in = JcrUtils.readFile(networkNode.get())) {
+            return Optional.ofNullable(serializer.readUpdaterState(in));
+        } catch (RepositoryException | IOException e) {
+            throw new RankingNetworkStorageException(e);
+        }
+    }
+
+    private Optional<RankingInfo> load(User user, boolean withUpdaterState) throws RankingNetworkStorageException {
+        final Optional<Node> networkNode = getNetworkNode(user);
+
+        if (!networkNode.isPresent()) {
+            return Optional.empty();
+        }
+
+        try (InputStream in = JcrUtils.readFile(networkNode.get())) {
+            final MultiLayerNetwork network = serializer.read(in, user, withUpdaterState).getNetwork();
             log.debug("Loading RankingInfo for user {}...", user.getName());
             return Optional.of(getOrCreateRankingInfo(network, user));
         } catch (RepositoryException | IOException e) {
@@ -97,7 +168,86 @@ public abstract class AbstractJcrNetworkStorageStrategy implements RankingNetwor
         }
     }
 
+    /**
+     * Use is recorded next to the network node, as the time and name of the last user. Networks not stored yet are
+     * left alone.
+     */
+    @Override
+    public void recordUse(User user) throws RankingNetworkStorageException {
+        try {
+            final Lock lock = storeLocks.get(getStorageKey(user));
+            lock.lock();
+            try {
+                MgnlContext.doInSystemContext(() -> {
+                    final Optional<Node> networkNode = getNetworkNode(user);
+                    if (networkNode.isPresent()) {
+                        final Node parentNode = networkNode.get().getParent();
+                        try {
+                            parentNode.setProperty(LAST_USED_PROPERTY, Calendar.getInstance());
+                            parentNode.setProperty(LAST_USER_PROPERTY, user.getName());
+                            parentNode.getSession().save();
+                        } catch (RepositoryException | RuntimeException e) {
+                            parentNode.getSession().refresh(false);
+                            throw e;
+                        }
+                    }
+                    return null;
+                }, true);
+            } finally {
+                lock.unlock();
+            }
+        } catch (Exception e) {
+            throw new RankingNetworkStorageException(e);
+        }
+    }
+
+    @Override
+    public List<String> getRecentUserNames(int limit) throws RankingNetworkStorageException {
+        try {
+            return MgnlContext.doInSystemContext(() -> {
+                final Session session = MgnlContext.getJCRSession(WORKSPACE);
+                final Query query = session.getWorkspace().getQueryManager().createQuery(String.format(
+                        "SELECT * FROM [%s] WHERE [%s] IS NOT NULL ORDER BY [%s] DESC", NodeTypes.Content.NAME, LAST_USER_PROPERTY, LAST_USED_PROPERTY),
+                        Query.JCR_SQL2);
+                query.setLimit(limit);
+                final List<String> userNames = new ArrayList<>();
+                final NodeIterator nodes = query.execute().getNodes();
+                while (nodes.hasNext()) {
+                    userNames.add(nodes.nextNode().getProperty(LAST_USER_PROPERTY).getString());
+                }
+                return userNames;
+            });
+        } catch (RepositoryException e) {
+            throw new RankingNetworkStorageException(e);
+        }
+    }
+
     private IndexedBuffer<String> getLabels(Node labelsNode) throws RepositoryException {
+        if (!labelsNode.hasProperty(LABELS_ID_PROPERTY)) {
+            return getLegacyLabels(labelsNode);
+        }
+        List<String> labels = new ArrayList<>();
+        List<Long> lastUse = new ArrayList<>();
+        for (int chunk = 0; labelsNode.hasNode(CHUNK_NODE_PREFIX + chunk); chunk++) {
+            Node chunkNode = labelsNode.getNode(CHUNK_NODE_PREFIX + chunk);
+            for (Value value : chunkNode.getProperty(CHUNK_LABELS_PROPERTY).getValues()) {
+                labels.add(value.getString());
+            }
+            for (Value value : chunkNode.getProperty(CHUNK_LAST_USE_PROPERTY).getValues()) {
+                lastUse.add(value.getLong());
+            }
+        }
+        return new IndexedBuffer<>(labelsNode.getProperty(LABELS_ID_PROPERTY).getString(),
+                (int) labelsNode.getProperty(BUFFER_LIMIT_PROPERTY).getLong(),
+                labels,
+                lastUse.stream().mapToLong(Long::longValue).toArray(),
+                labelsNode.getProperty(LABELS_VERSION_PROPERTY).getLong());
+    }
+
+    /**
+     * Labels stored formerly, as one property per index along with the eviction order.
+     */
+    private IndexedBuffer<String> getLegacyLabels(Node labelsNode) throws RepositoryException {
         PropertyIterator propIterator = labelsNode.getProperties();
         Map<String, String> properties = new HashMap<>();
         while (propIterator.hasNext()) {
@@ -137,50 +287,172 @@ public abstract class AbstractJcrNetworkStorageStrategy implements RankingNetwor
     private RankingInfo getOrCreateRankingInfo(MultiLayerNetwork network, User user) throws RepositoryException {
         final Node parentNode = getOrCreateNetworkNode(user);
         final IndexedBuffer<String> labels = getLabels(parentNode.getNode(LABELS_NODE_NAME));
+        final String queryEncoderId = parentNode.hasProperty(QUERY_ENCODER_PROPERTY) ?
+                parentNode.getProperty(QUERY_ENCODER_PROPERTY).getString() :
+                null;
 
-        return new RankingInfo(network, labels, user);
+        return new RankingInfo(network, labels, user, queryEncoderId);
     }
 
     /**
-     * This method is synchronized in order to prevent multiple quickly successive calls to interfere with each other.
+     * Calls are locked per storage key in {@link #store(RankingInfo)}, in order to prevent multiple quickly successive
+     * calls for the same network to interfere with each other, while networks of different users can be stored
+     * concurrently.
      *
      * <p>Thanks to the {@link Debouncer}, this <i>shouldn't</i> be happening anymore in a standard scenario.
      * But still better to keep it as a safeguard: if things are debounced, it shouldn't mean a performance hit anyway.
+     *
+     * <p>The network is serialized in the calling thread before anything is written to the session, so a failing
+     * serialization never reaches the repository; any failure discards the pending changes of the session.
      */
-    private synchronized void storeToJcr(RankingInfo rankingInfo) throws RepositoryException, IOException {
-        Node parentNode = getOrCreateNetworkNode(rankingInfo.getUser());
-
-        PipedInputStream in = new PipedInputStream();
-        OutputStream out = new PipedOutputStream(in);
+    private void storeToJcr(RankingInfo rankingInfo) throws RepositoryException, IOException, RankingNetworkStorageException {
+        // networks loaded for inference keep the updater state stored along with them
+        final INDArray storedUpdaterState = rankingInfo.isKeepStoredUpdaterState() ? loadUpdaterState(rankingInfo.getUser()).orElse(null) : null;
+        final long expectedSize = serializer.estimateSize(rankingInfo, storedUpdaterState);
+        final ReusableBuffer buffer = BUFFERS.get();
+        try {
+            buffer.reset(expectedSize);
+            serializer.write(rankingInfo, storedUpdaterState, false, buffer);
 
-        new Thread(() -> {
+            Node parentNode = getOrCreateNetworkNode(rankingInfo.getUser());
             try {
-                ModelSerializer.writeModel(rankingInfo.getNetwork(), out, true);
-            } catch (IOException e) {
-                log.error("Failed to write neural network to stream", e);
-            } finally {
-                IOUtils.closeQuietly(out);
+                JcrUtils.putFile(parentNode, FILENAME, "application/octet-stream", buffer.toInputStream());
+                if (rankingInfo.getQueryEncoderId() != null) {
+                    parentNode.setProperty(QUERY_ENCODER_PROPERTY, rankingInfo.getQueryEncoderId());
+                } else if (parentNode.hasProperty(QUERY_ENCODER_PROPERTY)) {
+                    parentNode.getProperty(QUERY_ENCODER_PROPERTY).remove();
+                }
+
+                storeLabels(JcrUtils.getOrAddNode(parentNode, LABELS_NODE_NAME, NodeTypes.Content.NAME), rankingInfo.getLabels());
+
+                parentNode.getSession().save();
+            } catch (RepositoryException | RuntimeException e) {
+                parentNode.getSession().refresh(false);
+                throw e;
             }
-        }, "WriteNeuralNetworkModelToStream").start();
+        } finally {
+            if (!buffer.isRetainable(expectedSize)) {
+                BUFFERS.remove();
+            }
+        }
+    }
+
+    /**
+     * Labels are stored in chunks of {@value #CHUNK_SIZE}, each holding the labels and last use times of consecutive
+     * indices. If the stored labels were last written by the same buffer, or are the ones it was restored from, only
+     * chunks with changes since the stored version are rewritten; otherwise all of them are, e.g. when another buffer
+     * restored from the same labels stored its own changes in the meantime.
+     */
+    private void storeLabels(Node labelsNode, IndexedBuffer<String> labels) throws RepositoryException {
+        // changes from now on are left to the next store, even if some of them are written already
+        long version = labels.getVersion();
+        long storedVersion = getStoredVersion(labelsNode, labels);
+        if (storedVersion < 0) {
+            removeLegacyLabels(labelsNode);
+        }
+
+        ValueFactory valueFactory = labelsNode.getSession().getValueFactory();
+        int size = labels.size();
+        int chunks = (size + CHUNK_SIZE - 1) / CHUNK_SIZE;
+        for (int chunk = 0; chunk < chunks; chunk++) {
+            int from = chunk * CHUNK_SIZE;
+            int to = Math.min(size, from + CHUNK_SIZE);
+            if (!hasChangesSince(labels, from, to, storedVersion)) {
+                continue;
+            }
+            String[] chunkLabels = new String[to - from];
+            Value[] chunkLastUse = new Value[to - from];
+            for (int index = from; index < to; index++) {
+                chunkLabels[index - from] = labels.labelAt(index);
+                chunkLastUse[index - from] = valueFactory.createValue(labels.lastUseAt(index));
+            }
+            Node chunkNode = JcrUtils.getOrAddNode(labelsNode, CHUNK_NODE_PREFIX + chunk, NodeTypes.Content.NAME);
+            chunkNode.setProperty(CHUNK_LABELS_PROPERTY, chunkLabels);
+            chunkNode.setProperty(CHUNK_LAST_USE_PROPERTY, chunkLastUse);
+        }
+        // delete old subsequent chunks
+        for (int chunk = chunks; labelsNode.hasNode(CHUNK_NODE_PREFIX + chunk); chunk++) {
+            labelsNode.getNode(CHUNK_NODE_PREFIX + chunk).remove();
+        }
 
-        JcrUtils.putFile(parentNode, FILENAME, "application/octet-stream", in);
+        labelsNode.setProperty(LABELS_ID_PROPERTY, labels.getId());
+        labelsNode.setProperty(LABELS_VERSION_PROPERTY, version);
+        labelsNode.setProperty(BUFFER_LIMIT_PROPERTY, labels.getLimit());
+    }
 
-        IndexedBuffer<String> labels = rankingInfo.getLabels();
+    /**
+     * Version of the stored labels the given buffer holds all of, along with its changes since; {@code -1} if it
+     * doesn't.
+     */
+    private static long getStoredVersion(Node labelsNode, IndexedBuffer<String> labels) throws RepositoryException {
+        String storedId = PropertyUtil.getString(labelsNode, LABELS_ID_PROPERTY);
+        if (storedId == null) {
+            return -1;
+        }
+        long storedVersion = labelsNode.getProperty(LABELS_VERSION_PROPERTY).getLong();
+        if (storedId.equals(labels.getId())) {
+            return storedVersion;
+        }
+        return storedId.equals(labels.getOriginId()) && storedVersion == labels.getOriginVersion() ? storedVersion : -1;
+    }
 
-        Node labelsNode = JcrUtils.getOrAddNode(parentNode, LABELS_NODE_NAME, NodeTypes.Content.NAME);
-        for (String label : labels.asList()) {
-            labelsNode.setProperty(Integer.toString(labels.indexOf(label)), label);
+    private static boolean hasChangesSince(IndexedBuffer<String> labels, int from, int to, long version) {
+        for (int index = from; index < to; index++) {
+            if (labels.lastChangeAt(index) > version) {
+                return true;
+            }
         }
-        // delete old subsequent labels
-        for (int i = labels.size(); labelsNode.hasProperty(Integer.toString(i)); i++) {
+        return false;
+    }
+
+    private static void removeLegacyLabels(Node labelsNode) throws RepositoryException {
+        for (int i = 0; labelsNode.hasProperty(Integer.toString(i)); i++) {
             labelsNode.getProperty(Integer.toString(i)).remove();
         }
+        if (labelsNode.hasProperty(EVICTION_ORDER_PROPERTY)) {
+            labelsNode.getProperty(EVICTION_ORDER_PROPERTY).remove();
+        }
+    }
 
-        String[] evictionOrderVals = labels.evictionOrder().toArray(new String[]{});
-        labelsNode.setProperty(EVICTION_ORDER_PROPERTY, evictionOrderVals);
+    /**
+     * {@link ByteArrayOutputStream} whose content can be read back without copying it.
+     */
+    static final class ReusableBuffer extends ByteArrayOutputStream {
 
-        labelsNode.setProperty(BUFFER_LIMIT_PROPERTY, labels.getLimit());
+        private static final int INITIAL_SIZE = 64 * 1024;
+        // ByteArrayOutputStream can't grow beyond this
+        private static final int MAX_SIZE = Integer.MAX_VALUE - 8;
+
+        ReusableBuffer() {
+            super(INITIAL_SIZE);
+        }
+
+        /**
+         * Empty the buffer, growing it at once to hold the expected size and some headroom rather than doubling it
+         * while writing.
+         */
+        void reset(long expectedSize) {
+            reset();
+            long size = Math.min(MAX_SIZE, expectedSize + expectedSize / 8);
+            if (buf.length < size) {
+                buf = new byte[(int) size];
+            }
+        }
+
+        /**
+         * Whether the buffer is worth keeping for networks of the expected size: buffers which grew once beyond it are,
+         * but not ones left over from much larger networks.
+         */
+        boolean isRetainable(long expectedSize) {
+            return buf.length <= Math.max(INITIAL_SIZE, 2 * expectedSize + expectedSize / 4);
+        }
 
-        parentNode.getSession().save();
+        InputStream toInputStream() {
+            return new ByteArrayInputStream(buf, 0, count);
+        }
+
+        int capacity() {
+            return buf.length;
+        }
     }
 }
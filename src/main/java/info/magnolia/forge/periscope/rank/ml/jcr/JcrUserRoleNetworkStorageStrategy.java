@@ -57,6 +57,11 @@ public class JcrUserRoleNetworkStorageStrategy extends AbstractJcrNetworkStorage
         }
     }
 
+    @Override
+    public String getStorageKey(User user) {
+        return userHasAccessToRankingsWorkspace(user) ? user.getName() : DEFAULT_RANKING_NODE_NAME;
+    }
+
     @Override
     protected Node getOrCreateNetworkNode(User user) throws RepositoryException {
         final Session session = MgnlContext.getJCRSession(WORKSPACE);
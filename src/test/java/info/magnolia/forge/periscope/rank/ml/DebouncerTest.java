@@ -14,15 +14,25 @@
  */
 package info.magnolia.forge.periscope.rank.ml;
 
+import static org.hamcrest.CoreMatchers.instanceOf;
 import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.Matchers.hasItem;
+import static org.hamcrest.Matchers.lessThan;
+import static org.hamcrest.Matchers.lessThanOrEqualTo;
 import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
 
 import info.magnolia.forge.periscope.rank.ml.Debouncer;
 
+import java.util.ArrayList;
+import java.util.List;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.junit.After;
 import org.junit.Before;
@@ -76,6 +86,123 @@ public class DebouncerTest {
         assertThat(charlieDone.get(), is(true));
     }
 
+    @Test
+    public void debounceIndependentlyPerKey() throws Exception {
+        // GIVEN
+        Debouncer debouncer = new Debouncer(executor, 50);
+
+        AtomicBoolean alphaDone = new AtomicBoolean(false);
+        AtomicBoolean bravoDone = new AtomicBoolean(false);
+        AtomicBoolean charlieDone = new AtomicBoolean(false);
+
+        // WHEN
+        CompletableFuture<Boolean> promiseAlpha = debouncer.debounce("foo", () -> alphaDone.set(true));
+        CompletableFuture<Boolean> promiseBravo = debouncer.debounce("bar", () -> bravoDone.set(true));
+        CompletableFuture<Boolean> promiseCharlie = debouncer.debounce("bar", () -> charlieDone.set(true));
+
+        // THEN first request of each key is executed, regardless of the other key
+        assertThat(promiseAlpha.get(), is(true));
+        assertThat(promiseBravo.get(), is(true));
+        assertThat(promiseCharlie.get(), is(true));
+
+        assertThat(alphaDone.get(), is(true));
+        assertThat(bravoDone.get(), is(true));
+        assertThat(charlieDone.get(), is(true));
+    }
+
+    @Test
+    public void burstOfRequestsShouldBeCoalescedWithoutSpawningThreads() throws Exception {
+        // GIVEN
+        Debouncer debouncer = new Debouncer(executor, 100);
+        int keys = 500;
+        int requestsPerKey = 20;
+        AtomicInteger executions = new AtomicInteger(0);
+        // make sure the shared scheduler thread is up already
+        debouncer.debounce("warm-up", () -> { }).get();
+        int threadsBefore = Thread.activeCount();
+
+        // WHEN
+        long start = System.nanoTime();
+        List<CompletableFuture<Boolean>> promises = new ArrayList<>();
+        for (int i = 0; i < requestsPerKey; i++) {
+            for (int key = 0; key < keys; key++) {
+                promises.add(debouncer.debounce(key, executions::incrementAndGet));
+            }
+        }
+        int threadsDuringBurst = Thread.activeCount();
+        CompletableFuture.allOf(promises.toArray(new CompletableFuture[]{})).get(10, TimeUnit.SECONDS);
+        long elapsedMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+
+        // THEN
+        assertThat(threadsDuringBurst - threadsBefore, is(lessThanOrEqualTo(1)));
+        // first request of each key runs right away, the last one after the interval; all others are superseded
+        assertThat(executions.get(), is(2 * keys));
+        long executed = promises.stream().filter(CompletableFuture::join).count();
+        assertThat(executed, is((long) 2 * keys));
+        assertThat(elapsedMillis, is(lessThan(5000L)));
+    }
+
+    @Test
+    public void flushShouldExecutePendingOperationsRightAway() throws Exception {
+        // GIVEN
+        Debouncer debouncer = new Debouncer(executor, 60 * 1000);
+        debouncer.debounce("foo", () -> { }).get();
+        AtomicBoolean alphaDone = new AtomicBoolean(false);
+        CompletableFuture<Boolean> promiseAlpha = debouncer.debounce("foo", () -> alphaDone.set(true));
+
+        // WHEN
+        List<CompletableFuture<Boolean>> flushed = debouncer.flush();
+
+        // THEN
+        assertThat(flushed, hasItem(promiseAlpha));
+        assertThat(promiseAlpha.get(1, TimeUnit.SECONDS), is(true));
+        assertThat(alphaDone.get(), is(true));
+
+        // subsequent requests aren't delayed anymore either
+        assertThat(debouncer.debounce("foo", () -> { }).get(1, TimeUnit.SECONDS), is(true));
+    }
+
+    @Test
+    public void idleKeysShouldBeForgotten() throws Exception {
+        // GIVEN
+        Debouncer debouncer = new Debouncer(executor, 50);
+        AtomicInteger executions = new AtomicInteger(0);
+        debouncer.debounce("foo", executions::incrementAndGet).get(1, TimeUnit.SECONDS);
+        debouncer.debounce("bar", executions::incrementAndGet).get(1, TimeUnit.SECONDS);
+        assertThat(debouncer.size(), is(2));
+
+        // WHEN
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (debouncer.size() > 0 && System.nanoTime() < deadline) {
+            Thread.sleep(10);
+        }
+
+        // THEN
+        assertThat(debouncer.size(), is(0));
+        assertThat(debouncer.debounce("foo", executions::incrementAndGet).get(1, TimeUnit.SECONDS), is(true));
+        assertThat(executions.get(), is(3));
+    }
+
+    @Test
+    public void failedOperationShouldCompleteExceptionally() throws Exception {
+        // GIVEN
+        Debouncer debouncer = new Debouncer(executor, 50);
+
+        // WHEN
+        CompletableFuture<Boolean> promise = debouncer.debounce("foo", () -> {
+            throw new IllegalStateException("repository down");
+        });
+
+        // THEN
+        try {
+            promise.get(1, TimeUnit.SECONDS);
+            fail("Expected the operation to fail");
+        } catch (ExecutionException e) {
+            assertThat(e.getCause(), instanceOf(IllegalStateException.class));
+        }
+        assertThat(debouncer.debounce("foo", () -> { }).get(1, TimeUnit.SECONDS), is(true));
+    }
+
     @After
     public void tearDown() {
         executor.shutdownNow();
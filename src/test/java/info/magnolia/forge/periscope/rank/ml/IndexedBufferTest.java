@@ -15,11 +15,24 @@
 package info.magnolia.forge.periscope.rank.ml;
 
 import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.hamcrest.Matchers.lessThan;
 import static org.junit.Assert.*;
 
 import info.magnolia.forge.periscope.rank.ml.IndexedBuffer;
 
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.IntStream;
 
 import org.junit.Test;
 
@@ -90,4 +103,187 @@ public class IndexedBufferTest {
         assertThat(buffer.indexOf("charlie"), is(2));
         assertThat(buffer.indexOf("golf"), is(3));
     }
-}
\ No newline at end of file
+
+    @Test
+    public void growingKeepsIndicesAndEvictionOrder() {
+        // GIVEN
+        IndexedBuffer<String> buffer = new IndexedBuffer<>(3);
+        buffer.addAll(Arrays.asList("alpha", "bravo", "charlie"));
+        buffer.touch("alpha");
+
+        // WHEN
+        IndexedBuffer<String> resized = buffer.resize(5);
+
+        // THEN
+        assertThat(resized.getLimit(), is(5));
+        assertThat(resized.indexOf("alpha"), is(0));
+        assertThat(resized.indexOf("bravo"), is(1));
+        assertThat(resized.indexOf("charlie"), is(2));
+        assertThat(resized.evictionOrder(), is(Arrays.asList("bravo", "charlie", "alpha")));
+        assertFalse(resized.add("delta").isPresent());
+    }
+
+    @Test
+    public void shrinkingKeepsMostRecentlyUsed() {
+        // GIVEN
+        IndexedBuffer<String> buffer = new IndexedBuffer<>(5);
+        buffer.addAll(Arrays.asList("alpha", "bravo", "charlie", "delta", "echo"));
+        buffer.touch("alpha");
+        buffer.touch("charlie");
+
+        // WHEN
+        IndexedBuffer<String> resized = buffer.resize(3);
+
+        // THEN "alpha" and "charlie" keep their index, "echo" moves to the first free one
+        assertThat(resized.size(), is(3));
+        assertThat(resized.indexOf("alpha"), is(0));
+        assertThat(resized.indexOf("echo"), is(1));
+        assertThat(resized.indexOf("charlie"), is(2));
+        assertFalse(resized.contains("bravo"));
+        assertFalse(resized.contains("delta"));
+
+        // "echo" is still the least recently used one
+        assertThat(resized.add("foxtrot").get(), is(1));
+    }
+
+    @Test
+    public void evictedItemsCanBeFoundAgainAfterCollisions() {
+        // GIVEN many more items than buckets, forcing probe sequences to wrap and entries to shift back on removal
+        IndexedBuffer<Integer> buffer = new IndexedBuffer<>(8);
+
+        // WHEN
+        IntStream.range(0, 1000).forEach(buffer::add);
+
+        // THEN
+        assertThat(buffer.size(), is(8));
+        for (int item = 992; item < 1000; item++) {
+            assertThat(buffer.indexOf(item), is(item % 8));
+        }
+        for (int item = 0; item < 992; item++) {
+            assertFalse(buffer.contains(item));
+        }
+    }
+
+    @Test
+    public void concurrentAccessShouldKeepIndicesConsistent() throws Exception {
+        // GIVEN
+        IndexedBuffer<String> buffer = new IndexedBuffer<>(64);
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        CountDownLatch start = new CountDownLatch(1);
+        AtomicInteger misplaced = new AtomicInteger();
+
+        // WHEN
+        List<Future<?>> tasks = new ArrayList<>();
+        for (int thread = 0; thread < 8; thread++) {
+            int seed = thread;
+            tasks.add(executor.submit(() -> {
+                Random random = new Random(seed);
+                start.await();
+                for (int i = 0; i < 20000; i++) {
+                    String item = "item-" + random.nextInt(256);
+                    switch (random.nextInt(3)) {
+                    case 0:
+                        buffer.add(item);
+                        break;
+                    case 1:
+                        buffer.touch(item);
+                        break;
+                    default:
+                        int index = buffer.indexOf(item);
+                        if (index >= buffer.getLimit()) {
+                            misplaced.incrementAndGet();
+                        }
+                    }
+                }
+                return null;
+            }));
+        }
+        start.countDown();
+        for (Future<?> task : tasks) {
+            task.get(1, TimeUnit.MINUTES);
+        }
+        executor.shutdown();
+
+        // THEN
+        List<String> items = buffer.asList();
+        assertThat(misplaced.get(), is(0));
+        assertThat(items.size(), is(64));
+        for (int index = 0; index < items.size(); index++) {
+            assertThat(buffer.indexOf(items.get(index)), is(index));
+        }
+        assertThat(new HashSet<>(buffer.evictionOrder()), is(new HashSet<>(items)));
+        assertThat(buffer.evictionOrder().size(), is(64));
+    }
+
+    @Test
+    public void labelAtShouldMirrorIndexOf() {
+        // GIVEN
+        IndexedBuffer<String> buffer = new IndexedBuffer<>(3);
+
+        // WHEN
+        buffer.addAll(Arrays.asList("alpha", "bravo", "charlie", "delta"));
+
+        // THEN
+        assertThat(buffer.labelAt(0), is("delta"));
+        assertThat(buffer.labelAt(1), is("bravo"));
+        assertThat(buffer.labelAt(2), is("charlie"));
+        assertThat(new IndexedBuffer<String>(3).labelAt(2), is(nullValue()));
+    }
+
+    @Test(expected = IndexOutOfBoundsException.class)
+    public void labelAtShouldRejectIndicesBeyondLimit() {
+        new IndexedBuffer<String>(3).labelAt(3);
+    }
+
+    @Test
+    public void forEachShouldVisitItemsByIndex() {
+        // GIVEN
+        IndexedBuffer<String> buffer = new IndexedBuffer<>(5);
+        buffer.addAll(Arrays.asList("alpha", "bravo", "charlie"));
+        buffer.touch("alpha");
+
+        // WHEN
+        List<String> visited = new ArrayList<>();
+        buffer.forEach((index, item) -> visited.add(index + ":" + item));
+
+        // THEN
+        assertThat(visited, is(Arrays.asList("0:alpha", "1:bravo", "2:charlie")));
+    }
+
+    @Test
+    public void replacedItemKeepsIndexAndRecency() {
+        // GIVEN
+        IndexedBuffer<String> buffer = new IndexedBuffer<>(3);
+        buffer.addAll(Arrays.asList("alpha", "bravo", "charlie"));
+
+        // WHEN
+        boolean replaced = buffer.replace("alpha", "ALPHA");
+
+        // THEN
+        assertTrue(replaced);
+        assertFalse(buffer.contains("alpha"));
+        assertThat(buffer.indexOf("ALPHA"), is(0));
+        assertThat(buffer.evictionOrder(), is(Arrays.asList("ALPHA", "bravo", "charlie")));
+        assertFalse(buffer.replace("bravo", "charlie"));
+        assertFalse(buffer.replace("delta", "echo"));
+    }
+
+    @Test
+    public void snapshotShouldKeepIdentityButNotFollowChanges() {
+        // GIVEN
+        IndexedBuffer<String> buffer = new IndexedBuffer<>(3);
+        buffer.addAll(Arrays.asList("alpha", "bravo", "charlie"));
+
+        // WHEN
+        IndexedBuffer<String> snapshot = buffer.snapshot();
+        buffer.add("delta");
+        buffer.touch("bravo");
+
+        // THEN
+        assertThat(snapshot.getId(), is(buffer.getId()));
+        assertThat(snapshot.asList(), is(Arrays.asList("alpha", "bravo", "charlie")));
+        assertThat(snapshot.evictionOrder(), is(Arrays.asList("alpha", "bravo", "charlie")));
+        assertThat(snapshot.getVersion(), is(lessThan(buffer.getVersion())));
+        assertThat(snapshot.indexOf("charlie"), is(2));
+    }
+}
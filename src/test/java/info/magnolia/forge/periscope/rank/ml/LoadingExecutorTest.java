@@ -0,0 +1,67 @@
+/**
+ * This file Copyright (c) 2019 Magnolia International
+ * Ltd.  (http://www.magnolia-cms.com). All rights reserved.
+ *
+ *
+ * This program and the accompanying materials are made
+ * available under the terms of the Magnolia Network Agreement
+ * which accompanies this distribution, and is available at
+ * http://www.magnolia-cms.com/mna.html
+ *
+ * Any modifications to this file must keep this entire header
+ * intact.
+ *
+ */
+package info.magnolia.forge.periscope.rank.ml;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.common.util.concurrent.Uninterruptibles;
+
+public class LoadingExecutorTest {
+
+    private LoadingExecutor executor;
+
+    @Before
+    public void setUp() {
+        executor = new LoadingExecutor(1, Executors.defaultThreadFactory());
+    }
+
+    @Test
+    public void interactiveTasksShouldRunBeforeWarmUp() throws Exception {
+        // GIVEN a busy executor
+        CountDownLatch busy = new CountDownLatch(1);
+        executor.execute(() -> Uninterruptibles.awaitUninterruptibly(busy));
+        List<String> executed = new CopyOnWriteArrayList<>();
+
+        // WHEN
+        executor.execute(() -> executed.add("warm-up a"), LoadingExecutor.Priority.WARM_UP);
+        LoadingExecutor.Task warmUpB = executor.execute(() -> executed.add("warm-up b"), LoadingExecutor.Priority.WARM_UP);
+        executor.execute(() -> executed.add("interactive"));
+        LoadingExecutor.Task prioritized = executor.prioritize(warmUpB);
+        busy.countDown();
+
+        // THEN
+        executor.shutdown();
+        executor.awaitTermination(10, TimeUnit.SECONDS);
+        assertThat(prioritized.getPriority(), is(LoadingExecutor.Priority.INTERACTIVE));
+        assertThat(executed, is(Arrays.asList("interactive", "warm-up b", "warm-up a")));
+    }
+
+    @After
+    public void tearDown() {
+        executor.shutdownNow();
+    }
+}
@@ -0,0 +1,189 @@
+/**
+ * This file Copyright (c) 2019 Magnolia International
+ * Ltd.  (http://www.magnolia-cms.com). All rights reserved.
+ *
+ *
+ * This program and the accompanying materials are made
+ * available under the terms of the Magnolia Network Agreement
+ * which accompanies this distribution, and is available at
+ * http://www.magnolia-cms.com/mna.html
+ *
+ * Any modifications to this file must keep this entire header
+ * intact.
+ *
+ */
+package info.magnolia.forge.periscope.rank.ml;
+
+import static java.util.stream.Collectors.toList;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.mockito.Mockito.*;
+
+import info.magnolia.cms.beans.config.ServerConfiguration;
+import info.magnolia.cms.security.SecuritySupport;
+import info.magnolia.cms.security.User;
+import info.magnolia.cms.security.UserManager;
+import info.magnolia.objectfactory.ComponentProvider;
+import info.magnolia.periscope.PeriscopeModule;
+import info.magnolia.periscope.rank.ResultRanker;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+
+public class NeuralNetworkResultRankerFactoryTest {
+
+    private static final long BYTES_PER_MEGABYTE = 1024 * 1024;
+
+    private ComponentProvider componentProvider;
+    private PeriscopeResultRankerModule module;
+    private RankingNetworkStorage storage;
+    private UserManager userManager;
+    private NeuralNetworkResultRankerFactory factory;
+    private final Map<String, User> users = new HashMap<>();
+
+    @Before
+    public void setUp() {
+        componentProvider = mock(ComponentProvider.class);
+        module = new PeriscopeResultRankerModule();
+        storage = mock(RankingNetworkStorage.class);
+        userManager = mock(UserManager.class);
+        SecuritySupport securitySupport = mock(SecuritySupport.class);
+        when(securitySupport.getUserManager()).thenReturn(userManager);
+        PeriscopeModule periscopeModule = mock(PeriscopeModule.class);
+        factory = new NeuralNetworkResultRankerFactory(mock(ServerConfiguration.class), componentProvider, () -> periscopeModule,
+                () -> module, storage, () -> securitySupport);
+    }
+
+    @Test
+    public void persistAllShouldScheduleCachedRankersToBePersisted() {
+        // GIVEN
+        NeuralNetworkResultRanker ranker = mockRanker("foobar");
+        NeuralNetworkResultRanker other = mockRanker("other");
+        factory.doCreateRanker(userNamed("foobar"));
+        factory.doCreateRanker(userNamed("other"));
+
+        // WHEN
+        factory.persistAll();
+
+        // THEN
+        verify(ranker).schedulePersist();
+        verify(other).schedulePersist();
+        verify(ranker, never()).flush();
+    }
+
+    @Test
+    public void persistAllWithoutRankersShouldDoNothing() {
+        // WHEN
+        factory.persistAll();
+        factory.invalidateAll();
+
+        // THEN
+        verifyZeroInteractions(componentProvider);
+    }
+
+    @Test
+    public void invalidateAllShouldFlushCachedRankers() throws Exception {
+        // GIVEN
+        NeuralNetworkResultRanker ranker = mockRanker("foobar");
+        factory.doCreateRanker(userNamed("foobar"));
+
+        // WHEN
+        List<CompletableFuture<Boolean>> flushes = factory.invalidateAll();
+
+        // THEN flushed on the training executor
+        verify(ranker, timeout(1000)).flush();
+        assertThat(flushes.size(), is(1));
+        assertThat(flushes.get(0).get(1, TimeUnit.SECONDS), is(true));
+        assertThat(factory.doCreateRanker(userNamed("foobar")), is((ResultRanker) ranker));
+        verify(componentProvider, times(2)).newInstance(eq(ResultRanker.class), anyVararg());
+    }
+
+    @Test
+    public void warmUpShouldPreloadRecentUsersOncePerNetwork() {
+        // GIVEN
+        NeuralNetworkResultRanker ranker = mockRanker("foobar");
+        User alias = userNamed("alias");
+        when(storage.getStorageKey(alias)).thenReturn("foobar");
+        when(storage.getRecentUserNames(5)).thenReturn(Arrays.asList("foobar", "alias", "unknown"));
+
+        // WHEN
+        int warmedUp = factory.warmUp(5, RankerCacheConfiguration.DEFAULT_MAX_MEMORY_MEGABYTES);
+
+        // THEN
+        assertThat(warmedUp, is(1));
+        verify(storage).getRecentUserNames(5);
+        verify(ranker).preload();
+        verify(componentProvider, times(1)).newInstance(eq(ResultRanker.class), anyVararg());
+    }
+
+    @Test
+    public void warmUpShouldNotCreateRankersBeyondMemoryBudget() {
+        // GIVEN a budget for two and a half rankers
+        long rankerMemoryUsage = NeuralNetworkResultRanker.estimateMemoryUsage(module);
+        long memoryMegabytes = (rankerMemoryUsage * 5 / 2 + BYTES_PER_MEGABYTE - 1) / BYTES_PER_MEGABYTE;
+        List<String> userNames = Arrays.asList("alpha", "bravo", "charlie", "delta");
+        List<NeuralNetworkResultRanker> rankers = userNames.stream().map(this::mockRanker).collect(toList());
+        when(storage.getRecentUserNames(4)).thenReturn(userNames);
+
+        // WHEN
+        int warmedUp = factory.warmUp(4, memoryMegabytes);
+
+        // THEN
+        assertThat(warmedUp, is(2));
+        verify(rankers.get(0)).preload();
+        verify(rankers.get(1)).preload();
+        verify(componentProvider, times(2)).newInstance(eq(ResultRanker.class), anyVararg());
+    }
+
+    @Test
+    public void rankersShouldBeWeighedAgainOnceGrown() {
+        // GIVEN
+        RankerCacheConfiguration cacheConfiguration = new RankerCacheConfiguration();
+        cacheConfiguration.setMaxMemoryMegabytes(10);
+        cacheConfiguration.setIdleTimeoutMinutes(0);
+        module.setRankerCache(cacheConfiguration);
+        NeuralNetworkResultRanker alpha = mockRanker("alpha");
+        NeuralNetworkResultRanker bravo = mockRanker("bravo");
+        when(alpha.estimateMemoryUsage()).thenReturn(BYTES_PER_MEGABYTE);
+        when(bravo.estimateMemoryUsage()).thenReturn(BYTES_PER_MEGABYTE);
+        factory.doCreateRanker(userNamed("alpha"));
+        factory.doCreateRanker(userNamed("bravo"));
+        ArgumentCaptor<Runnable> listener = ArgumentCaptor.forClass(Runnable.class);
+        verify(bravo).setMemoryUsageListener(listener.capture());
+
+        // WHEN bravo's network got loaded and trained
+        when(bravo.estimateMemoryUsage()).thenReturn(10 * BYTES_PER_MEGABYTE);
+        listener.getValue().run();
+
+        // THEN
+        verify(alpha, timeout(1000)).flush();
+        verify(bravo, never()).flush();
+    }
+
+    private NeuralNetworkResultRanker mockRanker(String userName) {
+        User user = userNamed(userName);
+        NeuralNetworkResultRanker ranker = mock(NeuralNetworkResultRanker.class);
+        when(ranker.estimateMemoryUsage()).thenReturn(NeuralNetworkResultRanker.estimateMemoryUsage(module));
+        when(ranker.flush()).thenReturn(CompletableFuture.completedFuture(true));
+        when(componentProvider.newInstance(ResultRanker.class, user)).thenReturn(ranker);
+        return ranker;
+    }
+
+    private User userNamed(String name) {
+        return users.computeIfAbsent(name, key -> {
+            User user = mock(User.class);
+            when(user.getName()).thenReturn(key);
+            when(storage.getStorageKey(user)).thenReturn(key);
+            when(userManager.getUser(key)).thenReturn(user);
+            return user;
+        });
+    }
+}
@@ -19,25 +19,46 @@ import static org.hamcrest.CoreMatchers.is;
 import static org.hamcrest.Matchers.*;
 import static org.hamcrest.number.OrderingComparison.greaterThanOrEqualTo;
 import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 import static org.mockito.Mockito.*;
 
 import info.magnolia.cms.security.User;
+import info.magnolia.context.SystemContext;
 import info.magnolia.forge.periscope.rank.ml.RankingNetworkStorageStrategy.RankingInfo;
+import info.magnolia.forge.periscope.rank.ml.RankingNetworkStorageStrategy.TrainingEvent;
 import info.magnolia.periscope.search.SearchResult;
+import info.magnolia.test.ComponentsTestUtil;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.Comparator;
 import java.util.List;
 import java.util.Optional;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.stream.IntStream;
 
 import org.apache.commons.collections4.CollectionUtils;
 import org.junit.Before;
 import org.junit.Test;
+import org.nd4j.linalg.api.ndarray.INDArray;
 
 import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.Uninterruptibles;
 
 public class NeuralNetworkResultRankerTest {
 
@@ -327,10 +348,493 @@ public class NeuralNetworkResultRankerTest {
         assertThat(ranked.indexOf(additionalResult), is(lessThan(untrainedIndex)));
     }
 
+    @Test
+    public void rankingShouldMatchOrderingOfAllLabels() {
+        // GIVEN
+        IntStream.range(0, 3).forEach(i -> network.trainRanking("car", results.iterator().next()));
+        network.trainRanking("carg", new ArrayList<>(results).get(3));
+
+        for (String query : Arrays.asList("car", "carg", "sbb", "glass")) {
+            // WHEN
+            List<SearchResult> ranked = new ArrayList<>(network.rank(query, results));
+
+            // THEN
+            assertThat(ranked, is(rankBySortingAllLabels(network, query, results)));
+        }
+    }
+
+    @Test
+    public void unitScoresShouldOrderLikeNetworkOutput() {
+        // GIVEN
+        IntStream.range(0, 3).forEach(i -> network.trainRanking("car", new ArrayList<>(results).get(2)));
+        int[] units = {5, -1, 0, 2, 4};
+
+        // WHEN
+        float[] scores = network.scoreUnits("car", units);
+
+        // THEN
+        INDArray output = network.output("car");
+        assertTrue(Float.isNaN(scores[1]));
+        for (int i : new int[]{0, 2, 3, 4}) {
+            for (int j : new int[]{0, 2, 3, 4}) {
+                assertThat(Float.compare(scores[i], scores[j]), is(Float.compare(output.getFloat(units[i]), output.getFloat(units[j]))));
+            }
+        }
+    }
+
+    @Test
+    public void unknownResultsShouldKeepOriginalOrderAtTheEnd() {
+        // GIVEN
+        SearchResult unseenAlpha = SearchResult.builder().title("Unseen alpha").build();
+        SearchResult unseenBravo = SearchResult.builder().title("Unseen bravo").build();
+        List<SearchResult> mixed = new ArrayList<>();
+        mixed.add(unseenAlpha);
+        mixed.addAll(results);
+        mixed.add(unseenBravo);
+
+        // WHEN
+        List<SearchResult> ranked = new ArrayList<>(network.rank("car", mixed));
+
+        // THEN
+        assertThat(ranked.subList(0, results.size()), containsInAnyOrder(results.toArray()));
+        assertThat(ranked.subList(results.size(), ranked.size()), contains(unseenAlpha, unseenBravo));
+    }
+
+    @Test
+    public void topKShouldOnlySortBestResults() {
+        // GIVEN
+        PeriscopeResultRankerModule topKModule = new PeriscopeResultRankerModule();
+        topKModule.setOutputUnits(OUTPUT_UNITS);
+        topKModule.setTopK(2);
+        topKModule.setTrainingBatchSize(1);
+        topKModule.setTrainingMaxDelay(0L);
+        NeuralNetworkResultRanker topKRanker = new NeuralNetworkResultRanker(new NoopNetworkStorage(module), topKModule, 123, user);
+        topKRanker.addResults(results);
+        IntStream.range(0, 2).forEach(i -> topKRanker.trainRanking("car", new ArrayList<>(results).get(4)));
+
+        // WHEN
+        List<SearchResult> ranked = new ArrayList<>(topKRanker.rank("car", results));
+
+        // THEN
+        List<SearchResult> fullyRanked = rankBySortingAllLabels(topKRanker, "car", results);
+        assertThat(ranked.subList(0, 2), is(fullyRanked.subList(0, 2)));
+
+        List<SearchResult> remaining = new ArrayList<>(results);
+        remaining.removeAll(fullyRanked.subList(0, 2));
+        assertThat(ranked.subList(2, ranked.size()), is(remaining));
+    }
+
+    @Test
+    public void failedFlushShouldKeepRankerChanged() throws Exception {
+        // GIVEN
+        AtomicInteger stores = new AtomicInteger();
+        RankingNetworkStorage failingOnceStorage = new NoopNetworkStorage(module) {
+            @Override
+            CompletableFuture<Boolean> persistNow(RankingInfo rankingInfo) {
+                CompletableFuture<Boolean> stored = new CompletableFuture<>();
+                if (stores.incrementAndGet() > 1) {
+                    stored.complete(true);
+                } else {
+                    stored.completeExceptionally(new CompletionException(new RankingNetworkStorageException(new RuntimeException("repository down"))));
+                }
+                return stored;
+            }
+        };
+        NeuralNetworkResultRanker ranker = new NeuralNetworkResultRanker(failingOnceStorage, synchronousModule(), 123, user);
+        ranker.addResults(results);
+        ranker.trainRanking("car", results.iterator().next());
+
+        // WHEN
+        boolean firstFlushFailed = ranker.flush().handle((stored, e) -> e != null).get(10, TimeUnit.SECONDS);
+        boolean secondFlush = ranker.flush().get(10, TimeUnit.SECONDS);
+
+        // THEN
+        assertThat(firstFlushFailed, is(true));
+        assertThat(secondFlush, is(true));
+        assertThat(ranker.flush().get(10, TimeUnit.SECONDS), is(false));
+        assertThat(stores.get(), is(2));
+    }
+
+    @Test
+    public void nonPositiveTopKShouldRankAllResults() {
+        // GIVEN
+        PeriscopeResultRankerModule topKModule = synchronousModule();
+        topKModule.setTopK(-1);
+        NeuralNetworkResultRanker topKRanker = new NeuralNetworkResultRanker(new NoopNetworkStorage(module), topKModule, 123, user);
+        topKRanker.addResults(results);
+        IntStream.range(0, 2).forEach(i -> topKRanker.trainRanking("car", new ArrayList<>(results).get(4)));
+
+        // WHEN
+        List<SearchResult> ranked = new ArrayList<>(topKRanker.rank("car", results));
+
+        // THEN
+        assertThat(ranked, is(rankBySortingAllLabels(topKRanker, "car", results)));
+    }
+
+    @Test
+    public void sharedRankerShouldSupportConcurrentRankingAndTraining() throws Exception {
+        // GIVEN
+        List<SearchResult> resultList = new ArrayList<>(results);
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+
+        // WHEN
+        List<Future<Collection<SearchResult>>> rankings = new ArrayList<>();
+        for (int i = 0; i < 40; i++) {
+            SearchResult selection = resultList.get(i % resultList.size());
+            executor.submit(() -> network.trainRanking("car", selection));
+            rankings.add(executor.submit(() -> network.rank("car", results)));
+        }
+        executor.shutdown();
+        assertTrue(executor.awaitTermination(1, TimeUnit.MINUTES));
+
+        // THEN
+        for (Future<Collection<SearchResult>> ranking : rankings) {
+            assertThat(ranking.get(), containsInAnyOrder(results.toArray()));
+        }
+        assertThat(network.getResultTexts().size(), is(6));
+    }
+
+    @Test
+    public void concurrentRankingsShouldMatchSequentialOnes() throws Exception {
+        List<String> queries = Arrays.asList("car", "cargo", "glass", "gold", "sbb", "guru");
+        for (RankingInfoSerializer.Precision precision : RankingInfoSerializer.Precision.values()) {
+            // GIVEN a trained ranker and its rankings, one query at a time
+            PeriscopeResultRankerModule precisionModule = synchronousModule();
+            precisionModule.setInferencePrecision(precision);
+            NeuralNetworkResultRanker ranker = new NeuralNetworkResultRanker(new NoopNetworkStorage(module), precisionModule, 123, user);
+            ranker.addResults(results);
+            List<SearchResult> resultList = new ArrayList<>(results);
+            IntStream.range(0, queries.size()).forEach(i -> ranker.trainRanking(queries.get(i), resultList.get(i)));
+            List<List<SearchResult>> expected = queries.stream()
+                    .map(query -> new ArrayList<>(ranker.rank(query, results)))
+                    .collect(toList());
+
+            // WHEN
+            ExecutorService executor = Executors.newFixedThreadPool(4);
+            List<Future<List<SearchResult>>> rankings = new ArrayList<>();
+            for (int i = 0; i < 200; i++) {
+                String query = queries.get(i % queries.size());
+                rankings.add(executor.submit(() -> new ArrayList<>(ranker.rank(query, results))));
+            }
+            executor.shutdown();
+            assertTrue(executor.awaitTermination(1, TimeUnit.MINUTES));
+
+            // THEN
+            for (int i = 0; i < rankings.size(); i++) {
+                assertThat(precision.name(), rankings.get(i).get(), is(expected.get(i % queries.size())));
+            }
+        }
+    }
+
+    @Test
+    public void storedNetworksShouldNotChangeWhileTrainingGoesOn() throws Exception {
+        // GIVEN a storage taking its time to store
+        List<Boolean> unchanged = new CopyOnWriteArrayList<>();
+        ExecutorService storingExecutor = Executors.newSingleThreadExecutor();
+        RankingNetworkStorage slowStorage = new NoopNetworkStorage(module) {
+            @Override
+            CompletableFuture<Boolean> persist(RankingInfo rankingInfo) {
+                return CompletableFuture.supplyAsync(() -> {
+                    INDArray params = rankingInfo.getNetwork().params().dup();
+                    List<String> labels = rankingInfo.getLabels().asList();
+                    Uninterruptibles.sleepUninterruptibly(5, TimeUnit.MILLISECONDS);
+                    unchanged.add(params.equals(rankingInfo.getNetwork().params()) && labels.equals(rankingInfo.getLabels().asList()));
+                    return true;
+                }, storingExecutor);
+            }
+        };
+        NeuralNetworkResultRanker ranker = new NeuralNetworkResultRanker(slowStorage, synchronousModule(), 123, user);
+        ranker.addResults(results);
+        List<SearchResult> resultList = new ArrayList<>(results);
+
+        // WHEN
+        for (int i = 0; i < 20; i++) {
+            ranker.trainRanking("car", resultList.get(i % resultList.size()));
+            ranker.addResults(Collections.singletonList(SearchResult.builder().title("Result " + i).build()));
+        }
+        storingExecutor.shutdown();
+        assertTrue(storingExecutor.awaitTermination(1, TimeUnit.MINUTES));
+
+        // THEN
+        assertThat(unchanged, hasSize(20));
+        assertThat(unchanged, everyItem(is(true)));
+    }
+
+    @Test
+    public void networkTrainedWithAnotherQueryEncoderShouldBeDiscarded() {
+        // GIVEN
+        InMemNetworkStorage storage = new InMemNetworkStorage();
+        NeuralNetworkResultRanker asciiRanker = new NeuralNetworkResultRanker(storage, 123, OUTPUT_UNITS, user);
+        asciiRanker.addResults(results);
+        asciiRanker.trainRanking("car", results.iterator().next());
+
+        PeriscopeResultRankerModule ngramModule = new PeriscopeResultRankerModule();
+        ngramModule.setOutputUnits(OUTPUT_UNITS);
+        ngramModule.setQueryEncoder(new HashedNgramQueryEncoder());
+        ngramModule.setTrainingBatchSize(1);
+        ngramModule.setTrainingMaxDelay(0L);
+
+        // WHEN
+        NeuralNetworkResultRanker sameEncoderRanker = new NeuralNetworkResultRanker(storage, 123, OUTPUT_UNITS, user);
+        NeuralNetworkResultRanker ngramRanker = new NeuralNetworkResultRanker(storage, ngramModule, 123, user);
+        ngramRanker.addResults(results);
+
+        // THEN
+        assertThat(sameEncoderRanker.getResultTexts().size(), is(6));
+        assertThat(ngramRanker.rank("\u041a\u0430\u0440", results), containsInAnyOrder(results.toArray()));
+        ngramRanker.trainRanking("car", results.iterator().next());
+        assertThat(new NeuralNetworkResultRanker(storage, ngramModule, 123, user).getResultTexts().size(), is(6));
+        assertThat(new NeuralNetworkResultRanker(storage, 123, OUTPUT_UNITS, user).getResultTexts().size(), is(0));
+    }
+
+    @Test
+    public void tinyArchitectureShouldMoveUpPreviouslyChosenResult() {
+        // GIVEN
+        PeriscopeResultRankerModule tinyModule = synchronousModule();
+        tinyModule.getArchitecture().setPreset(NetworkArchitecture.Preset.TINY);
+        NeuralNetworkResultRanker tinyRanker = new NeuralNetworkResultRanker(new NoopNetworkStorage(module), tinyModule, 123, user);
+        tinyRanker.addResults(results);
+        List<SearchResult> sortedBefore = new ArrayList<>(tinyRanker.rank("car", results));
+        SearchResult fifth = sortedBefore.get(4);
+
+        // WHEN
+        IntStream.range(0, 2).forEach(i -> tinyRanker.trainRanking("car", fifth));
+
+        // THEN
+        List<SearchResult> sortedAfter = new ArrayList<>(tinyRanker.rank("car", results));
+        assertThat(sortedAfter.indexOf(fifth), is(lessThan(4)));
+        assertThat(tinyRanker.estimateMemoryUsage(), is(lessThan(network.estimateMemoryUsage())));
+    }
+
+    @Test
+    public void quantizedInferenceShouldMoveUpPreviouslyChosenResult() {
+        for (RankingInfoSerializer.Precision precision : Arrays.asList(RankingInfoSerializer.Precision.FP16, RankingInfoSerializer.Precision.INT8)) {
+            // GIVEN
+            PeriscopeResultRankerModule quantizedModule = synchronousModule();
+            quantizedModule.setInferencePrecision(precision);
+            NeuralNetworkResultRanker quantizedRanker = new NeuralNetworkResultRanker(new NoopNetworkStorage(module), quantizedModule, 123, user);
+            quantizedRanker.addResults(results);
+            List<SearchResult> sortedBefore = new ArrayList<>(quantizedRanker.rank("car", results));
+            SearchResult fifth = sortedBefore.get(4);
+
+            // WHEN
+            IntStream.range(0, 3).forEach(i -> quantizedRanker.trainRanking("car", fifth));
+
+            // THEN
+            List<SearchResult> sortedAfter = new ArrayList<>(quantizedRanker.rank("car", results));
+            assertThat(precision.name(), sortedAfter.indexOf(fifth), is(lessThan(4)));
+        }
+    }
+
+    @Test
+    public void changedHyperparametersShouldMigrateStoredNetwork() {
+        // GIVEN
+        InMemNetworkStorage storage = new InMemNetworkStorage();
+        NeuralNetworkResultRanker ranker = new NeuralNetworkResultRanker(storage, 123, OUTPUT_UNITS, user);
+        ranker.addResults(results);
+        ranker.trainRanking("car", results.iterator().next());
+        INDArray trainedOutput = ranker.output("car").dup();
+
+        PeriscopeResultRankerModule adamModule = synchronousModule();
+        adamModule.getArchitecture().setUpdater(NetworkArchitecture.Updater.ADAM);
+        adamModule.getArchitecture().setLearningRate(0.001);
+
+        // WHEN
+        NeuralNetworkResultRanker migrated = new NeuralNetworkResultRanker(storage, adamModule, 123, user);
+
+        // THEN
+        assertThat(migrated.getResultTexts().size(), is(6));
+        assertThat(migrated.output("car"), is(trainedOutput));
+    }
+
+    @Test
+    public void unchangedArchitectureShouldNotMigrateStoredNetwork() {
+        SerializingRankingNetworkStorageStrategy strategy = new SerializingRankingNetworkStorageStrategy();
+        module.setRankingNetworkStorageStrategy(strategy);
+        for (NetworkArchitecture.Preset preset : NetworkArchitecture.Preset.values()) {
+            for (NetworkArchitecture.Updater updater : NetworkArchitecture.Updater.values()) {
+                // GIVEN a network stored through serialization
+                PeriscopeResultRankerModule storedModule = synchronousModule();
+                storedModule.getArchitecture().setPreset(preset);
+                storedModule.getArchitecture().setUpdater(updater);
+                NeuralNetworkResultRanker ranker = new NeuralNetworkResultRanker(new InMemNetworkStorage(), storedModule, 123, user);
+                ranker.addResults(results);
+                ranker.trainRanking("car", results.iterator().next());
+                int stores = strategy.getStores();
+
+                // WHEN
+                NeuralNetworkResultRanker reloaded = new NeuralNetworkResultRanker(new InMemNetworkStorage(), storedModule, 123, user);
+
+                // THEN it's taken over as is, rather than migrated and stored again
+                assertThat(preset + " " + updater, strategy.getStores(), is(stores));
+                assertThat(preset + " " + updater, reloaded.output("car"), is(ranker.output("car")));
+            }
+        }
+    }
+
+    @Test
+    public void changedLayersShouldRecreateStoredNetwork() {
+        // GIVEN
+        InMemNetworkStorage storage = new InMemNetworkStorage();
+        NeuralNetworkResultRanker ranker = new NeuralNetworkResultRanker(storage, 123, OUTPUT_UNITS, user);
+        ranker.addResults(results);
+        ranker.trainRanking("car", results.iterator().next());
+
+        PeriscopeResultRankerModule denseModule = synchronousModule();
+        denseModule.getArchitecture().setPreset(NetworkArchitecture.Preset.DENSE);
+
+        // WHEN
+        NeuralNetworkResultRanker recreated = new NeuralNetworkResultRanker(storage, denseModule, 123, user);
+
+        // THEN
+        assertThat(recreated.getResultTexts().size(), is(0));
+    }
+
+    @Test
+    public void changedOutputUnitsShouldKeepLearnedRankings() {
+        // GIVEN
+        InMemNetworkStorage storage = new InMemNetworkStorage();
+        NeuralNetworkResultRanker ranker = new NeuralNetworkResultRanker(storage, 123, OUTPUT_UNITS, user);
+        ranker.addResults(results);
+        SearchResult fifth = new ArrayList<>(ranker.rank("car", results)).get(4);
+        IntStream.range(0, 2).forEach(i -> ranker.trainRanking("car", fifth));
+        List<SearchResult> rankedBefore = new ArrayList<>(ranker.rank("car", results));
+
+        // WHEN
+        NeuralNetworkResultRanker grown = new NeuralNetworkResultRanker(storage, 123, OUTPUT_UNITS * 2, user);
+        NeuralNetworkResultRanker shrunk = new NeuralNetworkResultRanker(storage, 123, 4, user);
+
+        // THEN
+        assertThat(grown.getResultTexts().getLimit(), is(OUTPUT_UNITS * 2));
+        assertThat(grown.getResultTexts().size(), is(6));
+        assertThat(grown.rank("car", results), is(rankedBefore));
+
+        // the selected result was used most recently, so it's kept
+        IndexedBuffer<String> kept = shrunk.getResultTexts();
+        assertThat(kept.size(), is(4));
+        assertTrue(kept.contains(fifth.getTitle()));
+        List<SearchResult> keptRankedBefore = rankedBefore.stream()
+                .filter(result -> kept.contains(result.getTitle()))
+                .collect(toList());
+        assertThat(new ArrayList<>(shrunk.rank("car", results)).subList(0, 4), is(keptRankedBefore));
+    }
+
+    @Test
+    public void pendingTrainingShouldBeReplayedWhenLoaded() throws Exception {
+        // GIVEN selections which were recorded, but never stored along with the network
+        SearchResult chosen = new ArrayList<>(network.rank("car", results)).get(4);
+        InMemoryRankingNetworkStorageStrategy strategy = new InMemoryRankingNetworkStorageStrategy() {
+            @Override
+            public List<TrainingEvent> loadPendingTraining(User user) {
+                return Collections.nCopies(2, new TrainingEvent("car", chosen.getTitle()));
+            }
+        };
+        module.setRankingNetworkStorageStrategy(strategy);
+
+        // WHEN
+        NeuralNetworkResultRanker ranker = new NeuralNetworkResultRanker(new InMemNetworkStorage(), 123, OUTPUT_UNITS, user);
+
+        // THEN the chosen result is known again and the replayed network got stored
+        assertThat(ranker.getResultTexts().asList(), is(Collections.singletonList(chosen.getTitle())));
+        assertThat(ranker.rank("car", results).iterator().next(), is(chosen));
+        assertTrue(strategy.load(user).isPresent());
+    }
+
+    @Test
+    public void updaterStateShouldBeRestoredOnlyWhenTrained() throws Exception {
+        // GIVEN a trained network, stored along with its updater state
+        RankingInfoSerializer serializer = new RankingInfoSerializer();
+        AtomicInteger updaterStateLoads = new AtomicInteger(0);
+        InMemoryRankingNetworkStorageStrategy strategy = new InMemoryRankingNetworkStorageStrategy() {
+            @Override
+            public Optional<RankingInfo> loadForInference(User user) throws RankingNetworkStorageException {
+                Optional<RankingInfo> rankingInfo = load(user);
+                if (!rankingInfo.isPresent()) {
+                    return rankingInfo;
+                }
+                try {
+                    ByteArrayOutputStream out = new ByteArrayOutputStream();
+                    serializer.write(rankingInfo.get(), true, out);
+                    return Optional.of(serializer.read(new ByteArrayInputStream(out.toByteArray()), user, false));
+                } catch (IOException e) {
+                    throw new RankingNetworkStorageException(e);
+                }
+            }
+
+            @Override
+            public Optional<INDArray> loadUpdaterState(User user) throws RankingNetworkStorageException {
+                updaterStateLoads.incrementAndGet();
+                return super.loadUpdaterState(user);
+            }
+        };
+        module.setRankingNetworkStorageStrategy(strategy);
+        NeuralNetworkResultRanker trained = new NeuralNetworkResultRanker(new InMemNetworkStorage(), 1234, OUTPUT_UNITS, user);
+        trained.addResults(results);
+        SearchResult chosen = new ArrayList<>(trained.rank("car", results)).get(4);
+        trained.trainRanking("car", chosen);
+
+        // WHEN
+        NeuralNetworkResultRanker reloaded = new NeuralNetworkResultRanker(new InMemNetworkStorage(), 1234, OUTPUT_UNITS, user);
+        List<SearchResult> ranked = new ArrayList<>(reloaded.rank("car", results));
+
+        // THEN rankings don't need the updater state, training does
+        assertThat(ranked, is(new ArrayList<>(trained.rank("car", results))));
+        assertThat(updaterStateLoads.get(), is(0));
+        assertThat(reloaded.estimateMemoryUsage(), is(lessThan(trained.estimateMemoryUsage())));
+        reloaded.trainRanking("car", chosen);
+        assertThat(updaterStateLoads.get(), is(1));
+    }
+
+    @Test
+    public void storingOnLoadShouldKeepUpdaterState() throws Exception {
+        // GIVEN a trained network, stored along with its updater state
+        ComponentsTestUtil.setInstance(SystemContext.class, mock(SystemContext.class));
+        SerializingRankingNetworkStorageStrategy strategy = new SerializingRankingNetworkStorageStrategy();
+        module.setRankingNetworkStorageStrategy(strategy);
+        NeuralNetworkResultRanker trained = new NeuralNetworkResultRanker(new InMemNetworkStorage(), synchronousModule(), 123, user);
+        trained.addResults(results);
+        trained.trainRanking("car", results.iterator().next());
+        INDArray updaterState = strategy.loadUpdaterState(user).get();
+        CountDownLatch loadReleased = new CountDownLatch(1);
+        AtomicInteger updaterStateLoads = new AtomicInteger(0);
+        InMemNetworkStorage slowStorage = new InMemNetworkStorage() {
+            @Override
+            Optional<RankingInfo> load(User user, boolean withUpdaterState) {
+                Uninterruptibles.awaitUninterruptibly(loadReleased);
+                return super.load(user, withUpdaterState);
+            }
+
+            @Override
+            Optional<INDArray> loadUpdaterState(User user) {
+                updaterStateLoads.incrementAndGet();
+                return super.loadUpdaterState(user);
+            }
+        };
+
+        try {
+            // WHEN results are added while it's loaded again without its updater state
+            NeuralNetworkResultRanker reloaded = new NeuralNetworkResultRanker(slowStorage, synchronousModule(), user);
+            reloaded.addResults(Collections.singletonList(SearchResult.builder().title("Carousel").build()));
+            int stores = strategy.getStores();
+            loadReleased.countDown();
+            reloaded.getLoading().get(10, TimeUnit.SECONDS);
+
+            // THEN the network is stored along with the updater state it had, kept by the storage
+            assertThat(strategy.getStores(), is(stores + 1));
+            assertThat(reloaded.getResultTexts().size(), is(7));
+            assertThat(strategy.loadUpdaterState(user).get(), is(updaterState));
+            assertThat(updaterStateLoads.get(), is(0));
+        } finally {
+            loadReleased.countDown();
+            ComponentsTestUtil.clear();
+        }
+    }
+
     @Test
     public void unsetOutputLabelsShouldUseDefaultValue() throws Exception {
         // GIVEN
         module.setOutputUnits(null);
+        module.setAsyncLoading(false);
 
         // WHEN
         network = new NeuralNetworkResultRanker(new NoopNetworkStorage(module), module, user);
@@ -339,6 +843,133 @@ public class NeuralNetworkResultRankerTest {
         assertThat(network.getOutputUnits(), is(PeriscopeResultRankerModule.DEFAULT_OUTPUT_UNITS));
     }
 
+    @Test
+    public void resultsShouldBeRankedByPopularityUntilNetworkIsLoaded() throws Exception {
+        // GIVEN a network still being loaded
+        ComponentsTestUtil.setInstance(SystemContext.class, mock(SystemContext.class));
+        CountDownLatch loadReleased = new CountDownLatch(1);
+        AtomicInteger updaterStateLoads = new AtomicInteger(0);
+        InMemNetworkStorage slowStorage = new InMemNetworkStorage() {
+            @Override
+            Optional<RankingInfo> load(User user, boolean withUpdaterState) {
+                Uninterruptibles.awaitUninterruptibly(loadReleased);
+                return super.load(user, withUpdaterState);
+            }
+
+            @Override
+            Optional<INDArray> loadUpdaterState(User user) {
+                updaterStateLoads.incrementAndGet();
+                return super.loadUpdaterState(user);
+            }
+        };
+        module.setOutputUnits(OUTPUT_UNITS);
+        List<SearchResult> asyncResults = Arrays.asList(
+                SearchResult.builder().title("Async CarGold").build(),
+                SearchResult.builder().title("Async SBB Cargo").build(),
+                SearchResult.builder().title("Async Cargo Bar").build());
+
+        try {
+            NeuralNetworkResultRanker ranker = new NeuralNetworkResultRanker(slowStorage, module, user);
+            ranker.addResults(asyncResults);
+            assertThat(new ArrayList<>(ranker.rank("car", asyncResults)), is(asyncResults));
+
+            // WHEN
+            ranker.trainRanking("car", asyncResults.get(2));
+
+            // THEN the chosen result comes first right away, and results are added once the network is loaded
+            assertThat(ranker.rank("car", asyncResults).iterator().next(), is(asyncResults.get(2)));
+            loadReleased.countDown();
+            ranker.getLoading().get(10, TimeUnit.SECONDS);
+            assertThat(ranker.getResultTexts().size(), is(3));
+        } finally {
+            loadReleased.countDown();
+            ComponentsTestUtil.clear();
+        }
+    }
+
+    @Test
+    public void selectionsShouldBeKeptUntilNetworkIsLoaded() throws Exception {
+        // GIVEN a network failing to load at first
+        ComponentsTestUtil.setInstance(SystemContext.class, mock(SystemContext.class));
+        CountDownLatch loadReleased = new CountDownLatch(1);
+        AtomicInteger loads = new AtomicInteger(0);
+        List<TrainingEvent> recorded = new CopyOnWriteArrayList<>();
+        InMemNetworkStorage failingOnceStorage = new InMemNetworkStorage() {
+            @Override
+            Optional<RankingInfo> load(User user, boolean withUpdaterState) {
+                if (loads.incrementAndGet() == 1) {
+                    Uninterruptibles.awaitUninterruptibly(loadReleased);
+                    throw new IllegalStateException("repository down");
+                }
+                return super.load(user, withUpdaterState);
+            }
+
+            @Override
+            void recordTraining(User user, List<TrainingEvent> events) {
+                recorded.addAll(events);
+            }
+        };
+        PeriscopeResultRankerModule asyncModule = synchronousModule();
+        List<SearchResult> asyncResults = Arrays.asList(
+                SearchResult.builder().title("Async CarGold").build(),
+                SearchResult.builder().title("Async Cargo Bar").build());
+
+        try {
+            NeuralNetworkResultRanker ranker = new NeuralNetworkResultRanker(failingOnceStorage, asyncModule, user);
+            ranker.addResults(asyncResults);
+            ranker.trainRanking("car", asyncResults.get(1));
+            loadReleased.countDown();
+            CompletableFuture<Void> failedLoad = ranker.getLoading();
+            try {
+                failedLoad.get(10, TimeUnit.SECONDS);
+                fail("Expected the first load to fail");
+            } catch (ExecutionException e) {
+                assertThat(e.getCause(), instanceOf(IllegalStateException.class));
+            }
+
+            // WHEN the next search loads the network
+            ranker.addResults(asyncResults);
+            ranker.getLoading().get(10, TimeUnit.SECONDS);
+
+            // THEN the selection made meanwhile is trained
+            assertThat(recorded, is(Collections.singletonList(new TrainingEvent("car", "Async Cargo Bar"))));
+            assertThat(ranker.getResultTexts().size(), is(2));
+        } finally {
+            loadReleased.countDown();
+            ComponentsTestUtil.clear();
+        }
+    }
+
+    /**
+     * Module configuration with {@value #OUTPUT_UNITS} output units, training each selection right away.
+     */
+    private static PeriscopeResultRankerModule synchronousModule() {
+        PeriscopeResultRankerModule synchronousModule = new PeriscopeResultRankerModule();
+        synchronousModule.setOutputUnits(OUTPUT_UNITS);
+        synchronousModule.setTrainingBatchSize(1);
+        synchronousModule.setTrainingMaxDelay(0L);
+        return synchronousModule;
+    }
+
+    /**
+     * Reference ordering as previously implemented: sort all known labels by score, then order results by their
+     * position in that list.
+     */
+    private static List<SearchResult> rankBySortingAllLabels(NeuralNetworkResultRanker ranker, String query, Collection<SearchResult> results) {
+        INDArray output = ranker.output(query);
+        IndexedBuffer<String> labels = ranker.getResultTexts();
+        List<String> sortedLabels = labels.asList().stream()
+                .sorted(Comparator.comparingDouble((String label) -> output.getFloat(labels.indexOf(label))).reversed())
+                .collect(toList());
+
+        List<SearchResult> ranked = new ArrayList<>(results);
+        ranked.sort(Comparator.comparingInt(r -> {
+            int index = sortedLabels.indexOf(r.getTitle());
+            return index >= 0 ? index : results.size();
+        }));
+        return ranked;
+    }
+
     static class NoopNetworkStorage extends RankingNetworkStorage {
 
         public NoopNetworkStorage(PeriscopeResultRankerModule module) {
@@ -378,6 +1009,59 @@ public class NeuralNetworkResultRankerTest {
         }
     }
 
+    /**
+     * Keeps the network serialized, as storage strategies do.
+     */
+    static class SerializingRankingNetworkStorageStrategy implements RankingNetworkStorageStrategy {
+        private final RankingInfoSerializer serializer = new RankingInfoSerializer();
+        private final AtomicInteger stores = new AtomicInteger(0);
+        private byte[] bytes;
+
+        @Override
+        public void store(RankingInfo rankingInfo) throws RankingNetworkStorageException {
+            try {
+                INDArray storedUpdaterState = rankingInfo.isKeepStoredUpdaterState() ? loadUpdaterState(rankingInfo.getUser()).orElse(null) : null;
+                ByteArrayOutputStream out = new ByteArrayOutputStream();
+                serializer.write(rankingInfo, storedUpdaterState, true, out);
+                bytes = out.toByteArray();
+                stores.incrementAndGet();
+            } catch (IOException e) {
+                throw new RankingNetworkStorageException(e);
+            }
+        }
+
+        @Override
+        public Optional<RankingInfo> load(User user) throws RankingNetworkStorageException {
+            return read(user, true);
+        }
+
+        @Override
+        public Optional<RankingInfo> loadForInference(User user) throws RankingNetworkStorageException {
+            return read(user, false);
+        }
+
+        @Override
+        public Optional<INDArray> loadUpdaterState(User user) throws RankingNetworkStorageException {
+            try {
+                return bytes == null ? Optional.empty() : Optional.ofNullable(serializer.readUpdaterState(new ByteArrayInputStream(bytes)));
+            } catch (IOException e) {
+                throw new RankingNetworkStorageException(e);
+            }
+        }
+
+        int getStores() {
+            return stores.get();
+        }
+
+        private Optional<RankingInfo> read(User user, boolean withUpdaterState) throws RankingNetworkStorageException {
+            try {
+                return bytes == null ? Optional.empty() : Optional.of(serializer.read(new ByteArrayInputStream(bytes), user, withUpdaterState));
+            } catch (IOException e) {
+                throw new RankingNetworkStorageException(e);
+            }
+        }
+    }
+
     static class InMemoryRankingNetworkStorageStrategy implements RankingNetworkStorageStrategy {
         private RankingInfo rankingInfo;
 
@@ -0,0 +1,141 @@
+/**
+ * This file Copyright (c) 2019 Magnolia International
+ * Ltd.  (http://www.magnolia-cms.com). All rights reserved.
+ *
+ *
+ * This program and the accompanying materials are made
+ * available under the terms of the Magnolia Network Agreement
+ * which accompanies this distribution, and is available at
+ * http://www.magnolia-cms.com/mna.html
+ *
+ * Any modifications to this file must keep this entire header
+ * intact.
+ *
+ */
+package info.magnolia.forge.periscope.rank.ml;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.*;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.InOrder;
+
+public class PeriscopeResultRankerModuleTest {
+
+    private NeuralNetworkResultRankerFactory rankerFactory;
+    private RankingNetworkStorage storage;
+    private ExecutorService storingExecutor;
+
+    @Before
+    public void setUp() {
+        rankerFactory = mock(NeuralNetworkResultRankerFactory.class);
+        storage = mock(RankingNetworkStorage.class);
+        storingExecutor = Executors.newFixedThreadPool(2);
+    }
+
+    @After
+    public void tearDown() {
+        storingExecutor.shutdownNow();
+    }
+
+    @Test
+    public void pendingNetworksShouldBeFlushedBeforeStrategy() throws Exception {
+        // GIVEN
+        CompletableFuture<Boolean> stored = new CompletableFuture<>();
+        CompletableFuture<Boolean> failed = new CompletableFuture<>();
+        CompletableFuture<Boolean> superseded = CompletableFuture.completedFuture(false);
+        storingExecutor.execute(() -> stored.complete(true));
+        storingExecutor.execute(() -> failed.completeExceptionally(new CompletionException(new RankingNetworkStorageException(new RuntimeException("repository down")))));
+        when(storage.flushPending()).thenReturn(Arrays.asList(stored, failed, superseded));
+
+        // WHEN
+        long flushed = PeriscopeResultRankerModule.flushPendingNetworks(rankerFactory, storage, storingExecutor, System.nanoTime() + TimeUnit.SECONDS.toNanos(5));
+
+        // THEN
+        assertThat(flushed, is(1L));
+        assertTrue(storingExecutor.isTerminated());
+        InOrder inOrder = inOrder(rankerFactory, storage);
+        inOrder.verify(rankerFactory).persistAll();
+        inOrder.verify(rankerFactory).invalidateAll();
+        inOrder.verify(storage).flushPending();
+        inOrder.verify(storage).flushStrategy();
+        inOrder.verify(storage).stopStrategy();
+    }
+
+    @Test
+    public void persistsNotDoneByDeadlineShouldBeDropped() throws Exception {
+        // GIVEN
+        CountDownLatch release = new CountDownLatch(1);
+        CompletableFuture<Boolean> blocked = new CompletableFuture<>();
+        storingExecutor.execute(() -> {
+            try {
+                release.await();
+                blocked.complete(true);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        when(storage.flushPending()).thenReturn(Collections.singletonList(blocked));
+
+        // WHEN
+        long flushed = PeriscopeResultRankerModule.flushPendingNetworks(rankerFactory, storage, storingExecutor, System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(50));
+
+        // THEN
+        assertThat(flushed, is(0L));
+        assertTrue(storingExecutor.isShutdown());
+        verify(storage, never()).flushStrategy();
+        verify(storage).stopStrategy();
+    }
+
+    @Test
+    public void evictionFlushesShouldBeCounted() throws Exception {
+        // GIVEN
+        CompletableFuture<Boolean> stored = new CompletableFuture<>();
+        CompletableFuture<Boolean> failed = new CompletableFuture<>();
+        CompletableFuture<Boolean> unchanged = CompletableFuture.completedFuture(false);
+        storingExecutor.execute(() -> stored.complete(true));
+        failed.completeExceptionally(new CompletionException(new RankingNetworkStorageException(new RuntimeException("repository down"))));
+        when(rankerFactory.invalidateAll()).thenReturn(Arrays.asList(stored, failed, unchanged));
+        when(storage.flushPending()).thenReturn(Collections.singletonList(CompletableFuture.completedFuture(true)));
+
+        // WHEN
+        long flushed = PeriscopeResultRankerModule.flushPendingNetworks(rankerFactory, storage, storingExecutor, System.nanoTime() + TimeUnit.SECONDS.toNanos(5));
+
+        // THEN
+        assertThat(flushed, is(2L));
+    }
+
+    @Test
+    public void strategyFlushShouldNotOutlastDeadline() throws Exception {
+        // GIVEN
+        CountDownLatch release = new CountDownLatch(1);
+        when(storage.flushStrategy()).thenAnswer(invocation -> {
+            release.await();
+            return 1;
+        });
+        long start = System.nanoTime();
+
+        // WHEN
+        PeriscopeResultRankerModule.flushPendingNetworks(rankerFactory, storage, storingExecutor, start + TimeUnit.MILLISECONDS.toNanos(100));
+
+        // THEN returns by the deadline, stopping the strategy only once it's done flushing
+        assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(5));
+        verify(storage, timeout(1000)).flushStrategy();
+        verify(storage, never()).stopStrategy();
+        release.countDown();
+        verify(storage, timeout(1000)).stopStrategy();
+    }
+}
@@ -0,0 +1,52 @@
+/**
+ * This file Copyright (c) 2019 Magnolia International
+ * Ltd.  (http://www.magnolia-cms.com). All rights reserved.
+ *
+ *
+ * This program and the accompanying materials are made
+ * available under the terms of the Magnolia Network Agreement
+ * which accompanies this distribution, and is available at
+ * http://www.magnolia-cms.com/mna.html
+ *
+ * Any modifications to this file must keep this entire header
+ * intact.
+ *
+ */
+package info.magnolia.forge.periscope.rank.ml;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+import java.util.Arrays;
+import java.util.function.Function;
+
+import org.junit.Test;
+
+public class PopularityPriorTest {
+
+    @Test
+    public void resultsShouldBeRankedByDescendingCount() {
+        // GIVEN
+        PopularityPrior prior = new PopularityPrior(10);
+        prior.record("c");
+        prior.record("c");
+        prior.record("b");
+
+        // WHEN THEN
+        assertThat(prior.rank(Arrays.asList("a", "b", "c", "d"), Function.identity()), is(Arrays.asList("c", "b", "a", "d")));
+    }
+
+    @Test
+    public void leastRecentlyChosenResultsShouldBeDropped() {
+        // GIVEN
+        PopularityPrior prior = new PopularityPrior(1);
+
+        // WHEN
+        prior.record("a");
+        prior.record("b");
+
+        // THEN
+        assertThat(prior.count("a"), is(0L));
+        assertThat(prior.count("b"), is(1L));
+    }
+}
@@ -0,0 +1,82 @@
+/**
+ * This file Copyright (c) 2019 Magnolia International
+ * Ltd.  (http://www.magnolia-cms.com). All rights reserved.
+ *
+ *
+ * This program and the accompanying materials are made
+ * available under the terms of the Magnolia Network Agreement
+ * which accompanies this distribution, and is available at
+ * http://www.magnolia-cms.com/mna.html
+ *
+ * Any modifications to this file must keep this entire header
+ * intact.
+ *
+ */
+package info.magnolia.forge.periscope.rank.ml;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.closeTo;
+
+import info.magnolia.forge.periscope.rank.ml.RankingInfoSerializer.Precision;
+
+import java.util.Random;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.nd4j.linalg.api.ndarray.INDArray;
+import org.nd4j.linalg.factory.Nd4j;
+
+public class QuantizedOutputLayerTest {
+
+    private static final int INPUTS = 16;
+    private static final int OUTPUTS = 8;
+
+    private INDArray weights;
+    private INDArray bias;
+    private float[] hidden;
+
+    @Before
+    public void setUp() {
+        Random random = new Random(42);
+        weights = Nd4j.create(INPUTS, OUTPUTS);
+        bias = Nd4j.create(1, OUTPUTS);
+        for (int unit = 0; unit < OUTPUTS; unit++) {
+            for (int i = 0; i < INPUTS; i++) {
+                weights.putScalar(i, unit, random.nextGaussian() * 0.1);
+            }
+            bias.putScalar(unit, random.nextGaussian() * 0.1);
+        }
+        hidden = new float[INPUTS];
+        for (int i = 0; i < INPUTS; i++) {
+            hidden[i] = (float) Math.tanh(random.nextGaussian());
+        }
+    }
+
+    @Test
+    public void scoresShouldBeCloseToPreActivations() {
+        INDArray expected = Nd4j.create(hidden, new long[]{1, INPUTS}, 'c').mmul(weights).addRowVector(bias);
+        for (Precision precision : new Precision[]{Precision.FP16, Precision.INT8}) {
+            // GIVEN
+            QuantizedOutputLayer copy = QuantizedOutputLayer.copyOf(precision, weights, bias);
+
+            // WHEN THEN
+            for (int unit = 0; unit < OUTPUTS; unit++) {
+                assertThat(precision.name(), (double) copy.score(hidden, unit), closeTo(expected.getDouble(unit), 0.01));
+            }
+        }
+    }
+
+    @Test
+    public void updatedUnitShouldFollowNetwork() {
+        // GIVEN
+        QuantizedOutputLayer copy = QuantizedOutputLayer.copyOf(Precision.INT8, weights, bias);
+
+        // WHEN
+        weights.putColumn(3, Nd4j.zeros(INPUTS, 1));
+        bias.putScalar(3, 0.5);
+        copy.update(3, weights, bias);
+
+        // THEN
+        assertThat((double) copy.score(hidden, 3), closeTo(0.5, 1e-6));
+    }
+}
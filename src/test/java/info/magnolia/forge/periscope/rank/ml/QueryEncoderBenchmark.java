@@ -0,0 +1,82 @@
+/**
+ * This file Copyright (c) 2019 Magnolia International
+ * Ltd.  (http://www.magnolia-cms.com). All rights reserved.
+ *
+ *
+ * This program and the accompanying materials are made
+ * available under the terms of the Magnolia Network Agreement
+ * which accompanies this distribution, and is available at
+ * http://www.magnolia-cms.com/mna.html
+ *
+ * Any modifications to this file must keep this entire header
+ * intact.
+ *
+ */
+package info.magnolia.forge.periscope.rank.ml;
+
+import static info.magnolia.forge.periscope.rank.ml.AsciiQueryEncoder.*;
+
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.lang3.StringUtils;
+import org.nd4j.linalg.api.ndarray.INDArray;
+import org.nd4j.linalg.cpu.nativecpu.NDArray;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Compares allocations and time per rank call for encoding a query into the network input: the dense one-hot array
+ * allocated on every call versus the sparse encoding of {@link QueryInputs} into a reused array.
+ * <p>
+ * Run with {@code mvn test-compile exec:java -Dexec.classpathScope=test -Dexec.mainClass=<this class>}, or from the IDE;
+ * allocations per call are reported as {@code gc.alloc.rate.norm}.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class QueryEncoderBenchmark {
+
+    @Param({"c", "cargo", "periscope result ranker"})
+    public String query;
+
+    private final AsciiQueryEncoder encoder = new AsciiQueryEncoder();
+
+    @Benchmark
+    public INDArray denseAllocation() {
+        String asciiQuery = StringUtils.stripAccents(query);
+
+        float[] chars = new float[INPUT_DIGITS * ASCII_CHARS];
+        for (int i = 0; i < INPUT_DIGITS && i < asciiQuery.length(); i++) {
+            int asciiCode = asciiQuery.charAt(i) % ASCII_CHARS;
+            chars[i * ASCII_CHARS + asciiCode] = 1;
+        }
+        return new NDArray(chars);
+    }
+
+    @Benchmark
+    public INDArray sparseReused() {
+        return QueryInputs.toInputArray(encoder, query);
+    }
+
+    public static void main(String[] args) throws Exception {
+        new Runner(new OptionsBuilder()
+                .include(QueryEncoderBenchmark.class.getSimpleName())
+                .addProfiler(GCProfiler.class)
+                .build())
+                .run();
+    }
+}
@@ -0,0 +1,120 @@
+/**
+ * This file Copyright (c) 2019 Magnolia International
+ * Ltd.  (http://www.magnolia-cms.com). All rights reserved.
+ *
+ *
+ * This program and the accompanying materials are made
+ * available under the terms of the Magnolia Network Agreement
+ * which accompanies this distribution, and is available at
+ * http://www.magnolia-cms.com/mna.html
+ *
+ * Any modifications to this file must keep this entire header
+ * intact.
+ *
+ */
+package info.magnolia.forge.periscope.rank.ml;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.not;
+import static org.hamcrest.Matchers.lessThan;
+import static org.junit.Assert.assertThat;
+
+import java.util.Arrays;
+
+import org.junit.Test;
+import org.nd4j.linalg.api.ndarray.INDArray;
+
+public class QueryEncoderTest {
+
+    @Test
+    public void asciiEncoderKeepsLegacyEncoding() {
+        // GIVEN
+        QueryEncoder encoder = new AsciiQueryEncoder();
+
+        // WHEN
+        int[] indices = QueryInputs.indices(encoder, "Caf\u00e9");
+
+        // THEN
+        assertThat(indices, is(new int[]{'C', 128 + 'a', 2 * 128 + 'f', 3 * 128 + 'e'}));
+    }
+
+    @Test
+    public void asciiEncoderTruncatesLongQueries() {
+        // GIVEN
+        QueryEncoder encoder = new AsciiQueryEncoder();
+
+        // WHEN
+        int[] codes = encoder.encode("a query which is longer than twenty characters");
+
+        // THEN
+        assertThat(codes.length, is(20));
+    }
+
+    @Test
+    public void normalizedAsciiEncoderIgnoresCaseAndAccents() {
+        // GIVEN
+        QueryEncoder encoder = new NormalizedAsciiQueryEncoder();
+
+        // WHEN
+        int[] codes = encoder.encode(" Cr\u00e8me ");
+
+        // THEN
+        assertThat(codes, is(encoder.encode("creme")));
+    }
+
+    @Test
+    public void normalizedAsciiEncoderDoesNotFoldOtherScriptsOntoAscii() {
+        // GIVEN
+        QueryEncoder encoder = new NormalizedAsciiQueryEncoder();
+
+        // WHEN
+        int[] codes = encoder.encode("\u0434\u043e\u043c");
+
+        // THEN
+        assertThat(codes, is(new int[]{0, 0, 0}));
+    }
+
+    @Test
+    public void ngramEncoderDistinguishesNonLatinQueries() {
+        // GIVEN
+        QueryEncoder ascii = new AsciiQueryEncoder();
+        QueryEncoder ngrams = new HashedNgramQueryEncoder();
+
+        // WHEN / THEN
+        // code points 128 apart collide in ascii
+        assertThat(ascii.encode("\u0434"), is(ascii.encode("\u04b4")));
+        assertThat(ngrams.encode("\u0434\u043e\u043c"), not(ngrams.encode("\u04b4\u043e\u043c")));
+        assertThat(ngrams.encode("\u6771\u4eac"), not(ngrams.encode("\u4eac\u90fd")));
+    }
+
+    @Test
+    public void ngramEncoderStaysWithinAlphabet() {
+        // GIVEN
+        HashedNgramQueryEncoder encoder = new HashedNgramQueryEncoder();
+        encoder.setBuckets(16);
+        encoder.setLength(5);
+
+        // WHEN
+        int[] codes = encoder.encode("\u691c\u7d22\u7d50\u679c\u306e\u30e9\u30f3\u30ad\u30f3\u30b0");
+
+        // THEN
+        assertThat(codes.length, is(5));
+        Arrays.stream(codes).forEach(code -> assertThat(code, lessThan(16)));
+        assertThat(encoder.getId(), is("ngram-3-16x5"));
+    }
+
+    @Test
+    public void inputArrayIsReusedAcrossQueries() {
+        // GIVEN
+        QueryEncoder encoder = new HashedNgramQueryEncoder();
+        INDArray first = QueryInputs.toInputArray(encoder, "periscope");
+
+        // WHEN
+        INDArray second = QueryInputs.toInputArray(encoder, "ai");
+
+        // THEN
+        assertThat(second == first, is(true));
+        assertThat(second.sumNumber().intValue(), is(2));
+        assertThat(second.length(), is(256L * 20));
+    }
+}
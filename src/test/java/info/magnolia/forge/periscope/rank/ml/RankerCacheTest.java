@@ -0,0 +1,230 @@
+/**
+ * This file Copyright (c) 2019 Magnolia International
+ * Ltd.  (http://www.magnolia-cms.com). All rights reserved.
+ *
+ *
+ * This program and the accompanying materials are made
+ * available under the terms of the Magnolia Network Agreement
+ * which accompanies this distribution, and is available at
+ * http://www.magnolia-cms.com/mna.html
+ *
+ * Any modifications to this file must keep this entire header
+ * intact.
+ *
+ */
+package info.magnolia.forge.periscope.rank.ml;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.empty;
+import static org.junit.Assert.assertThat;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class RankerCacheTest {
+
+    private AtomicLong time;
+    private AtomicInteger loads;
+    private List<String> evicted;
+
+    @Before
+    public void setUp() {
+        time = new AtomicLong(0);
+        loads = new AtomicInteger(0);
+        evicted = new ArrayList<>();
+    }
+
+    @Test
+    public void loadOncePerKey() {
+        // GIVEN
+        RankerCache<String, String> cache = cache(5, 100, 0);
+
+        // WHEN
+        cache.get("foo", this::load);
+        cache.get("foo", this::load);
+        cache.get("bar", this::load);
+
+        // THEN
+        assertThat(loads.get(), is(2));
+        assertThat(cache.size(), is(2));
+    }
+
+    @Test
+    public void evictLeastRecentlyUsedOnMaxEntries() {
+        // GIVEN
+        RankerCache<String, String> cache = cache(2, 100, 0);
+        cache.get("alpha", this::load);
+        cache.get("bravo", this::load);
+
+        // WHEN
+        cache.get("alpha", this::load);
+        cache.get("charlie", this::load);
+
+        // THEN
+        assertThat(evicted, contains("bravo"));
+        assertThat(cache.size(), is(2));
+    }
+
+    @Test
+    public void evictOnMaxWeight() {
+        // GIVEN weight is the length of values
+        RankerCache<String, String> cache = cache(10, 11, 0);
+        cache.get("alpha", this::load);
+        cache.get("bravo", this::load);
+
+        // WHEN
+        cache.get("charlie", this::load);
+
+        // THEN
+        assertThat(evicted, contains("alpha", "bravo"));
+        assertThat(cache.weight(), is(7L));
+    }
+
+    @Test
+    public void evictIdleEntries() {
+        // GIVEN
+        RankerCache<String, String> cache = cache(10, 100, 1000);
+        cache.get("alpha", this::load);
+        time.addAndGet(600);
+        cache.get("bravo", this::load);
+
+        // WHEN
+        time.addAndGet(600);
+        cache.cleanUp();
+
+        // THEN
+        assertThat(evicted, contains("alpha"));
+        assertThat(cache.size(), is(1));
+    }
+
+    @Test
+    public void failedLoadIsNotCached() {
+        // GIVEN
+        RankerCache<String, String> cache = cache(10, 100, 0);
+
+        // WHEN
+        try {
+            cache.get("alpha", key -> {
+                throw new IllegalStateException("boom");
+            });
+        } catch (IllegalStateException expected) {
+            // expected
+        }
+
+        // THEN
+        assertThat(cache.size(), is(0));
+        assertThat(cache.get("alpha", this::load), is("alpha"));
+        assertThat(evicted, is(empty()));
+    }
+
+    @Test
+    public void invalidateAllNotifiesAllEntries() {
+        // GIVEN
+        RankerCache<String, String> cache = cache(10, 100, 0);
+        cache.get("alpha", this::load);
+        cache.get("bravo", this::load);
+
+        // WHEN
+        List<CompletableFuture<Boolean>> flushes = cache.invalidateAll();
+
+        // THEN
+        assertThat(flushes.size(), is(2));
+        assertThat(evicted, contains("alpha", "bravo"));
+        assertThat(cache.size(), is(0));
+        assertThat(cache.weight(), is(0L));
+    }
+
+    @Test
+    public void loadShouldWaitForFlushOfEvictedValue() throws Exception {
+        // GIVEN
+        CompletableFuture<Boolean> flush = new CompletableFuture<>();
+        RankerCache<String, String> cache = new RankerCache<>(1, 100, 0, String::length, value -> flush, time::get);
+        cache.get("alpha", this::load);
+        // evicts alpha, whose flush is in flight
+        cache.get("bravo", this::load);
+
+        // WHEN
+        CompletableFuture<String> reloaded = CompletableFuture.supplyAsync(() -> cache.get("alpha", this::load));
+        Thread.sleep(100);
+        int loadsBeforeFlush = loads.get();
+        flush.complete(true);
+
+        // THEN
+        assertThat(loadsBeforeFlush, is(2));
+        assertThat(reloaded.get(1, TimeUnit.SECONDS), is("alpha"));
+        assertThat(loads.get(), is(3));
+    }
+
+    @Test
+    public void valuesShouldNotEvictNorTouchEntries() {
+        // GIVEN
+        RankerCache<String, String> cache = cache(2, 100, 0);
+        cache.get("alpha", this::load);
+        cache.get("bravo", this::load);
+
+        // WHEN
+        List<String> values = cache.values();
+        cache.get("charlie", this::load);
+
+        // THEN alpha is still the least recently used one
+        assertThat(values, contains("alpha", "bravo"));
+        assertThat(evicted, contains("alpha"));
+    }
+
+    @Test
+    public void reweighShouldEvictOnGrownWeight() {
+        // GIVEN
+        Map<String, Long> weights = new HashMap<>();
+        RankerCache<String, String> cache = new RankerCache<>(10, 10, 0, weights::get, this::evict, time::get);
+        weights.put("alpha", 2L);
+        weights.put("bravo", 2L);
+        cache.get("alpha", this::load);
+        cache.get("bravo", this::load);
+
+        // WHEN
+        weights.put("bravo", 9L);
+        cache.reweigh("bravo");
+
+        // THEN
+        assertThat(evicted, contains("alpha"));
+        assertThat(cache.weight(), is(9L));
+    }
+
+    @Test
+    public void reweighShouldIgnoreUnknownKeys() {
+        // GIVEN
+        RankerCache<String, String> cache = cache(10, 100, 0);
+        cache.get("alpha", this::load);
+
+        // WHEN
+        cache.reweigh("bravo");
+
+        // THEN
+        assertThat(cache.size(), is(1));
+        assertThat(cache.weight(), is(5L));
+    }
+
+    private RankerCache<String, String> cache(int maxEntries, long maxWeight, long idleTimeout) {
+        return new RankerCache<>(maxEntries, maxWeight, idleTimeout, String::length, this::evict, time::get);
+    }
+
+    private CompletableFuture<Boolean> evict(String value) {
+        evicted.add(value);
+        return CompletableFuture.completedFuture(true);
+    }
+
+    private String load(String key) {
+        loads.incrementAndGet();
+        return key;
+    }
+}
@@ -0,0 +1,227 @@
+/**
+ * This file Copyright (c) 2019 Magnolia International
+ * Ltd.  (http://www.magnolia-cms.com). All rights reserved.
+ *
+ *
+ * This program and the accompanying materials are made
+ * available under the terms of the Magnolia Network Agreement
+ * which accompanies this distribution, and is available at
+ * http://www.magnolia-cms.com/mna.html
+ *
+ * Any modifications to this file must keep this entire header
+ * intact.
+ *
+ */
+package info.magnolia.forge.periscope.rank.ml;
+
+import static info.magnolia.forge.periscope.rank.ml.RankingNetworkStorageStrategy.RankingInfo;
+import static org.hamcrest.CoreMatchers.*;
+import static org.hamcrest.Matchers.greaterThanOrEqualTo;
+import static org.hamcrest.Matchers.lessThan;
+import static org.hamcrest.Matchers.lessThanOrEqualTo;
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.mock;
+
+import info.magnolia.cms.security.User;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.stream.IntStream;
+
+import org.deeplearning4j.nn.multilayer.MultiLayerNetwork;
+import org.deeplearning4j.util.ModelSerializer;
+import org.junit.Before;
+import org.junit.Test;
+import org.nd4j.linalg.api.ndarray.INDArray;
+import org.nd4j.linalg.cpu.nativecpu.NDArray;
+
+public class RankingInfoSerializerTest {
+
+    private MultiLayerNetwork network;
+    private IndexedBuffer<String> labels;
+    private User user;
+    private RankingInfoSerializer serializer;
+
+    @Before
+    public void setUp() {
+        network = RankingNetworkStorageTest.createMockMultiLayerNetwork();
+        // train a bit, so that the updater has some state
+        network.fit(new NDArray(new float[]{1, 0, 1, 0, 1}), new NDArray(new float[]{0, 1, 0, 1, 0}));
+        labels = new IndexedBuffer<>(5, Arrays.asList("alpha", "bravo", "charlie"), Arrays.asList("bravo", "alpha"));
+        user = mock(User.class);
+        serializer = new RankingInfoSerializer();
+    }
+
+    @Test
+    public void fullPrecisionRoundTripIsExact() throws Exception {
+        // WHEN
+        RankingInfo loaded = roundTrip(new RankingInfo(network, labels, user, "ascii"), true);
+
+        // THEN
+        assertThat(loaded.getNetwork().params(), is(network.params()));
+        assertThat(loaded.getNetwork().getUpdater().getStateViewArray(), is(network.getUpdater().getStateViewArray()));
+        assertThat(loaded.getQueryEncoderId(), is("ascii"));
+        assertThat(loaded.getUser(), is(user));
+        assertThat(loaded.getLabels().getOriginId(), is(labels.getId()));
+        assertThat(loaded.getLabels().getOriginVersion(), is(labels.getVersion()));
+        assertThat(loaded.getLabels().getVersion(), is(labels.getVersion()));
+        assertThat(loaded.getLabels().asList(), is(labels.asList()));
+        assertThat(loaded.getLabels().evictionOrder(), is(labels.evictionOrder()));
+    }
+
+    @Test
+    public void labelsAndUpdaterStateAreOptional() throws Exception {
+        // GIVEN
+        serializer.setIncludeUpdaterState(false);
+
+        // WHEN
+        RankingInfo loaded = roundTrip(new RankingInfo(network, labels, user), false);
+
+        // THEN
+        assertThat(loaded.getNetwork().params(), is(network.params()));
+        assertThat(loaded.getLabels(), is(nullValue()));
+        assertThat(loaded.getQueryEncoderId(), is(nullValue()));
+    }
+
+    @Test
+    public void updaterStateCanBeReadSeparately() throws Exception {
+        for (RankingInfoSerializer.Precision precision : RankingInfoSerializer.Precision.values()) {
+            // GIVEN
+            serializer.setPrecision(precision);
+            serializer.setCompression(RankingInfoSerializer.Compression.DEFLATE);
+            byte[] bytes = serialize(new RankingInfo(network, labels, user), true);
+
+            // WHEN
+            RankingInfo inferenceOnly = serializer.read(new ByteArrayInputStream(bytes), user, false);
+            INDArray updaterState = serializer.readUpdaterState(new ByteArrayInputStream(bytes));
+
+            // THEN
+            assertThat(precision.name(), inferenceOnly.getNetwork().getUpdater(false), is(nullValue()));
+            assertThat(precision.name(), inferenceOnly.getLabels().asList(), is(labels.asList()));
+            assertThat(precision.name(), updaterState, is(network.getUpdater().getStateViewArray()));
+        }
+    }
+
+    @Test
+    public void storedUpdaterStateIsWrittenOnlyIfKept() throws Exception {
+        // GIVEN
+        INDArray updaterState = network.getUpdater().getStateViewArray();
+        MultiLayerNetwork inferenceOnly = serializer.read(new ByteArrayInputStream(serialize(new RankingInfo(network, labels, user), false)), user, false).getNetwork();
+
+        // WHEN
+        ByteArrayOutputStream kept = new ByteArrayOutputStream();
+        serializer.write(new RankingInfo(inferenceOnly, labels, user, null, true), updaterState, false, kept);
+        ByteArrayOutputStream dropped = new ByteArrayOutputStream();
+        serializer.write(new RankingInfo(inferenceOnly, labels, user), updaterState, false, dropped);
+
+        // THEN
+        assertThat(serializer.readUpdaterState(new ByteArrayInputStream(kept.toByteArray())), is(updaterState));
+        assertThat(serializer.readUpdaterState(new ByteArrayInputStream(dropped.toByteArray())), is(nullValue()));
+    }
+
+    @Test
+    public void reducedPrecisionKeepsParamsClose() throws Exception {
+        float[] params = network.params().toFloatVector();
+        for (RankingInfoSerializer.Precision precision : RankingInfoSerializer.Precision.values()) {
+            // GIVEN
+            serializer.setPrecision(precision);
+
+            // WHEN
+            float[] loadedParams = roundTrip(new RankingInfo(network, labels, user), false).getNetwork().params().toFloatVector();
+
+            // THEN
+            assertTrue(precision.name(), RankingNetworkStorageTest.arraysSimilar(loadedParams, params));
+        }
+    }
+
+    @Test
+    public void reducedPrecisionAndCompressionShrinkOutput() throws Exception {
+        // GIVEN
+        serializer.setIncludeUpdaterState(false);
+        int fullSize = serialize(new RankingInfo(network, labels, user), true).length;
+
+        // WHEN
+        serializer.setPrecision(RankingInfoSerializer.Precision.FP16);
+        int halfSize = serialize(new RankingInfo(network, labels, user), true).length;
+        serializer.setPrecision(RankingInfoSerializer.Precision.INT8);
+        serializer.setCompression(RankingInfoSerializer.Compression.DEFLATE);
+        int compressedSize = serialize(new RankingInfo(network, labels, user), true).length;
+
+        // THEN
+        assertThat(halfSize, lessThan(fullSize));
+        assertThat(compressedSize, lessThan(halfSize));
+    }
+
+    @Test
+    public void estimatedSizeHoldsWrittenNetwork() throws Exception {
+        for (RankingInfoSerializer.Precision precision : RankingInfoSerializer.Precision.values()) {
+            // GIVEN
+            serializer.setPrecision(precision);
+            RankingInfo rankingInfo = new RankingInfo(network, labels, user, "ascii");
+
+            // WHEN
+            long estimatedSize = serializer.estimateSize(rankingInfo);
+            long writtenSize = serialize(rankingInfo, false).length;
+
+            // THEN
+            assertThat(precision.name(), estimatedSize, greaterThanOrEqualTo(writtenSize));
+            assertThat(precision.name(), estimatedSize - writtenSize, lessThanOrEqualTo(16 * 1024L));
+        }
+    }
+
+    @Test
+    public void legacyModelsAreRead() throws Exception {
+        // GIVEN
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ModelSerializer.writeModel(network, out, true);
+
+        // WHEN
+        RankingInfo loaded = serializer.read(new ByteArrayInputStream(out.toByteArray()), user);
+
+        // THEN
+        assertThat(loaded.getNetwork().params(), is(network.params()));
+        assertThat(loaded.getLabels(), is(nullValue()));
+    }
+
+    @Test(expected = IOException.class)
+    public void unknownFormatIsRejected() throws Exception {
+        serializer.read(new ByteArrayInputStream(new byte[]{1, 2, 3, 4, 5}), user);
+    }
+
+    @Test
+    public void unknownPrecisionIsRejected() throws Exception {
+        // GIVEN
+        byte[] bytes = serialize(new RankingInfo(network, labels, user), true);
+        bytes[RankingInfoSerializer.MAGIC.length + 2] = (byte) 0xff;
+
+        // WHEN
+        try {
+            serializer.read(new ByteArrayInputStream(bytes), user);
+            fail("Expected an IOException");
+        } catch (IOException e) {
+            // THEN
+            assertThat(e.getMessage(), containsString("precision 255"));
+        }
+    }
+
+    @Test
+    public void halfPrecisionConversion() {
+        IntStream.of(0, 1, -1, 2, 1024, -2048).forEach(value ->
+                assertThat(RankingInfoSerializer.fromHalf(RankingInfoSerializer.toHalf(value)), is((float) value)));
+        assertThat(RankingInfoSerializer.fromHalf(RankingInfoSerializer.toHalf(0.1f)), is(0.099975586f));
+        assertThat(RankingInfoSerializer.fromHalf(RankingInfoSerializer.toHalf(1e6f)), is(65504f));
+        assertThat(Float.isNaN(RankingInfoSerializer.fromHalf(RankingInfoSerializer.toHalf(Float.NaN))), is(true));
+    }
+
+    private RankingInfo roundTrip(RankingInfo rankingInfo, boolean includeLabels) throws IOException {
+        return serializer.read(new ByteArrayInputStream(serialize(rankingInfo, includeLabels)), user);
+    }
+
+    private byte[] serialize(RankingInfo rankingInfo, boolean includeLabels) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        serializer.write(rankingInfo, includeLabels, out);
+        return out.toByteArray();
+    }
+}
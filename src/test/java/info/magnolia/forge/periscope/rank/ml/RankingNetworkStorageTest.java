@@ -19,6 +19,7 @@ import static java.util.stream.Collectors.toList;
 import static org.deeplearning4j.nn.api.OptimizationAlgorithm.STOCHASTIC_GRADIENT_DESCENT;
 import static org.hamcrest.CoreMatchers.*;
 import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.containsInAnyOrder;
 import static org.junit.Assert.*;
 import static org.mockito.Mockito.*;
 import static org.nd4j.linalg.activations.Activation.TANH;
@@ -27,7 +28,10 @@ import info.magnolia.cms.security.User;
 import info.magnolia.forge.periscope.rank.ml.jcr.JcrUsernameNetworkStorageStrategy;
 
 import java.util.List;
+import java.util.Optional;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
 import java.util.stream.IntStream;
 
 import org.deeplearning4j.nn.conf.MultiLayerConfiguration;
@@ -92,6 +96,53 @@ public class RankingNetworkStorageTest {
         assertTrue(arraysSimilar(paramsAfterLoad, paramsAfterFit));
     }
 
+    @Test
+    public void persistingForDifferentUsersShouldNotSupersedeEachOther() throws Exception {
+        // GIVEN
+        User other = mock(User.class);
+        when(other.getName()).thenReturn("other");
+        RecordingRankingNetworkStorageStrategy strategy = new RecordingRankingNetworkStorageStrategy();
+        module.setRankingNetworkStorageStrategy(strategy);
+        final RankingNetworkStorage storage = new RankingNetworkStorage(100, module);
+
+        // WHEN
+        CompletableFuture<Boolean> first = storage.persist(new RankingInfo(network, new IndexedBuffer<>(5), user));
+        CompletableFuture<Boolean> second = storage.persist(new RankingInfo(network, new IndexedBuffer<>(5), user));
+        CompletableFuture<Boolean> otherFirst = storage.persist(new RankingInfo(network, new IndexedBuffer<>(5), other));
+        CompletableFuture<Boolean> otherSecond = storage.persist(new RankingInfo(network, new IndexedBuffer<>(5), other));
+        CompletableFuture<Boolean> otherThird = storage.persist(new RankingInfo(network, new IndexedBuffer<>(5), other));
+        CompletableFuture.allOf(first, second, otherFirst, otherSecond, otherThird).get();
+
+        // THEN
+        assertTrue(first.get());
+        assertTrue(second.get());
+        assertTrue(otherFirst.get());
+        assertFalse(otherSecond.get());
+        assertTrue(otherThird.get());
+        assertThat(strategy.storedUsers, containsInAnyOrder("foobar", "foobar", "other", "other"));
+    }
+
+    @Test
+    public void failedPersistShouldCompleteExceptionally() throws Exception {
+        // GIVEN
+        RankingNetworkStorageStrategy strategy = mock(RankingNetworkStorageStrategy.class);
+        when(strategy.getStorageKey(user)).thenReturn("foobar");
+        doThrow(new RankingNetworkStorageException(new RuntimeException("repository down"))).when(strategy).store(any());
+        module.setRankingNetworkStorageStrategy(strategy);
+        final RankingNetworkStorage storage = new RankingNetworkStorage(100, module);
+
+        // WHEN
+        CompletableFuture<Boolean> persisted = storage.persist(new RankingInfo(network, new IndexedBuffer<>(5), user));
+
+        // THEN
+        try {
+            persisted.get();
+            fail("Expected the persist to fail");
+        } catch (ExecutionException e) {
+            assertThat(e.getCause(), instanceOf(RankingNetworkStorageException.class));
+        }
+    }
+
     @Test
     public void unsetRankingNetworkStorageShouldUseDefaultOne() throws Exception {
         // GIVEN
@@ -102,6 +153,20 @@ public class RankingNetworkStorageTest {
         assertThat(new RankingNetworkStorage(borked).networkStorageStrategy, instanceOf(JcrUsernameNetworkStorageStrategy.class));
     }
 
+    private static class RecordingRankingNetworkStorageStrategy implements RankingNetworkStorageStrategy {
+        private final List<String> storedUsers = new CopyOnWriteArrayList<>();
+
+        @Override
+        public void store(RankingInfo rankingInfo) {
+            storedUsers.add(rankingInfo.getUser().getName());
+        }
+
+        @Override
+        public Optional<RankingInfo> load(User user) {
+            return Optional.empty();
+        }
+    }
+
     public static boolean arraysSimilar(float[] a, float[] b) {
         return IntStream.range(0, b.length)
                 .mapToDouble(i -> b[i] - a[i])
@@ -0,0 +1,151 @@
+/**
+ * This file Copyright (c) 2019 Magnolia International
+ * Ltd.  (http://www.magnolia-cms.com). All rights reserved.
+ *
+ *
+ * This program and the accompanying materials are made
+ * available under the terms of the Magnolia Network Agreement
+ * which accompanies this distribution, and is available at
+ * http://www.magnolia-cms.com/mna.html
+ *
+ * Any modifications to this file must keep this entire header
+ * intact.
+ *
+ */
+package info.magnolia.forge.periscope.rank.ml;
+
+import static org.hamcrest.CoreMatchers.*;
+import static org.junit.Assert.assertThat;
+
+import info.magnolia.periscope.search.SearchResult;
+
+import java.util.Collections;
+import java.util.Map;
+
+import org.junit.Test;
+
+import com.google.common.collect.ImmutableMap;
+
+public class ResultKeyResolverTest {
+
+    @Test
+    public void stripHighlightingFromTitles() {
+        assertThat(ResultKeyResolver.stripMarkup("<strong>Car</strong>go &amp; <em>Bar</em>"), is("Cargo & Bar"));
+        assertThat(ResultKeyResolver.stripMarkup("  SBB   Cargo "), is("SBB Cargo"));
+        assertThat(ResultKeyResolver.stripMarkup("1 < 2"), is("1 < 2"));
+    }
+
+    @Test
+    public void resultsWithoutOperationRequestAreKeyedByTitle() {
+        // GIVEN
+        ResultKeyResolver resolver = new ResultKeyResolver();
+        SearchResult result = SearchResult.builder().title("<b>Car</b>Gold").build();
+
+        // WHEN
+        String key = resolver.keyOf(result);
+
+        // THEN
+        assertThat(key, is("CarGold"));
+        assertThat(resolver.legacyKeyOf(result), is(key));
+    }
+
+    @Test
+    public void identityKeysAreStableAcrossInstances() {
+        // GIVEN
+        Request first = new Request("pages", new Location("website", "/travel"), ImmutableMap.of("view", "tree", "mode", "edit"));
+        Request same = new Request("pages", new Location("website", "/travel"), ImmutableMap.of("mode", "edit", "view", "tree"));
+        Request other = new Request("pages", new Location("website", "/about"), Collections.emptyMap());
+
+        // WHEN
+        String key = ResultKeyResolver.identityKeyOf(first);
+
+        // THEN
+        assertThat(key, startsWith(ResultKeyResolver.IDENTITY_KEY_PREFIX));
+        assertThat(key, containsString("/travel"));
+        assertThat(key, is(ResultKeyResolver.identityKeyOf(same)));
+        assertThat(key, not(ResultKeyResolver.identityKeyOf(other)));
+    }
+
+    @Test
+    public void identityKeysOnlyDependOnSupplierAndItem() {
+        // GIVEN
+        Request request = new Request("pages", new Location("website", "/travel"), ImmutableMap.of("view", "tree"));
+
+        // WHEN
+        String key = ResultKeyResolver.identityKeyOf(request);
+
+        // THEN no other getter is called
+        assertThat(key, is("@pages:website:/travel"));
+        assertThat(request.otherPropertyReads, is(0));
+    }
+
+    @Test
+    public void identityPropertiesAreFoundInParameters() {
+        // GIVEN
+        Request request = new Request("assets", null, ImmutableMap.of("id", "jcr:4711"));
+
+        // WHEN
+        String key = ResultKeyResolver.identityKeyOf(request);
+
+        // THEN
+        assertThat(key, is("@assets:jcr:4711"));
+    }
+
+    @Test
+    public void requestsWithoutItemHaveNoIdentityKey() {
+        // GIVEN
+        Request request = new Request("pages", null, Collections.emptyMap());
+
+        // WHEN THEN
+        assertThat(ResultKeyResolver.identityKeyOf(request), is(nullValue()));
+        assertThat(ResultKeyResolver.identityKeyOf(new Object()), is(nullValue()));
+    }
+
+    public static class Request {
+        private final String app;
+        private final Location location;
+        private final Map<String, String> parameters;
+        private int otherPropertyReads = 0;
+
+        private Request(String app, Location location, Map<String, String> parameters) {
+            this.app = app;
+            this.location = location;
+            this.parameters = parameters;
+        }
+
+        public String getAppName() {
+            return app;
+        }
+
+        public Location getLocation() {
+            return location;
+        }
+
+        public Map<String, String> getParameters() {
+            return parameters;
+        }
+
+        public String getLabel() {
+            otherPropertyReads++;
+            return "Travel";
+        }
+    }
+
+    public static class Location {
+        private final String workspace;
+        private final String path;
+
+        private Location(String workspace, String path) {
+            this.workspace = workspace;
+            this.path = path;
+        }
+
+        public String getWorkspace() {
+            return workspace;
+        }
+
+        public String getPath() {
+            return path;
+        }
+    }
+}
@@ -0,0 +1,156 @@
+/**
+ * This file Copyright (c) 2019 Magnolia International
+ * Ltd.  (http://www.magnolia-cms.com). All rights reserved.
+ *
+ *
+ * This program and the accompanying materials are made
+ * available under the terms of the Magnolia Network Agreement
+ * which accompanies this distribution, and is available at
+ * http://www.magnolia-cms.com/mna.html
+ *
+ * Any modifications to this file must keep this entire header
+ * intact.
+ *
+ */
+package info.magnolia.forge.periscope.rank.ml;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.empty;
+import static org.junit.Assert.assertThat;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TrainingQueueTest {
+
+    private ScheduledExecutorService executor;
+    private List<List<String>> batches;
+
+    @Before
+    public void setUp() {
+        executor = Executors.newSingleThreadScheduledExecutor();
+        batches = new CopyOnWriteArrayList<>();
+    }
+
+    @Test
+    public void trainRightAwayWithoutBatching() {
+        // GIVEN
+        TrainingQueue<String> queue = new TrainingQueue<>("foobar", executor, 1, 0, batches::add);
+
+        // WHEN
+        queue.enqueue("alpha");
+
+        // THEN
+        assertThat(batches.size(), is(1));
+        assertThat(batches.get(0), contains("alpha"));
+    }
+
+    @Test
+    public void trainFullBatchWithoutWaitingForDelay() throws Exception {
+        // GIVEN
+        CountDownLatch trained = new CountDownLatch(1);
+        TrainingQueue<String> queue = new TrainingQueue<>("foobar", executor, 3, 60000, batch -> {
+            batches.add(new ArrayList<>(batch));
+            trained.countDown();
+        });
+
+        // WHEN
+        queue.enqueue("alpha");
+        queue.enqueue("bravo");
+        queue.enqueue("charlie");
+
+        // THEN
+        assertThat(trained.await(5, TimeUnit.SECONDS), is(true));
+        assertThat(batches.get(0), contains("alpha", "bravo", "charlie"));
+        assertThat(queue.size(), is(0));
+    }
+
+    @Test
+    public void trainPartialBatchAfterDelay() throws Exception {
+        // GIVEN
+        CountDownLatch trained = new CountDownLatch(1);
+        TrainingQueue<String> queue = new TrainingQueue<>("foobar", executor, 10, 50, batch -> {
+            batches.add(new ArrayList<>(batch));
+            trained.countDown();
+        });
+
+        // WHEN
+        queue.enqueue("alpha");
+        queue.enqueue("bravo");
+
+        // THEN
+        assertThat(batches, is(empty()));
+        assertThat(trained.await(5, TimeUnit.SECONDS), is(true));
+        assertThat(batches.get(0), contains("alpha", "bravo"));
+    }
+
+    @Test
+    public void drainTrainsPendingExamplesRightAway() {
+        // GIVEN
+        TrainingQueue<String> queue = new TrainingQueue<>("foobar", executor, 5, 60000, batches::add);
+        queue.enqueue("alpha");
+        queue.enqueue("bravo");
+        queue.enqueue("charlie");
+
+        // WHEN
+        queue.drain();
+
+        // THEN
+        assertThat(batches.size(), is(1));
+        assertThat(batches.get(0), contains("alpha", "bravo", "charlie"));
+        assertThat(queue.size(), is(0));
+    }
+
+    @Test
+    public void failingBatchShouldNotStopDraining() {
+        // GIVEN
+        TrainingQueue<String> queue = new TrainingQueue<>("foobar", executor, 1, 60000, batch -> {
+            if (batch.contains("bravo")) {
+                throw new IllegalStateException("training failed");
+            }
+            batches.add(batch);
+        });
+        // drained on the calling thread as each one is enqueued
+        executor.shutdownNow();
+
+        // WHEN
+        queue.enqueue("alpha");
+        queue.enqueue("bravo");
+        queue.enqueue("charlie");
+
+        // THEN
+        assertThat(batches.size(), is(2));
+        assertThat(batches.get(0), contains("alpha"));
+        assertThat(batches.get(1), contains("charlie"));
+        assertThat(queue.size(), is(0));
+    }
+
+    @Test
+    public void trainOnCallingThreadWhenExecutorRejects() {
+        // GIVEN
+        TrainingQueue<String> queue = new TrainingQueue<>("foobar", executor, 5, 60000, batches::add);
+        executor.shutdownNow();
+
+        // WHEN
+        queue.enqueue("alpha");
+
+        // THEN
+        assertThat(batches.size(), is(1));
+        assertThat(batches.get(0), contains("alpha"));
+    }
+
+    @After
+    public void tearDown() {
+        executor.shutdownNow();
+    }
+}
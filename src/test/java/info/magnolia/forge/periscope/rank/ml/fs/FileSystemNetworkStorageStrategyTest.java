@@ -0,0 +1,153 @@
+/**
+ * This file Copyright (c) 2019 Magnolia International
+ * Ltd.  (http://www.magnolia-cms.com). All rights reserved.
+ *
+ *
+ * This program and the accompanying materials are made
+ * available under the terms of the Magnolia Network Agreement
+ * which accompanies this distribution, and is available at
+ * http://www.magnolia-cms.com/mna.html
+ *
+ * Any modifications to this file must keep this entire header
+ * intact.
+ *
+ */
+package info.magnolia.forge.periscope.rank.ml.fs;
+
+import static info.magnolia.forge.periscope.rank.ml.RankingNetworkStorageStrategy.RankingInfo;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+import info.magnolia.cms.security.User;
+import info.magnolia.forge.periscope.rank.ml.IndexedBuffer;
+import info.magnolia.forge.periscope.rank.ml.RankingInfoSerializer;
+import info.magnolia.forge.periscope.rank.ml.RankingNetworkStorageException;
+import info.magnolia.forge.periscope.rank.ml.RankingNetworkStorageTest;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Collections;
+
+import org.deeplearning4j.nn.multilayer.MultiLayerNetwork;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.nd4j.linalg.api.ndarray.INDArray;
+import org.nd4j.linalg.cpu.nativecpu.NDArray;
+import org.nd4j.linalg.factory.Nd4j;
+
+public class FileSystemNetworkStorageStrategyTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private MultiLayerNetwork network;
+    private FileSystemNetworkStorageStrategy storageStrategy;
+    private User user;
+
+    @Before
+    public void setUp() throws Exception {
+        network = RankingNetworkStorageTest.createMockMultiLayerNetwork();
+
+        storageStrategy = new FileSystemNetworkStorageStrategy();
+        storageStrategy.setRootDirectory(new File(folder.getRoot(), "rankings").getPath());
+
+        user = mock(User.class);
+        when(user.getName()).thenReturn("foo/bar");
+    }
+
+    @Test
+    public void networkShouldNotExistInitially() throws Exception {
+        // GIVEN WHEN THEN
+        assertFalse(storageStrategy.load(user).isPresent());
+    }
+
+    @Test
+    public void networkAndLabelsShouldBeStoredInOneFilePerStorageKey() throws Exception {
+        // GIVEN
+        IndexedBuffer<String> labels = new IndexedBuffer<>(5, Arrays.asList("a", "b", "c"), Arrays.asList("b", "c", "a"));
+
+        // WHEN
+        storageStrategy.store(new RankingInfo(network, labels, user, "ascii"));
+
+        // THEN
+        File directory = new File(folder.getRoot(), "rankings");
+        assertThat(directory.list(), is(new String[]{FileSystemNetworkStorageStrategy.toFileName("foo/bar")}));
+        RankingInfo loaded = storageStrategy.load(user).get();
+        assertThat(loaded.getLabels().asList(), is(labels.asList()));
+        assertThat(loaded.getLabels().evictionOrder(), is(labels.evictionOrder()));
+        assertThat(loaded.getQueryEncoderId(), is("ascii"));
+        assertThat(loaded.getUser(), is(user));
+    }
+
+    @Test
+    public void persistingAndLoadingShouldRetainWeights() throws Exception {
+        // GIVEN
+        network.fit(new NDArray(new float[]{1, 0, 1, 0, 1}), new NDArray(new float[]{0, 1, 0, 1, 0}));
+        float[] paramsAfterFit = Nd4j.toFlattened(network.params()).toFloatVector();
+
+        // WHEN
+        storageStrategy.setFsyncPolicy(FileSystemNetworkStorageStrategy.FsyncPolicy.FILE_AND_DIRECTORY);
+        storageStrategy.store(new RankingInfo(network, new IndexedBuffer<>(5), user));
+        MultiLayerNetwork loadedNetwork = storageStrategy.load(user).get().getNetwork();
+
+        // THEN
+        float[] paramsAfterLoad = Nd4j.toFlattened(loadedNetwork.params()).toFloatVector();
+        assertTrue(RankingNetworkStorageTest.arraysSimilar(paramsAfterLoad, paramsAfterFit));
+    }
+
+    @Test
+    public void networksLoadedForInferenceShouldKeepStoredUpdaterState() throws Exception {
+        // GIVEN
+        network.fit(new NDArray(new float[]{1, 0, 1, 0, 1}), new NDArray(new float[]{0, 1, 0, 1, 0}));
+        storageStrategy.store(new RankingInfo(network, new IndexedBuffer<>(5), user));
+        INDArray updaterState = network.getUpdater().getStateViewArray().dup();
+        RankingInfo inferenceOnly = storageStrategy.loadForInference(user).get();
+
+        // WHEN
+        storageStrategy.store(new RankingInfo(inferenceOnly.getNetwork(), inferenceOnly.getLabels(), user, null, true));
+
+        // THEN
+        assertThat(inferenceOnly.getNetwork().getUpdater(false), is(nullValue()));
+        assertThat(storageStrategy.loadUpdaterState(user).get(), is(updaterState));
+    }
+
+    @Test
+    public void failingWriteShouldKeepStoredNetwork() throws Exception {
+        // GIVEN
+        storageStrategy.store(new RankingInfo(network, new IndexedBuffer<>(5, Collections.singletonList("a"), Collections.emptyList()), user));
+
+        RankingInfoSerializer failingSerializer = spy(new RankingInfoSerializer());
+        doAnswer(invocation -> {
+            ((OutputStream) invocation.getArguments()[3]).write(new byte[]{'P', 'R'});
+            throw new IOException("serialization failed");
+        }).when(failingSerializer).write(any(), any(), anyBoolean(), any());
+        storageStrategy.setSerializer(failingSerializer);
+
+        // WHEN
+        try {
+            storageStrategy.store(new RankingInfo(network, new IndexedBuffer<>(5), user));
+            fail("Expected store to fail");
+        } catch (RankingNetworkStorageException expected) {
+            // expected
+        }
+
+        // THEN
+        storageStrategy.setSerializer(new RankingInfoSerializer());
+        assertThat(storageStrategy.load(user).get().getLabels().asList(), is(Collections.singletonList("a")));
+        assertThat(new File(folder.getRoot(), "rankings").list().length, is(1));
+    }
+
+    @Test
+    public void storageKeysShouldNotEscapeRootDirectory() {
+        // GIVEN WHEN THEN
+        assertThat(FileSystemNetworkStorageStrategy.toFileName("../secret"), is("..%2Fsecret.ranking"));
+        assertThat(FileSystemNetworkStorageStrategy.toFileName(".."), is("...ranking"));
+    }
+}
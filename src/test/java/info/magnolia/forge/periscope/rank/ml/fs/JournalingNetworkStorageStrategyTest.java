@@ -0,0 +1,232 @@
+/**
+ * This file Copyright (c) 2019 Magnolia International
+ * Ltd.  (http://www.magnolia-cms.com). All rights reserved.
+ *
+ *
+ * This program and the accompanying materials are made
+ * available under the terms of the Magnolia Network Agreement
+ * which accompanies this distribution, and is available at
+ * http://www.magnolia-cms.com/mna.html
+ *
+ * Any modifications to this file must keep this entire header
+ * intact.
+ *
+ */
+package info.magnolia.forge.periscope.rank.ml.fs;
+
+import static info.magnolia.forge.periscope.rank.ml.RankingNetworkStorageStrategy.*;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+import info.magnolia.cms.security.User;
+import info.magnolia.forge.periscope.rank.ml.IndexedBuffer;
+import info.magnolia.forge.periscope.rank.ml.RankingNetworkStorageException;
+import info.magnolia.forge.periscope.rank.ml.RankingNetworkStorageStrategy;
+import info.magnolia.forge.periscope.rank.ml.RankingNetworkStorageTest;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.nd4j.linalg.api.ndarray.INDArray;
+
+public class JournalingNetworkStorageStrategyTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private RankingNetworkStorageStrategy delegate;
+    private User user;
+    private RankingInfo rankingInfo;
+
+    @Before
+    public void setUp() throws Exception {
+        user = mock(User.class);
+        when(user.getName()).thenReturn("foobar");
+
+        delegate = mock(RankingNetworkStorageStrategy.class);
+        when(delegate.getStorageKey(user)).thenReturn("foobar");
+
+        rankingInfo = new RankingInfo(RankingNetworkStorageTest.createMockMultiLayerNetwork(), new IndexedBuffer<>(5), user);
+    }
+
+    @Test
+    public void storedNetworksShouldBeFlushedToDelegateLater() throws Exception {
+        // GIVEN
+        JournalingNetworkStorageStrategy strategy = newStrategy();
+
+        // WHEN
+        strategy.store(rankingInfo);
+
+        // THEN
+        verify(delegate, never()).store(any());
+        assertThat(strategy.load(user).get().getNetwork().params(), is(rankingInfo.getNetwork().params()));
+        assertThat(strategy.flush(), is(1));
+        verify(delegate).store(rankingInfo);
+        assertThat(strategy.getPendingCount(), is(0));
+    }
+
+    @Test
+    public void pendingNetworksShouldBeLoadedAsCopies() throws Exception {
+        // GIVEN
+        JournalingNetworkStorageStrategy strategy = newStrategy();
+        strategy.store(rankingInfo);
+        INDArray params = rankingInfo.getNetwork().params().dup();
+
+        // WHEN
+        RankingInfo loaded = strategy.load(user).get();
+        loaded.getNetwork().params().addi(1);
+        strategy.loadUpdaterState(user).ifPresent(state -> state.addi(1));
+
+        // THEN
+        assertThat(rankingInfo.getNetwork().params(), is(params));
+        assertNotSame(rankingInfo.getLabels(), loaded.getLabels());
+        assertThat(loaded.getLabels().evictionOrder(), is(rankingInfo.getLabels().evictionOrder()));
+        assertThat(strategy.load(user).get().getNetwork().params(), is(params));
+    }
+
+    @Test
+    public void stoppedStrategyShouldKeepJournaling() throws Exception {
+        // GIVEN
+        JournalingNetworkStorageStrategy strategy = newStrategy();
+        strategy.store(rankingInfo);
+        strategy.recordTraining(user, Collections.singletonList(new TrainingEvent("car", "Cargo Bar")));
+
+        // WHEN
+        strategy.stop();
+        strategy.recordTraining(user, Collections.singletonList(new TrainingEvent("cargo", "SBB Cargo")));
+
+        // THEN
+        assertThat(newStrategy().loadPendingTraining(user), is(Arrays.asList(new TrainingEvent("car", "Cargo Bar"), new TrainingEvent("cargo", "SBB Cargo"))));
+        assertThat(strategy.getPendingCount(), is(1));
+    }
+
+    @Test
+    public void journaledTrainingShouldBeReplayedOnceAfterRestart() throws Exception {
+        // GIVEN
+        List<TrainingEvent> events = Arrays.asList(new TrainingEvent("car", "Cargo Bar"), new TrainingEvent("c\u00e4r", "@key"));
+        JournalingNetworkStorageStrategy crashed = newStrategy();
+        crashed.recordTraining(user, events.subList(0, 1));
+        crashed.recordTraining(user, events.subList(1, 2));
+        crashed.store(rankingInfo);
+
+        // WHEN
+        JournalingNetworkStorageStrategy restarted = newStrategy();
+
+        // THEN
+        assertThat(restarted.loadPendingTraining(user), is(events));
+        assertThat(restarted.loadPendingTraining(user), is(Collections.<TrainingEvent>emptyList()));
+    }
+
+    @Test
+    public void trainingOfCurrentRunShouldNotBeReplayed() throws Exception {
+        // GIVEN
+        JournalingNetworkStorageStrategy strategy = newStrategy();
+
+        // WHEN
+        strategy.recordTraining(user, Collections.singletonList(new TrainingEvent("car", "Cargo Bar")));
+
+        // THEN
+        assertThat(strategy.loadPendingTraining(user), is(Collections.<TrainingEvent>emptyList()));
+    }
+
+    @Test
+    public void flushedTrainingShouldBeDiscardedOnNextFlush() throws Exception {
+        // GIVEN
+        JournalingNetworkStorageStrategy strategy = newStrategy();
+        strategy.recordTraining(user, Collections.singletonList(new TrainingEvent("car", "Cargo Bar")));
+        strategy.store(rankingInfo);
+        strategy.flush();
+
+        // WHEN
+        strategy.recordTraining(user, Collections.singletonList(new TrainingEvent("cargo", "SBB Cargo")));
+        strategy.store(rankingInfo);
+        strategy.flush();
+
+        // THEN
+        assertThat(newStrategy().loadPendingTraining(user), is(Collections.singletonList(new TrainingEvent("cargo", "SBB Cargo"))));
+    }
+
+    @Test
+    public void flushedTrainingShouldBeKeptUntilNextFlush() throws Exception {
+        // GIVEN a selection whose snapshot isn't stored yet when the network is flushed
+        JournalingNetworkStorageStrategy strategy = newStrategy();
+        strategy.store(rankingInfo);
+        strategy.recordTraining(user, Collections.singletonList(new TrainingEvent("car", "Cargo Bar")));
+
+        // WHEN
+        strategy.flush();
+
+        // THEN
+        assertThat(newStrategy().loadPendingTraining(user), is(Collections.singletonList(new TrainingEvent("car", "Cargo Bar"))));
+    }
+
+    @Test
+    public void networksBeyondMaxPendingShouldBeFlushedRightAway() throws Exception {
+        // GIVEN
+        User other = mock(User.class);
+        when(delegate.getStorageKey(other)).thenReturn("other");
+        RankingInfo otherInfo = new RankingInfo(RankingNetworkStorageTest.createMockMultiLayerNetwork(), new IndexedBuffer<>(5), other);
+        JournalingNetworkStorageStrategy strategy = newStrategy();
+        strategy.setMaxPendingNetworks(1);
+        strategy.store(rankingInfo);
+
+        // WHEN
+        strategy.store(otherInfo);
+
+        // THEN
+        verify(delegate).store(otherInfo);
+        verify(delegate, never()).store(rankingInfo);
+        assertThat(strategy.getPendingCount(), is(1));
+    }
+
+    @Test
+    public void failedFlushShouldKeepNetworkAndJournal() throws Exception {
+        // GIVEN
+        doThrow(new RankingNetworkStorageException(new RuntimeException("repository down"))).when(delegate).store(any());
+        JournalingNetworkStorageStrategy strategy = newStrategy();
+        strategy.recordTraining(user, Collections.singletonList(new TrainingEvent("car", "Cargo Bar")));
+        strategy.store(rankingInfo);
+
+        // WHEN
+        int flushed = strategy.flush();
+
+        // THEN
+        assertThat(flushed, is(0));
+        assertThat(strategy.getPendingCount(), is(1));
+        assertThat(newStrategy().loadPendingTraining(user), is(Collections.singletonList(new TrainingEvent("car", "Cargo Bar"))));
+    }
+
+    @Test
+    public void tornRecordShouldEndJournal() throws Exception {
+        // GIVEN
+        newStrategy().recordTraining(user, Collections.singletonList(new TrainingEvent("car", "Cargo Bar")));
+        Path segment = new File(folder.getRoot(), FileSystemNetworkStorageStrategy.toFileName("foobar")).toPath()
+                .resolve("0" + JournalingNetworkStorageStrategy.SEGMENT_EXTENSION);
+        Files.write(segment, new byte[]{0, 0, 0, 9, 'c', 'a'}, StandardOpenOption.APPEND);
+
+        // WHEN
+        List<TrainingEvent> events = newStrategy().loadPendingTraining(user);
+
+        // THEN
+        assertThat(events, is(Collections.singletonList(new TrainingEvent("car", "Cargo Bar"))));
+    }
+
+    private JournalingNetworkStorageStrategy newStrategy() {
+        JournalingNetworkStorageStrategy strategy = new JournalingNetworkStorageStrategy();
+        strategy.setDelegate(delegate);
+        strategy.setJournalDirectory(folder.getRoot().getPath());
+        strategy.setFlushInterval(60 * 60 * 1000L);
+        return strategy;
+    }
+}
@@ -17,6 +17,7 @@ package info.magnolia.forge.periscope.rank.ml.jcr;
 import static info.magnolia.forge.periscope.rank.ml.RankingNetworkStorageStrategy.RankingInfo;
 import static info.magnolia.forge.periscope.rank.ml.jcr.AbstractJcrNetworkStorageStrategy.*;
 import static info.magnolia.forge.periscope.rank.ml.jcr.JcrUserRoleNetworkStorageStrategy.DEFAULT_RANKING_NODE_NAME;
+import static java.util.stream.Collectors.toList;
 import static org.hamcrest.CoreMatchers.is;
 import static org.hamcrest.MatcherAssert.assertThat;
 import static org.junit.Assert.*;
@@ -24,16 +25,22 @@ import static org.mockito.Mockito.*;
 
 import info.magnolia.cms.security.User;
 import info.magnolia.context.MgnlContext;
+import info.magnolia.forge.periscope.rank.ml.RankingInfoSerializer;
+import info.magnolia.forge.periscope.rank.ml.RankingNetworkStorageException;
 import info.magnolia.forge.periscope.rank.ml.RankingNetworkStorageTest;
 import info.magnolia.jcr.util.NodeTypes;
 import info.magnolia.jcr.util.NodeUtil;
 import info.magnolia.forge.periscope.rank.ml.IndexedBuffer;
 import info.magnolia.test.RepositoryTestCase;
 
+import java.io.IOException;
+import java.io.OutputStream;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
+import java.util.stream.IntStream;
 
+import javax.jcr.Node;
 import javax.jcr.RepositoryException;
 import javax.jcr.Session;
 
@@ -114,6 +121,44 @@ public class JcrNetworkStorageStrategyTest extends RepositoryTestCase {
         assertNeuralNetworkNodesExist(session, DEFAULT_RANKING_NODE_NAME);
     }
 
+    @Test
+    public void usersWithoutGrantedRoleShouldShareStorageKey() throws Exception {
+        // GIVEN
+        jcrStorageStrategy = new JcrUserRoleNetworkStorageStrategy();
+        User ranker = mock(User.class);
+        when(ranker.getName()).thenReturn("ranker");
+        when(ranker.hasRole(eq(RANKING_USERROLE))).thenReturn(true);
+        User other = mock(User.class);
+        when(other.getName()).thenReturn("other");
+
+        // WHEN THEN
+        assertThat(jcrStorageStrategy.getStorageKey(ranker), is("ranker"));
+        assertThat(jcrStorageStrategy.getStorageKey(user), is(DEFAULT_RANKING_NODE_NAME));
+        assertThat(jcrStorageStrategy.getStorageKey(other), is(DEFAULT_RANKING_NODE_NAME));
+    }
+
+    @Test
+    public void recentUsersShouldBeFoundMostRecentFirst() throws Exception {
+        // GIVEN
+        User other = mock(User.class);
+        when(other.getName()).thenReturn("other");
+        User newcomer = mock(User.class);
+        when(newcomer.getName()).thenReturn("newcomer");
+        jcrStorageStrategy.store(new RankingInfo(network, bufferOf(3, Arrays.asList("a", "b", "c")), user));
+        jcrStorageStrategy.store(new RankingInfo(network, bufferOf(3, Arrays.asList("a", "b", "c")), other));
+
+        // WHEN
+        jcrStorageStrategy.recordUse(user);
+        Thread.sleep(10);
+        jcrStorageStrategy.recordUse(other);
+        jcrStorageStrategy.recordUse(newcomer);
+
+        // THEN networks not stored yet are left alone
+        assertThat(session.getNode("/" + user.getName()).hasProperty(LAST_USED_PROPERTY), is(true));
+        assertThat(jcrStorageStrategy.getRecentUserNames(10), is(Arrays.asList("other", "foobar")));
+        assertThat(jcrStorageStrategy.getRecentUserNames(1), is(Collections.singletonList("other")));
+    }
+
     @Test
     public void labelsShouldPersist() throws Exception {
         // GIVEN
@@ -190,6 +235,127 @@ public class JcrNetworkStorageStrategyTest extends RepositoryTestCase {
         assertTrue(RankingNetworkStorageTest.arraysSimilar(outputAfterLoad.toFloatVector(), outputAfterTrain.toFloatVector()));
     }
 
+    @Test
+    public void labelsShouldBeStoredInChunks() throws Exception {
+        // GIVEN
+        List<String> labelList = IntStream.range(0, CHUNK_SIZE * 2 + 1).mapToObj(i -> "label " + i).collect(toList());
+        IndexedBuffer<String> labels = bufferOf(CHUNK_SIZE * 3, labelList);
+
+        // WHEN
+        jcrStorageStrategy.store(new RankingInfo(network, labels, user));
+
+        // THEN
+        Node labelsNode = session.getNode("/" + user.getName() + "/" + LABELS_NODE_NAME);
+        assertFalse(labelsNode.hasProperty("0"));
+        assertThat(labelsNode.getNode(CHUNK_NODE_PREFIX + 0).getProperty(CHUNK_LABELS_PROPERTY).getValues().length, is(CHUNK_SIZE));
+        assertThat(labelsNode.getNode(CHUNK_NODE_PREFIX + 2).getProperty(CHUNK_LABELS_PROPERTY).getValues().length, is(1));
+        assertFalse(labelsNode.hasNode(CHUNK_NODE_PREFIX + 3));
+    }
+
+    @Test
+    public void onlyChangedChunksShouldBeRewritten() throws Exception {
+        // GIVEN
+        List<String> labelList = IntStream.range(0, CHUNK_SIZE * 2).mapToObj(i -> "label " + i).collect(toList());
+        IndexedBuffer<String> labels = bufferOf(CHUNK_SIZE * 2, labelList);
+        jcrStorageStrategy.store(new RankingInfo(network, labels, user));
+        Node secondChunk = session.getNode("/" + user.getName() + "/" + LABELS_NODE_NAME + "/" + CHUNK_NODE_PREFIX + 1);
+        // mark the second chunk, so it can be told whether it was rewritten
+        secondChunk.setProperty("marker", true);
+        session.save();
+
+        // WHEN the first label gets used
+        long[] lastUse = IntStream.range(0, labelList.size()).mapToLong(labels::lastUseAt).toArray();
+        lastUse[0] = labels.getVersion() + 1;
+        IndexedBuffer<String> used = new IndexedBuffer<>(labels.getId(), labels.getLimit(), labelList, lastUse, labels.getVersion());
+        jcrStorageStrategy.store(new RankingInfo(network, used, user));
+
+        // THEN
+        RankingInfo loaded = jcrStorageStrategy.load(user).get();
+        assertThat(loaded.getLabels().evictionOrder(), is(used.evictionOrder()));
+        assertThat(loaded.getLabels().evictionOrder().get(CHUNK_SIZE * 2 - 1), is("label 0"));
+        assertTrue(secondChunk.hasProperty("marker"));
+    }
+
+    @Test
+    public void buffersRestoredFromSameLabelsShouldNotSkipChanges() throws Exception {
+        // GIVEN two buffers restored from the same stored labels
+        List<String> labelList = IntStream.range(0, CHUNK_SIZE * 2).mapToObj(i -> "label " + i).collect(toList());
+        IndexedBuffer<String> labels = bufferOf(CHUNK_SIZE * 2, labelList);
+        jcrStorageStrategy.store(new RankingInfo(network, labels, user));
+        long[] lastUse = IntStream.range(0, labelList.size()).mapToLong(labels::lastUseAt).toArray();
+        long[] firstLastUse = lastUse.clone();
+        firstLastUse[CHUNK_SIZE] = labels.getVersion() + 1;
+        IndexedBuffer<String> first = new IndexedBuffer<>(labels.getId(), labels.getLimit(), labelList, firstLastUse, labels.getVersion());
+        long[] secondLastUse = lastUse.clone();
+        secondLastUse[0] = labels.getVersion() + 1;
+        IndexedBuffer<String> second = new IndexedBuffer<>(labels.getId(), labels.getLimit(), labelList, secondLastUse, labels.getVersion());
+
+        // WHEN both store their changes, at the same version
+        jcrStorageStrategy.store(new RankingInfo(network, first, user));
+        jcrStorageStrategy.store(new RankingInfo(network, second, user));
+
+        // THEN the last one is stored entirely
+        RankingInfo loaded = jcrStorageStrategy.load(user).get();
+        assertThat(loaded.getLabels().evictionOrder(), is(second.evictionOrder()));
+        assertThat(loaded.getLabels().evictionOrder().get(CHUNK_SIZE * 2 - 1), is("label 0"));
+    }
+
+    @Test
+    public void legacyLabelsShouldBeLoadedAndMigrated() throws Exception {
+        // GIVEN labels stored as one property per index
+        jcrStorageStrategy.store(new RankingInfo(network, new IndexedBuffer<>(5), user));
+        Node labelsNode = session.getNode("/" + user.getName() + "/" + LABELS_NODE_NAME);
+        labelsNode.getProperty(LABELS_ID_PROPERTY).remove();
+        labelsNode.getProperty(LABELS_VERSION_PROPERTY).remove();
+        labelsNode.setProperty("0", "a");
+        labelsNode.setProperty("1", "b");
+        labelsNode.setProperty("2", "c");
+        labelsNode.setProperty(EVICTION_ORDER_PROPERTY, new String[]{"b", "c", "a"});
+        session.save();
+
+        // WHEN
+        RankingInfo loaded = jcrStorageStrategy.load(user).get();
+        jcrStorageStrategy.store(loaded);
+
+        // THEN
+        assertThat(loaded.getLabels().asList(), is(Arrays.asList("a", "b", "c")));
+        assertThat(loaded.getLabels().evictionOrder(), is(Arrays.asList("b", "c", "a")));
+        assertFalse(labelsNode.hasProperty("0"));
+        assertFalse(labelsNode.hasProperty(EVICTION_ORDER_PROPERTY));
+        assertThat(jcrStorageStrategy.load(user).get().getLabels().evictionOrder(), is(Arrays.asList("b", "c", "a")));
+    }
+
+    @Test
+    public void failingSerializationShouldKeepStoredNetwork() throws Exception {
+        // GIVEN
+        jcrStorageStrategy.store(new RankingInfo(network, bufferOf(5, Arrays.asList("a", "b")), user));
+        float[] storedParams = Nd4j.toFlattened(network.params()).toFloatVector();
+        network.fit(new NDArray(new float[]{1, 0, 1, 0, 1}), new NDArray(new float[]{0, 1, 0, 1, 0}));
+
+        RankingInfoSerializer failingSerializer = spy(new RankingInfoSerializer());
+        doAnswer(invocation -> {
+            // half-written stream, as if the network could not be fully serialized
+            ((OutputStream) invocation.getArguments()[3]).write(new byte[]{'P', 'R'});
+            throw new IOException("serialization failed");
+        }).when(failingSerializer).write(any(), any(), anyBoolean(), any());
+        jcrStorageStrategy.setSerializer(failingSerializer);
+
+        // WHEN
+        try {
+            jcrStorageStrategy.store(new RankingInfo(network, bufferOf(5, Arrays.asList("a", "b", "c")), user));
+            fail("Expected store to fail");
+        } catch (RankingNetworkStorageException expected) {
+            // expected
+        }
+
+        // THEN
+        jcrStorageStrategy.setSerializer(new RankingInfoSerializer());
+        RankingInfo loaded = jcrStorageStrategy.load(user).get();
+        float[] loadedParams = Nd4j.toFlattened(loaded.getNetwork().params()).toFloatVector();
+        assertTrue(RankingNetworkStorageTest.arraysSimilar(loadedParams, storedParams));
+        assertThat(loaded.getLabels().asList(), is(Arrays.asList("a", "b")));
+    }
+
     private void assertNeuralNetworkNodesExist(Session session, String nodeName) throws RepositoryException {
         assertTrue(session.nodeExists("/" + nodeName + "/" + FILENAME));
         assertTrue(session.nodeExists("/" + nodeName + "/" + LABELS_NODE_NAME));
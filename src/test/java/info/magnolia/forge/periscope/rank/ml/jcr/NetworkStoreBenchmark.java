@@ -0,0 +1,140 @@
+/**
+ * This file Copyright (c) 2019 Magnolia International
+ * Ltd.  (http://www.magnolia-cms.com). All rights reserved.
+ *
+ *
+ * This program and the accompanying materials are made
+ * available under the terms of the Magnolia Network Agreement
+ * which accompanies this distribution, and is available at
+ * http://www.magnolia-cms.com/mna.html
+ *
+ * Any modifications to this file must keep this entire header
+ * intact.
+ *
+ */
+package info.magnolia.forge.periscope.rank.ml.jcr;
+
+import static info.magnolia.forge.periscope.rank.ml.RankingNetworkStorageStrategy.RankingInfo;
+
+import info.magnolia.forge.periscope.rank.ml.IndexedBuffer;
+import info.magnolia.forge.periscope.rank.ml.RankingInfoSerializer;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PipedInputStream;
+import java.io.PipedOutputStream;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.output.NullOutputStream;
+import org.deeplearning4j.nn.conf.MultiLayerConfiguration;
+import org.deeplearning4j.nn.conf.NeuralNetConfiguration;
+import org.deeplearning4j.nn.conf.layers.DenseLayer;
+import org.deeplearning4j.nn.conf.layers.OutputLayer;
+import org.deeplearning4j.nn.multilayer.MultiLayerNetwork;
+import org.nd4j.linalg.activations.Activation;
+import org.nd4j.linalg.learning.config.Nesterovs;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Compares time and allocations per store of a ranking network up to the binary upload: the former writer thread
+ * feeding a {@link PipedInputStream}, serializing into a buffer grown while writing, as happens whenever a buffer isn't
+ * retained, versus serializing into the reused, presized buffer of {@link AbstractJcrNetworkStorageStrategy}. The
+ * repository side is stood in for by draining the stream, as {@code JcrUtils.putFile} does. 10000 output units is the
+ * default configuration.
+ * <p>
+ * Run with {@code mvn test-compile exec:java -Dexec.classpathScope=test -Dexec.mainClass=<this class>}, or from the IDE;
+ * allocations per call are reported as {@code gc.alloc.rate.norm}.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class NetworkStoreBenchmark {
+
+    @Param({"100", "1000", "10000"})
+    public int outputUnits;
+
+    private final RankingInfoSerializer serializer = new RankingInfoSerializer();
+    private final AbstractJcrNetworkStorageStrategy.ReusableBuffer buffer = new AbstractJcrNetworkStorageStrategy.ReusableBuffer();
+    private RankingInfo rankingInfo;
+
+    @Setup
+    public void setUp() {
+        MultiLayerConfiguration configuration = new NeuralNetConfiguration.Builder()
+                .seed(123)
+                .updater(new Nesterovs(0.01, 0.4))
+                .activation(Activation.TANH)
+                .list()
+                .layer(0, new DenseLayer.Builder().nIn(128 * 20).nOut(100).build())
+                .layer(1, new OutputLayer.Builder().nIn(100).nOut(outputUnits).activation(Activation.SOFTMAX).build())
+                .build();
+        MultiLayerNetwork network = new MultiLayerNetwork(configuration);
+        network.init();
+        rankingInfo = new RankingInfo(network, new IndexedBuffer<>(outputUnits), null);
+    }
+
+    @Benchmark
+    public long pipedWriterThread() throws Exception {
+        PipedInputStream in = new PipedInputStream();
+        OutputStream out = new PipedOutputStream(in);
+
+        new Thread(() -> {
+            try {
+                serializer.write(rankingInfo, false, out);
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            } finally {
+                IOUtils.closeQuietly(out);
+            }
+        }, "WriteNeuralNetworkModelToStream").start();
+
+        return drain(in);
+    }
+
+    @Benchmark
+    public long growingBuffer() throws Exception {
+        AbstractJcrNetworkStorageStrategy.ReusableBuffer growing = new AbstractJcrNetworkStorageStrategy.ReusableBuffer();
+        serializer.write(rankingInfo, false, growing);
+        return drain(growing.toInputStream());
+    }
+
+    @Benchmark
+    public long reusedBuffer() throws Exception {
+        buffer.reset(serializer.estimateSize(rankingInfo));
+        serializer.write(rankingInfo, false, buffer);
+        return drain(buffer.toInputStream());
+    }
+
+    private static long drain(InputStream in) throws IOException {
+        try {
+            return IOUtils.copyLarge(in, NullOutputStream.NULL_OUTPUT_STREAM);
+        } finally {
+            in.close();
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        new Runner(new OptionsBuilder()
+                .include(NetworkStoreBenchmark.class.getSimpleName())
+                .addProfiler(GCProfiler.class)
+                .build())
+                .run();
+    }
+}